@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous interface for toypad.<br>
+ * The commands never block nor throw: each one returns a future completed
+ * when the toypad has acknowledged the message counter of its last frame, or
+ * failed with a ToyPadException if the command can't be sent, or if the
+ * toypad doesn't acknowledge it in time (see
+ * ToyPadImpl.setRequestTimeout()).<br>
+ * A lighting command replaced by a newer one before being sent is
+ * acknowledged with the newer one.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public interface AsyncToyPad {
+
+	/**
+	 * Turn off all the pads.
+	 * 
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> turnOffPads();
+
+	/**
+	 * Switch the pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param color
+	 *            color
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> switchPad(final PadEnum pad, final Color color);
+
+	/**
+	 * Switch the three pads.
+	 * 
+	 * @param colorPadLeft
+	 *            color for left pad
+	 * @param colorPadCenter
+	 *            color for center pad
+	 * @param colorPadRight
+	 *            color for right pad
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> switchPads(final Color colorPadLeft, final Color colorPadCenter,
+			final Color colorPadRight);
+
+	/**
+	 * Flash a pad.
+	 * 
+	 * @param pad
+	 *            pad to flash
+	 * @param flashColor
+	 *            a flashcolor which describes the properties of the flash
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> flashPad(final PadEnum pad, final FlashColor flashColor);
+
+	/**
+	 * Flash all pads.<br>
+	 * If a flashColor is null, then the pad continues as previous.
+	 * 
+	 * @param flashColorLeft
+	 *            flashColor for left pad
+	 * @param flashColorCenter
+	 *            flashColor for center pad
+	 * @param flashColorRight
+	 *            flashColor for right pad
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> flashPads(final FlashColor flashColorLeft, final FlashColor flashColorCenter,
+			final FlashColor flashColorRight);
+
+	/**
+	 * Fade a pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param fadeColor
+	 *            a fadeColor which describes the properties of the fade
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> fadePad(final PadEnum pad, final FadeColor fadeColor);
+
+	/**
+	 * Fade once from a color to another color, the fade lasts the given time.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param fromColor
+	 *            color
+	 * @param toColor
+	 *            color
+	 * @param time
+	 *            time from 0 to 255.
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> fadePad(final PadEnum pad, final Color fromColor, final Color toColor, final int time);
+
+	/**
+	 * Fade between random colors (Colors are selected by the hardware).
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param pulseTime
+	 *            time. If 0, then random time by the hardware
+	 * @param pulseCount
+	 *            count. Use FadeColor.FADE_FOR_EVER for infinite time.
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount);
+
+	/**
+	 * Fade all pads.<br>
+	 * If a fadeColor is null, then the pad continues as previous.
+	 * 
+	 * @param fadeColorLeft
+	 *            fadeColor left
+	 * @param fadeColorCenter
+	 *            fadeColor center
+	 * @param fadeColorRight
+	 *            fadeColor right
+	 * @return a future completed when the toypad has acknowledged the command
+	 */
+	CompletableFuture<Void> fadePads(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter,
+			final FadeColor fadeColorRight);
+
+	/**
+	 * Return the synchronous toypad.
+	 * 
+	 * @return the toypad
+	 */
+	ToyPad getToyPad();
+}
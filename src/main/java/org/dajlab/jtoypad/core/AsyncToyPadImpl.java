@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Implementation of AsyncToyPad.<br>
+ * The messages are built by the toypad, and their acknowledgement is awaited
+ * in the correlation table: no thread is blocked while waiting.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class AsyncToyPadImpl implements AsyncToyPad {
+
+	/**
+	 * Toypad.
+	 */
+	private final ToyPadImpl toyPad;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param toyPad
+	 *            toypad
+	 */
+	public AsyncToyPadImpl(final ToyPadImpl toyPad) {
+		this.toyPad = toyPad;
+	}
+
+	/**
+	 * Return a failed future.
+	 * 
+	 * @param error
+	 *            error
+	 * @return the future
+	 */
+	private static CompletableFuture<Void> failed(final ToyPadException error) {
+
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		future.completeExceptionally(error);
+		return future;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> turnOffPads() {
+
+		return switchPad(PadEnum.ALL, Color.BLACK);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> switchPad(final PadEnum pad, final Color color) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.switchPadMessage(pad, color));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> switchPads(final Color colorPadLeft, final Color colorPadCenter,
+			final Color colorPadRight) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.switchPadsMessage(colorPadLeft, colorPadCenter, colorPadRight));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> flashPad(final PadEnum pad, final FlashColor flashColor) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.flashPadMessage(pad, flashColor));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> flashPads(final FlashColor flashColorLeft, final FlashColor flashColorCenter,
+			final FlashColor flashColorRight) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.flashPadsMessage(flashColorLeft, flashColorCenter, flashColorRight));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> fadePad(final PadEnum pad, final FadeColor fadeColor) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.fadePadMessage(pad, fadeColor));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> fadePad(final PadEnum pad, final Color fromColor, final Color toColor,
+			final int time) {
+
+		return fadePad(pad, new FadeColor(fromColor, toColor, time, 1));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.fadePadRandomMessage(pad, pulseTime, pulseCount));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> fadePads(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter,
+			final FadeColor fadeColorRight) {
+
+		try {
+			return toyPad.sendAcknowledged(toyPad.fadePadsMessage(fadeColorLeft, fadeColorCenter, fadeColorRight));
+		} catch (ToyPadException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ToyPad getToyPad() {
+		return toyPad;
+	}
+
+}
@@ -25,59 +25,59 @@ public enum CommandEnum {
 	/**
 	 * Switch pad.
 	 */
-	SWITCH_PAD(0xc0, 0x06),
+	SWITCH_PAD(0xc0, 0x06, 0x01),
 	/**
 	 * Get color.
 	 */
-	GET_COL(0xc1, 0x03),
+	GET_COL(0xc1, 0x03, 0x04),
 	/**
 	 * Fade pad.
 	 */
-	FADE_PAD(0xc2, 0x08),
+	FADE_PAD(0xc2, 0x08, 0x01),
 	/**
 	 * Flash pad.
 	 */
-	FLASH_PAD(0xc3, 0x09),
+	FLASH_PAD(0xc3, 0x09, 0x01),
 	/**
 	 * Random fade pad.
 	 */
-	FADE_PAD_RANDOM(0xc4, 0x05),
+	FADE_PAD_RANDOM(0xc4, 0x05, 0x01),
 	/**
 	 * Undetermined fad command.
 	 */
-	FADE_PAD_TOBEDETERMINED(0xc5, 0x05),
+	FADE_PAD_TOBEDETERMINED(0xc5, 0x05, 0x01),
 	/**
 	 * Fad all pads.
 	 */
-	FADE_PADS(0xc6, 0x14),
+	FADE_PADS(0xc6, 0x14, 0x01),
 	/**
 	 * Flash all pads.
 	 */
-	FLASH_PADS(0xc7, 0x17),
+	FLASH_PADS(0xc7, 0x17, 0x01),
 	/**
 	 * Switch all pads.
 	 */
-	SWITCH_PADS(0xc8, 0x0e),
+	SWITCH_PADS(0xc8, 0x0e, 0x01),
 	/**
 	 * Read tag info.
 	 */
-	READ(0xd2, 0x04),
+	READ(0xd2, 0x04, 0x12),
 	/**
 	 * List models.
 	 */
-	LST_MODEL(0xd4, 0x0a),
+	LST_MODEL(0xd4, 0x0a, 0x0a),
 	/**
 	 * Init message.
 	 */
-	INIT(0xb0, 0x0f),
+	INIT(0xb0, 0x0f, 0x00),
 	/**
 	 * Kind of identify command.
 	 */
-	SEED(0xb1, 0x0a),
+	SEED(0xb1, 0x0a, 0x00),
 	/**
 	 * Challenge the toypad.
 	 */
-	CHAL(0xb3, 0x0a);
+	CHAL(0xb3, 0x0a, 0x00);
 
 	/**
 	 * Command id.
@@ -87,6 +87,11 @@ public enum CommandEnum {
 	 * Payload size for the command.
 	 */
 	private int payloadSize;
+	/**
+	 * Payload size of the response (message counter included), 0 if not
+	 * checked.
+	 */
+	private int responseSize;
 
 	/**
 	 * Private constructor.
@@ -95,10 +100,13 @@ public enum CommandEnum {
 	 *            command id
 	 * @param payloadSize
 	 *            payload size
+	 * @param responseSize
+	 *            payload size of the response, 0 if not checked
 	 */
-	private CommandEnum(final int commandId, final int payloadSize) {
+	private CommandEnum(final int commandId, final int payloadSize, final int responseSize) {
 		this.commandId = commandId;
 		this.payloadSize = payloadSize;
+		this.responseSize = responseSize;
 	}
 
 	/**
@@ -115,4 +123,55 @@ public enum CommandEnum {
 		return (byte) payloadSize;
 	}
 
+	/**
+	 * Check that a response frame is the response to this command: the
+	 * lighting commands are acknowledged with the message counter only, GET_COL
+	 * adds the color, READ and LST_MODEL a status and the data.
+	 * 
+	 * @param response
+	 *            response frame
+	 * @return true if the payload size of the response is the expected one
+	 */
+	public final boolean isResponse(final byte[] response) {
+		return responseSize == 0 || response[1] == (byte) responseSize;
+	}
+
+	/**
+	 * Return the command acting on the three pads at once which matches this
+	 * single pad command.
+	 * 
+	 * @return the multi pads command, null if there is none
+	 */
+	public final CommandEnum getMultiPadCommand() {
+
+		CommandEnum command = null;
+		if (this == SWITCH_PAD) {
+			command = SWITCH_PADS;
+		} else if (this == FADE_PAD) {
+			command = FADE_PADS;
+		} else if (this == FLASH_PAD) {
+			command = FLASH_PADS;
+		}
+		return command;
+	}
+
+	/**
+	 * Find a command from its id.
+	 * 
+	 * @param commandId
+	 *            command id
+	 * @return the matching command or null if not found
+	 */
+	public final static CommandEnum findCommand(final byte commandId) {
+
+		CommandEnum command = null;
+		for (CommandEnum commandEnum : CommandEnum.values()) {
+			if (commandId == (byte) commandEnum.commandId) {
+				command = commandEnum;
+				break;
+			}
+		}
+		return command;
+	}
+
 }
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Correlation of the requests sent to the toypad with their responses, using
+ * the message counter.<br>
+ * The message counter is a single byte on the wire, so the pending requests
+ * are kept in a 256 slots ring indexed by the counter: matching a response is
+ * an array access, without boxing nor hashing. The table also allocates the
+ * message counters of all the frames, skipping the counters still used by a
+ * pending request when the counter wraps around. The frames which don't wait
+ * for a response and the requests use the two halves of the counters, so an
+ * acknowledgement never lands on a request, and a response must have the
+ * size expected for the command of the request.<br>
+ * A request without response after the timeout is sent again, until the max
+ * number of retries. Then it expires and its future fails. Its counter stays
+ * reserved for one more timeout, and a late response is ignored instead of
+ * completing the next request using the counter.<br>
+ * The table also waits for the acknowledgement of frames already written (the
+ * toypad answers each frame with its message counter), which are not sent
+ * again.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class CorrelationTable {
+
+	/**
+	 * Default timeout of a request (ms).
+	 */
+	public final static long DEFAULT_TIMEOUT = 250;
+
+	/**
+	 * Default number of retries of a request.
+	 */
+	public final static int DEFAULT_RETRIES = 2;
+
+	/**
+	 * Number of message counters.
+	 */
+	private final static int SLOTS = 256;
+
+	/**
+	 * First message counter of the frames (1 is for the init command).
+	 */
+	private final static int FIRST_COUNTER = 2;
+
+	/**
+	 * First message counter of the requests, the frames use the counters
+	 * below.
+	 */
+	private final static int FIRST_REQUEST_COUNTER = SLOTS / 2;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(CorrelationTable.class);
+
+	/**
+	 * Event loop used to send the requests.
+	 */
+	private final ToyPadEventLoop eventLoop;
+
+	/**
+	 * Scheduler for the timeouts.
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Pending requests, indexed by message counter.
+	 */
+	private final AtomicReferenceArray<PendingRequest> slots = new AtomicReferenceArray<>(SLOTS);
+
+	/**
+	 * Next message counter of the frames.
+	 */
+	private final AtomicInteger frameCounter = new AtomicInteger(FIRST_COUNTER);
+
+	/**
+	 * Next message counter of the requests.
+	 */
+	private final AtomicInteger requestCounter = new AtomicInteger();
+
+	/**
+	 * Number of pending requests.
+	 */
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	/**
+	 * Timeout of a request (ms).
+	 */
+	private volatile long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Number of retries of a request.
+	 */
+	private volatile int retries = DEFAULT_RETRIES;
+
+	/**
+	 * Number of requests sent again.
+	 */
+	private final AtomicLong retriedCount = new AtomicLong();
+
+	/**
+	 * Number of requests expired.
+	 */
+	private final AtomicLong expiredCount = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param eventLoop
+	 *            event loop used to send the requests
+	 * @param scheduler
+	 *            scheduler for the timeouts
+	 */
+	public CorrelationTable(final ToyPadEventLoop eventLoop, final ScheduledExecutorService scheduler) {
+		this.eventLoop = eventLoop;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Allocate a message counter for a frame which doesn't wait for a
+	 * response. The counters of the frames still waiting for their
+	 * acknowledgement are skipped.
+	 * 
+	 * @return the message counter (2 to 127)
+	 * @throws ToyPadException
+	 *             if all the counters are used by pending acknowledgements
+	 */
+	public int nextCounter() throws ToyPadException {
+
+		for (int i = 0; i < FIRST_REQUEST_COUNTER; i++) {
+			int counter = frameCounter.getAndIncrement() & (FIRST_REQUEST_COUNTER - 1);
+			if (counter >= FIRST_COUNTER && slots.get(counter) == null) {
+				return counter;
+			}
+		}
+		throw new ToyPadException(JToypadConstants.ERR_QUEUE_FULL);
+	}
+
+	/**
+	 * Allocate a message counter for a request and put the request in its
+	 * slot. The counters of the pending requests are skipped.
+	 * 
+	 * @param request
+	 *            request
+	 * @return the message counter (128 to 255)
+	 * @throws ToyPadException
+	 *             if all the counters are used by pending requests
+	 */
+	private int allocate(final PendingRequest request) throws ToyPadException {
+
+		for (int i = 0; i < FIRST_REQUEST_COUNTER; i++) {
+			int counter = FIRST_REQUEST_COUNTER | (requestCounter.getAndIncrement() & (FIRST_REQUEST_COUNTER - 1));
+			if (slots.compareAndSet(counter, null, request)) {
+				pendingCount.incrementAndGet();
+				return counter;
+			}
+			logger.debug("Counter [{}] still used by a pending request, skipped.", counter);
+		}
+		throw new ToyPadException(JToypadConstants.ERR_QUEUE_FULL);
+	}
+
+	/**
+	 * Release the slot of a request.
+	 * 
+	 * @param request
+	 *            request
+	 * @return true if the request was still pending
+	 */
+	private boolean release(final PendingRequest request) {
+
+		boolean released = slots.compareAndSet(request.getCounter(), request, null);
+		if (released) {
+			pendingCount.decrementAndGet();
+		}
+		return released;
+	}
+
+	/**
+	 * Replace an expired request by a place holder, keeping its counter for
+	 * one more timeout.
+	 * 
+	 * @param request
+	 *            request
+	 * @return true if the request was still pending
+	 */
+	private boolean retire(final PendingRequest request) {
+
+		final PendingRequest placeHolder = new PendingRequest(request.getCommand(), request.getCounter(), true);
+		boolean retired = slots.compareAndSet(request.getCounter(), request, placeHolder);
+		if (retired) {
+			pendingCount.decrementAndGet();
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					slots.compareAndSet(placeHolder.getCounter(), placeHolder, null);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		return retired;
+	}
+
+	/**
+	 * Send a request.
+	 * 
+	 * @param command
+	 *            command
+	 * @param payload
+	 *            payload
+	 * @return a future completed with the response frame
+	 * @throws ToyPadException
+	 *             if the request can't be sent
+	 */
+	public CompletableFuture<byte[]> send(final CommandEnum command, final byte[] payload) throws ToyPadException {
+
+		PendingRequest request = new PendingRequest(command);
+		int counter = allocate(request);
+		// The frame is set before being queued, so before any response
+		request.setFrame(FrameCodec.encode(command, counter, payload));
+		try {
+			submit(request);
+		} catch (ToyPadException e) {
+			release(request);
+			cancelTimeout(request);
+			throw e;
+		}
+		return request.getFuture();
+	}
+
+	/**
+	 * Wait for the acknowledgement of a frame already written. The frame is
+	 * not sent again: the future fails after one timeout.
+	 * 
+	 * @param frame
+	 *            the written frame
+	 * @return a future completed with the acknowledgement frame
+	 * @throws ToyPadException
+	 *             if the message counter of the frame is used by a pending
+	 *             request
+	 */
+	public CompletableFuture<byte[]> expect(final byte[] frame) throws ToyPadException {
+
+		PendingRequest request = new PendingRequest(CommandEnum.findCommand(frame[FrameCodec.INDEX_COMMAND]),
+				frame[FrameCodec.INDEX_COUNTER] & (SLOTS - 1));
+		if (!slots.compareAndSet(request.getCounter(), null, request)) {
+			logger.warn("Counter [{}] used by a pending request, acknowledgement not awaited.", request.getCounter());
+			throw new ToyPadException(JToypadConstants.ERR_QUEUE_FULL);
+		}
+		pendingCount.incrementAndGet();
+		scheduleTimeout(request);
+		return request.getFuture();
+	}
+
+	/**
+	 * Complete the request matching a response. The future is completed with a
+	 * copy of the response, as the frame is a receive buffer reused for the
+	 * next frames.<br>
+	 * A response which doesn't have the size expected for the command of the
+	 * request, or the late response of an expired request, is ignored.
+	 * 
+	 * @param response
+	 *            response frame
+	 * @return true if a request matches the response
+	 */
+	public boolean complete(final byte[] response) {
+
+		int counter = response[2] & (SLOTS - 1);
+		PendingRequest request = slots.get(counter);
+		if (request == null) {
+			return false;
+		}
+		if (request.isExpired()) {
+			logger.debug("Late response for [{}] with counter [{}], ignored.", request.getCommand(), counter);
+			return false;
+		}
+		if (request.getCommand() != null && !request.getCommand().isResponse(response)) {
+			logger.debug("Response with counter [{}] doesn't match [{}], ignored.", counter, request.getCommand());
+			return false;
+		}
+		if (release(request)) {
+			cancelTimeout(request);
+			request.getFuture().complete(response.clone());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Fail all the pending requests.
+	 */
+	public void close() {
+
+		for (int i = 0; i < SLOTS; i++) {
+			PendingRequest request = slots.get(i);
+			if (request != null && request.isExpired()) {
+				slots.compareAndSet(i, request, null);
+			} else if (request != null && release(request)) {
+				cancelTimeout(request);
+				request.getFuture().completeExceptionally(new ToyPadException(JToypadConstants.ERR_CLOSED));
+			}
+		}
+	}
+
+	/**
+	 * Submit the frame of a request and schedule its timeout.
+	 * 
+	 * @param request
+	 *            request
+	 * @throws ToyPadException
+	 *             if the frame can't be queued
+	 */
+	private void submit(final PendingRequest request) throws ToyPadException {
+
+		scheduleTimeout(request);
+		eventLoop.submit(new OutboundMessage(request.getFrame()));
+	}
+
+	/**
+	 * Count an attempt of a request and schedule its timeout.
+	 * 
+	 * @param request
+	 *            request
+	 */
+	private void scheduleTimeout(final PendingRequest request) {
+
+		synchronized (request) {
+			request.setAttempts(request.getAttempts() + 1);
+			request.setTimeoutTask(scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					onTimeout(request);
+				}
+			}, timeout, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	/**
+	 * Called when no response has been received in time.
+	 * 
+	 * @param request
+	 *            request
+	 */
+	private void onTimeout(final PendingRequest request) {
+
+		if (slots.get(request.getCounter()) != request) {
+			// Completed in the meantime
+			return;
+		}
+		if (request.getFrame() != null && request.getAttempts() <= retries) {
+			logger.debug("No response for [{}] with counter [{}], sending again.", request.getCommand(),
+					request.getCounter());
+			retriedCount.incrementAndGet();
+			try {
+				submit(request);
+			} catch (ToyPadException e) {
+				if (release(request)) {
+					request.getFuture().completeExceptionally(e);
+				}
+			}
+		} else if (retire(request)) {
+			logger.warn("No response for [{}] after [{}] attempts.", request.getCommand(), request.getAttempts());
+			expire(request);
+		}
+	}
+
+	/**
+	 * Expire a request.
+	 * 
+	 * @param request
+	 *            request
+	 */
+	private void expire(final PendingRequest request) {
+
+		cancelTimeout(request);
+		expiredCount.incrementAndGet();
+		request.getFuture().completeExceptionally(new ToyPadException(JToypadConstants.ERR_TIMEOUT));
+	}
+
+	/**
+	 * Cancel the timeout task of a request.
+	 * 
+	 * @param request
+	 *            request
+	 */
+	private static void cancelTimeout(final PendingRequest request) {
+
+		synchronized (request) {
+			if (request.getTimeoutTask() != null) {
+				request.getTimeoutTask().cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * @param timeout
+	 *            the timeout to set (ms)
+	 */
+	public final void setTimeout(final long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param retries
+	 *            the number of retries to set
+	 */
+	public final void setRetries(final int retries) {
+		this.retries = retries;
+	}
+
+	/**
+	 * @return the number of requests waiting for a response
+	 */
+	public final int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * @return the number of requests sent again
+	 */
+	public final long getRetriedCount() {
+		return retriedCount.get();
+	}
+
+	/**
+	 * @return the number of requests expired without response
+	 */
+	public final long getExpiredCount() {
+		return expiredCount.get();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+/**
+ * Interfaces of the reactive streams, as java.util.concurrent.Flow (Java 9)
+ * which is not available in Java 8. The signatures are the same, so a
+ * subscriber can be adapted with a simple delegation.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public final class Flow {
+
+	/**
+	 * Private constructor.
+	 */
+	private Flow() {
+	}
+
+	/**
+	 * Producer of items received by subscribers.
+	 * 
+	 * @param <T>
+	 *            type of the items
+	 */
+	public static interface Publisher<T> {
+
+		/**
+		 * Add a subscriber. onSubscribe() is called first, then the items are
+		 * sent as requested through the subscription.
+		 * 
+		 * @param subscriber
+		 *            subscriber
+		 */
+		void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of items.
+	 * 
+	 * @param <T>
+	 *            type of the items
+	 */
+	public static interface Subscriber<T> {
+
+		/**
+		 * Called before any other method.
+		 * 
+		 * @param subscription
+		 *            subscription, to request items or cancel
+		 */
+		void onSubscribe(Subscription subscription);
+
+		/**
+		 * Called with the next item, once requested.
+		 * 
+		 * @param item
+		 *            item
+		 */
+		void onNext(T item);
+
+		/**
+		 * Called when the subscription fails. No other method is called after.
+		 * 
+		 * @param throwable
+		 *            error
+		 */
+		void onError(Throwable throwable);
+
+		/**
+		 * Called when there will be no more item. No other method is called
+		 * after.
+		 */
+		void onComplete();
+	}
+
+	/**
+	 * Link between a publisher and a subscriber.
+	 */
+	public static interface Subscription {
+
+		/**
+		 * Request items.
+		 * 
+		 * @param n
+		 *            number of items, added to the current demand
+		 */
+		void request(long n);
+
+		/**
+		 * Stop receiving items.
+		 */
+		void cancel();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+/**
+ * Utility class for encoding the frames sent to the toypad.<br>
+ * A frame is 32 bytes long : prefix, payload size, command id, message
+ * counter, payload, checksum, then zeros.<br>
+ * The frames can also be encoded in place, without a payload array:
+ * start() writes the header, the payload is put at INDEX_PAYLOAD, then
+ * seal() writes the checksum.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class FrameCodec {
+
+	/**
+	 * Length of a frame.
+	 */
+	public final static int FRAME_LENGTH = 32;
+
+	/**
+	 * Generic prefix.
+	 */
+	public final static byte PREFIX_GENERIC = 0x55;
+
+	/**
+	 * Prefix for event.
+	 */
+	public final static byte PREFIX_EVENT = 0x56;
+
+	/**
+	 * Index of the command id in a frame.
+	 */
+	public final static int INDEX_COMMAND = 2;
+
+	/**
+	 * Index of the message counter in a frame.
+	 */
+	public final static int INDEX_COUNTER = 3;
+
+	/**
+	 * Index of the payload in a frame.
+	 */
+	public final static int INDEX_PAYLOAD = 4;
+
+	/**
+	 * Encode a command.
+	 * 
+	 * @param command
+	 *            command
+	 * @param counter
+	 *            message counter
+	 * @param payload
+	 *            payload
+	 * @return a complete 32 bytes frame
+	 */
+	public static byte[] encode(final CommandEnum command, final int counter, final byte[] payload) {
+
+		byte[] frame = new byte[FRAME_LENGTH];
+		start(frame, command, counter);
+		System.arraycopy(payload, 0, frame, INDEX_PAYLOAD, payload.length);
+		seal(frame);
+		return frame;
+	}
+
+	/**
+	 * Write the header of a command in a frame filled with zeros.
+	 * 
+	 * @param frame
+	 *            a 32 bytes frame
+	 * @param command
+	 *            command
+	 * @param counter
+	 *            message counter
+	 * @return the frame
+	 */
+	public static byte[] start(final byte[] frame, final CommandEnum command, final int counter) {
+
+		frame[0] = PREFIX_GENERIC;
+		frame[1] = command.getPayloadSize();
+		frame[INDEX_COMMAND] = command.getCommandId();
+		frame[INDEX_COUNTER] = (byte) counter;
+		return frame;
+	}
+
+	/**
+	 * Write a color at an index of a frame.
+	 * 
+	 * @param frame
+	 *            frame
+	 * @param index
+	 *            index of the red component
+	 * @param color
+	 *            color
+	 */
+	public static void putColor(final byte[] frame, final int index, final Color color) {
+
+		frame[index] = (byte) color.getRed();
+		frame[index + 1] = (byte) color.getGreen();
+		frame[index + 2] = (byte) color.getBlue();
+	}
+
+	/**
+	 * Write the checksum after the payload of a frame.
+	 * 
+	 * @param frame
+	 *            a frame with its header and payload
+	 * @return the frame
+	 */
+	public static byte[] seal(final byte[] frame) {
+
+		// The payload size counts the command id and the message counter
+		int checksumIndex = frame[1] + 2;
+		frame[checksumIndex] = checksum(frame, checksumIndex);
+		return frame;
+	}
+
+	/**
+	 * Calculate checksum for a command.
+	 * 
+	 * @param command
+	 *            command
+	 * @return the checksum
+	 */
+	public static byte calculateChecksum(final byte[] command) {
+
+		return checksum(command, command.length);
+	}
+
+	/**
+	 * Calculate the checksum of the first bytes of a frame. The sum is on a
+	 * byte, so it wraps around without modulo.
+	 * 
+	 * @param frame
+	 *            frame
+	 * @param length
+	 *            number of bytes
+	 * @return the checksum
+	 */
+	private static byte checksum(final byte[] frame, final int length) {
+
+		byte checksum = 0;
+		for (int i = 0; i < length; i++) {
+			checksum += frame[i];
+		}
+		return checksum;
+	}
+
+	/**
+	 * Merge single pad frames of the same command (SWITCH_PAD, FADE_PAD or
+	 * FLASH_PAD), each for a different pad, into one multi pads frame.<br>
+	 * The message counter of the first frame is used for the merged frame.
+	 * 
+	 * @param command
+	 *            the single pad command of the frames
+	 * @param frames
+	 *            frames to merge
+	 * @param count
+	 *            number of frames to merge
+	 * @param target
+	 *            a 32 bytes frame filled with zeros, receiving the multi pads
+	 *            frame
+	 * @return the multi pads frame
+	 */
+	public static byte[] merge(final CommandEnum command, final byte[][] frames, final int count,
+			final byte[] target) {
+
+		start(target, command.getMultiPadCommand(), frames[0][INDEX_COUNTER]);
+		// The multi pads payload has a slot for each pad (center, left,
+		// right): a flag followed by the parameters of the single command.
+		int slotSize = command.getPayloadSize() - 2;
+		for (int i = 0; i < count; i++) {
+			byte[] frame = frames[i];
+			int offset = INDEX_PAYLOAD + (frame[INDEX_PAYLOAD] - 1) * slotSize;
+			target[offset] = 1;
+			System.arraycopy(frame, INDEX_PAYLOAD + 1, target, offset + 1, slotSize - 1);
+		}
+		return seal(target);
+	}
+
+}
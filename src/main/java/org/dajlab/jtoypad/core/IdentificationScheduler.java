@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Scheduler of the identification of the tags put on a toypad.<br>
+ * When several tags are put at once, their identification requests (READ,
+ * then LST_MODEL if needed) are pipelined: up to a window of
+ * identifications are in flight together, the others wait for a free place.
+ * Each tag event is fired as soon as its own identification completes,
+ * whatever the order of the others.<br>
+ * The events of a tag index (the slot of the tag on the toypad) keep their
+ * order: the events received for an index while it's being identified are
+ * deferred until its identification completes.<br>
+ * Used only by the thread of the event loop.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class IdentificationScheduler {
+
+	/**
+	 * Default number of identifications in flight.
+	 */
+	public final static int DEFAULT_WINDOW = 4;
+
+	/**
+	 * Number of tag indexes.
+	 */
+	private final static int INDEXES = 256;
+
+	/**
+	 * Toypad.
+	 */
+	private final ToyPadImpl toyPad;
+
+	/**
+	 * Maximum number of identifications in flight.
+	 */
+	private volatile int window = DEFAULT_WINDOW;
+
+	/**
+	 * Number of identifications in flight.
+	 */
+	private int inFlight;
+
+	/**
+	 * Highest number of identifications in flight.
+	 */
+	private volatile int maxInFlight;
+
+	/**
+	 * Tags waiting for a place in the window.
+	 */
+	private final ArrayDeque<TagEvent> waiting = new ArrayDeque<>();
+
+	/**
+	 * Events received for an index being identified, in order.
+	 */
+	private final ArrayDeque<TagEvent> deferred = new ArrayDeque<>();
+
+	/**
+	 * True for the indexes being identified, or waiting to be.
+	 */
+	private final boolean[] busy = new boolean[INDEXES];
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param toyPad
+	 *            toypad
+	 */
+	public IdentificationScheduler(final ToyPadImpl toyPad) {
+		this.toyPad = toyPad;
+	}
+
+	/**
+	 * A tag has been put on the toypad.
+	 * 
+	 * @param tagEvent
+	 *            ADDED event, with the UID of the tag
+	 */
+	public void added(final TagEvent tagEvent) {
+
+		int index = tagEvent.getIndex() & 0xff;
+		if (busy[index]) {
+			deferred.add(tagEvent);
+		} else if (!toyPad.identifyKnownTag(tagEvent)) {
+			busy[index] = true;
+			if (inFlight < window) {
+				start(tagEvent);
+			} else {
+				waiting.add(tagEvent);
+			}
+		}
+	}
+
+	/**
+	 * A tag has been removed from the toypad.
+	 * 
+	 * @param tagEvent
+	 *            REMOVED event
+	 */
+	public void removed(final TagEvent tagEvent) {
+
+		if (busy[tagEvent.getIndex() & 0xff]) {
+			deferred.add(tagEvent);
+		} else {
+			toyPad.fireTagEvent(tagEvent);
+		}
+	}
+
+	/**
+	 * The identification of a tag has completed, and its event has been
+	 * fired: start the next identification, and release the events deferred
+	 * for its index.
+	 * 
+	 * @param tagEvent
+	 *            ADDED event
+	 */
+	public void completed(final TagEvent tagEvent) {
+
+		int index = tagEvent.getIndex() & 0xff;
+		if (!busy[index]) {
+			// Reset since started
+			return;
+		}
+		inFlight--;
+		busy[index] = false;
+		while (inFlight < window && !waiting.isEmpty()) {
+			start(waiting.poll());
+		}
+		TagEvent event;
+		while (!busy[index] && (event = pollDeferred(index)) != null) {
+			if (event.getAction() == ActionEnum.ADDED) {
+				added(event);
+			} else {
+				removed(event);
+			}
+		}
+	}
+
+	/**
+	 * Remove the first event deferred for an index. The events are released
+	 * one at a time, as an identification may complete while releasing them.
+	 * 
+	 * @param index
+	 *            tag index
+	 * @return the event, null if none
+	 */
+	private TagEvent pollDeferred(final int index) {
+
+		Iterator<TagEvent> it = deferred.iterator();
+		while (it.hasNext()) {
+			TagEvent event = it.next();
+			if ((event.getIndex() & 0xff) == index) {
+				it.remove();
+				return event;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Start the identification of a tag.
+	 * 
+	 * @param tagEvent
+	 *            ADDED event
+	 */
+	private void start(final TagEvent tagEvent) {
+
+		inFlight++;
+		maxInFlight = Math.max(maxInFlight, inFlight);
+		toyPad.readTag(tagEvent);
+	}
+
+	/**
+	 * Forget the identifications in flight, whose responses will never come
+	 * (toypad reopened).
+	 */
+	public void reset() {
+
+		inFlight = 0;
+		waiting.clear();
+		deferred.clear();
+		for (int i = 0; i < INDEXES; i++) {
+			busy[i] = false;
+		}
+	}
+
+	/**
+	 * @return the maximum number of identifications in flight
+	 */
+	public final int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param window
+	 *            the maximum number of identifications in flight, 1 to
+	 *            identify the tags one at a time
+	 */
+	public final void setWindow(final int window) {
+		this.window = Math.max(1, window);
+	}
+
+	/**
+	 * @return the highest number of identifications in flight
+	 */
+	public final int getMaxInFlight() {
+		return maxInFlight;
+	}
+}
@@ -46,6 +46,36 @@ public class JToypadConstants {
 	 */
 	public static String ERR_USB_SEND = "jtoypad.err005";
 
+	/**
+	 * Error outbound queue full.
+	 */
+	public static String ERR_QUEUE_FULL = "jtoypad.err006";
+
+	/**
+	 * Error toypad closed.
+	 */
+	public static String ERR_CLOSED = "jtoypad.err007";
+
+	/**
+	 * Error no response from the toypad.
+	 */
+	public static String ERR_TIMEOUT = "jtoypad.err008";
+
+	/**
+	 * Error tag events subscriber too slow.
+	 */
+	public static String ERR_SUBSCRIBER_OVERFLOW = "jtoypad.err009";
+
+	/**
+	 * Error tag store file.
+	 */
+	public static String ERR_TAG_STORE = "jtoypad.err010";
+
+	/**
+	 * Error tag catalog.
+	 */
+	public static String ERR_TAG_CATALOG = "jtoypad.err011";
+
 	/**
 	 * Path to the tab icon.
 	 */
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Batch of lighting commands, sent at once.<br>
+ * The commands are collected for each pad (the last command of a pad wins),
+ * then encoded in the fewest frames: one SWITCH_PADS frame with the colors
+ * and the starting colors of the flashes and fades, one FLASH_PADS frame, one
+ * FADE_PADS frame, and a FADE_PAD_RANDOM frame for each random pad. The frames
+ * are written in the same submission, so there is no visible skew between
+ * the pads, and the batch has a single completion.<br>
+ * The batch is cleared once sent, so it can be reused. It's not thread safe.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LightingBatch {
+
+	/**
+	 * Pads, in the order of their slot in the multi pads frames.
+	 */
+	final static PadEnum[] PADS = new PadEnum[] { PadEnum.CENTER, PadEnum.LEFT, PadEnum.RIGHT };
+
+	/**
+	 * Toypad.
+	 */
+	private final ToyPadImpl toyPad;
+
+	/**
+	 * Color of each pad, or starting color of its flash or fade.
+	 */
+	private final Color[] colors = new Color[PADS.length];
+
+	/**
+	 * Flash of each pad.
+	 */
+	private final FlashColor[] flashColors = new FlashColor[PADS.length];
+
+	/**
+	 * Fade of each pad.
+	 */
+	private final FadeColor[] fadeColors = new FadeColor[PADS.length];
+
+	/**
+	 * True for each pad fading between random colors.
+	 */
+	private final boolean[] randoms = new boolean[PADS.length];
+
+	/**
+	 * Pulse time of each random fade.
+	 */
+	private final int[] randomPulseTimes = new int[PADS.length];
+
+	/**
+	 * Pulse count of each random fade.
+	 */
+	private final int[] randomPulseCounts = new int[PADS.length];
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param toyPad
+	 *            toypad
+	 */
+	public LightingBatch(final ToyPadImpl toyPad) {
+		this.toyPad = toyPad;
+	}
+
+	/**
+	 * Turn off all the pads.
+	 * 
+	 * @return this batch
+	 */
+	public LightingBatch turnOffPads() {
+
+		return switchPad(PadEnum.ALL, Color.BLACK);
+	}
+
+	/**
+	 * Switch a pad.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param color
+	 *            color
+	 * @return this batch
+	 */
+	public LightingBatch switchPad(final PadEnum pad, final Color color) {
+
+		for (int slot : slots(pad)) {
+			clear(slot);
+			colors[slot] = color;
+		}
+		return this;
+	}
+
+	/**
+	 * Flash a pad.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param flashColor
+	 *            a flashcolor which describes the properties of the flash
+	 * @return this batch
+	 */
+	public LightingBatch flashPad(final PadEnum pad, final FlashColor flashColor) {
+
+		for (int slot : slots(pad)) {
+			clear(slot);
+			colors[slot] = flashColor.getColor2();
+			flashColors[slot] = flashColor;
+		}
+		return this;
+	}
+
+	/**
+	 * Fade a pad.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param fadeColor
+	 *            a fadeColor which describes the properties of the fade
+	 * @return this batch
+	 */
+	public LightingBatch fadePad(final PadEnum pad, final FadeColor fadeColor) {
+
+		for (int slot : slots(pad)) {
+			clear(slot);
+			colors[slot] = fadeColor.getFromColor();
+			fadeColors[slot] = fadeColor;
+		}
+		return this;
+	}
+
+	/**
+	 * Fade once from a color to another color, the fade lasts the given time.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param fromColor
+	 *            color
+	 * @param toColor
+	 *            color
+	 * @param time
+	 *            time from 0 to 255.
+	 * @return this batch
+	 */
+	public LightingBatch fadePad(final PadEnum pad, final Color fromColor, final Color toColor, final int time) {
+
+		return fadePad(pad, new FadeColor(fromColor, toColor, time, 1));
+	}
+
+	/**
+	 * Fade between random colors (Colors are selected by the hardware).
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param pulseTime
+	 *            time. If 0, then random time by the hardware
+	 * @param pulseCount
+	 *            count. Use FadeColor.FADE_FOR_EVER for infinite time.
+	 * @return this batch
+	 */
+	public LightingBatch fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount) {
+
+		for (int slot : slots(pad)) {
+			clear(slot);
+			randoms[slot] = true;
+			randomPulseTimes[slot] = pulseTime;
+			randomPulseCounts[slot] = pulseCount;
+		}
+		return this;
+	}
+
+	/**
+	 * Send the batch.
+	 * 
+	 * @return a future completed when all the frames of the batch have been
+	 *         written
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	public Future<Void> send() throws ToyPadException {
+
+		OutboundMessage message = toyPad.batchMessage(this);
+		clear();
+		return toyPad.send(message);
+	}
+
+	/**
+	 * Send the batch and wait for its acknowledgement by the toypad. Never
+	 * throws.
+	 * 
+	 * @return a future completed when the toypad has acknowledged all the
+	 *         frames of the batch, or failed
+	 */
+	public CompletableFuture<Void> sendAcknowledged() {
+
+		try {
+			OutboundMessage message = toyPad.batchMessage(this);
+			clear();
+			return toyPad.sendAcknowledged(message);
+		} catch (ToyPadException e) {
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	/**
+	 * Remove all the commands.
+	 */
+	public void clear() {
+
+		for (int slot = 0; slot < PADS.length; slot++) {
+			clear(slot);
+		}
+	}
+
+	/**
+	 * Remove the command of a pad.
+	 * 
+	 * @param slot
+	 *            slot of the pad
+	 */
+	private void clear(final int slot) {
+
+		colors[slot] = null;
+		flashColors[slot] = null;
+		fadeColors[slot] = null;
+		randoms[slot] = false;
+	}
+
+	/**
+	 * Return the slots of a pad.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @return the slots
+	 */
+	private static int[] slots(final PadEnum pad) {
+
+		if (pad == PadEnum.ALL) {
+			return new int[] { 0, 1, 2 };
+		}
+		return new int[] { slot(pad) };
+	}
+
+	/**
+	 * Return the slot of a pad in the multi pads frames.
+	 * 
+	 * @param pad
+	 *            pad, not ALL
+	 * @return the slot
+	 */
+	static int slot(final PadEnum pad) {
+		return pad.getValue() - 1;
+	}
+
+	/**
+	 * Check if a pad has a command.
+	 * 
+	 * @param slot
+	 *            slot of the pad
+	 * @return true if the pad has a command
+	 */
+	boolean hasCommand(final int slot) {
+		return colors[slot] != null || flashColors[slot] != null || fadeColors[slot] != null || randoms[slot];
+	}
+
+	/**
+	 * Check if the command of a pad doesn't depend on its previous state.
+	 * 
+	 * @param slot
+	 *            slot of the pad
+	 * @return true if the state of the pad is absolute
+	 */
+	boolean isAbsolute(final int slot) {
+		return colors[slot] != null || randoms[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            slot of the pad
+	 * @return the color of the pad, or the starting color of its flash or
+	 *         fade
+	 */
+	Color getColor(final int slot) {
+		return colors[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            slot of the pad
+	 * @return the flash of the pad
+	 */
+	FlashColor getFlashColor(final int slot) {
+		return flashColors[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            slot of the pad
+	 * @return the fade of the pad
+	 */
+	FadeColor getFadeColor(final int slot) {
+		return fadeColors[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            slot of the pad
+	 * @return true if the pad fades between random colors
+	 */
+	boolean isRandom(final int slot) {
+		return randoms[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            slot of the pad
+	 * @return the pulse time of the random fade
+	 */
+	int getRandomPulseTime(final int slot) {
+		return randomPulseTimes[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            slot of the pad
+	 * @return the pulse count of the random fade
+	 */
+	int getRandomPulseCount(final int slot) {
+		return randomPulseCounts[slot];
+	}
+
+	/**
+	 * @return true if the batch has no command
+	 */
+	public boolean isEmpty() {
+
+		for (int slot = 0; slot < PADS.length; slot++) {
+			if (hasCommand(slot)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
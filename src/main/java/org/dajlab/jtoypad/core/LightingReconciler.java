@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reconciler of the lighting of a toypad with a declared state.<br>
+ * The application declares the state each pad must show (a solid color, a
+ * flash, a fade or a random fade), and the reconciler sends the commands
+ * making the pads converge to it: only the pads whose lighting shadow differs
+ * from their desired state are written, in a single batch. The
+ * reconciliation runs on the event loop of the toypad; the states declared
+ * while it's pending replace each other, so only the last one is sent.<br>
+ * When the pads become unknown (write error, toypad reopened), the desired
+ * state is applied again after a delay, without the application replaying
+ * its commands. A pad without desired state is left to the imperative
+ * commands; an imperative command on a managed pad is overridden at the
+ * next reconciliation.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LightingReconciler {
+
+	/**
+	 * Default delay before applying the desired state again after the pads
+	 * have become unknown (ms).
+	 */
+	public final static long DEFAULT_RETRY_DELAY = 100;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(LightingReconciler.class);
+
+	/**
+	 * Toypad.
+	 */
+	private final ToyPadImpl toyPad;
+
+	/**
+	 * Desired states of the pads, in the order of their slot in the multi
+	 * pads frames. Null for a pad not managed.
+	 */
+	private final PadState[] desiredStates = new PadState[LightingBatch.PADS.length];
+
+	/**
+	 * True if a reconciliation is waiting to run on the event loop.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	/**
+	 * Delay before applying the desired state again after the pads have
+	 * become unknown (ms).
+	 */
+	private volatile long retryDelay = DEFAULT_RETRY_DELAY;
+
+	/**
+	 * Number of reconciliations which have sent commands.
+	 */
+	private final AtomicLong sentCount = new AtomicLong();
+
+	/**
+	 * Reconciliation task.
+	 */
+	private final Runnable reconcileTask = new Runnable() {
+		@Override
+		public void run() {
+			reconcile();
+		}
+	};
+
+	/**
+	 * Scheduling task, run after the retry delay.
+	 */
+	private final Runnable scheduleTask = new Runnable() {
+		@Override
+		public void run() {
+			schedule();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param toyPad
+	 *            toypad
+	 */
+	public LightingReconciler(final ToyPadImpl toyPad) {
+		this.toyPad = toyPad;
+	}
+
+	/**
+	 * Declare the state a pad must show.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param state
+	 *            desired state, not UNKNOWN; null to stop managing the pad
+	 */
+	public void setDesiredState(final PadEnum pad, final PadState state) {
+
+		if (state != null && state.getType() == LightingEnum.UNKNOWN) {
+			throw new IllegalArgumentException("The desired state of a pad can't be unknown");
+		}
+		synchronized (desiredStates) {
+			for (int slot = 0; slot < desiredStates.length; slot++) {
+				if ((LightingBatch.PADS[slot].getMask() & pad.getMask()) != 0) {
+					desiredStates[slot] = state;
+				}
+			}
+		}
+		if (state != null) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Declare the solid color a pad must show.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param color
+	 *            color
+	 */
+	public void setDesiredColor(final PadEnum pad, final Color color) {
+		setDesiredState(pad, new PadState(color));
+	}
+
+	/**
+	 * Return the desired state of a pad.
+	 * 
+	 * @param pad
+	 *            pad, not ALL
+	 * @return the desired state, null if the pad is not managed
+	 */
+	public PadState getDesiredState(final PadEnum pad) {
+
+		synchronized (desiredStates) {
+			return desiredStates[LightingBatch.slot(pad)];
+		}
+	}
+
+	/**
+	 * Schedule a reconciliation on the event loop, unless one is already
+	 * pending. Nothing is done while the toypad is closed: the toypad
+	 * schedules a reconciliation when it's opened.
+	 */
+	void schedule() {
+
+		if (scheduled.compareAndSet(false, true) && !toyPad.execute(reconcileTask)) {
+			scheduled.set(false);
+		}
+	}
+
+	/**
+	 * The pads have become unknown: schedule a reconciliation after the retry
+	 * delay, so that a failing toypad is not written in a loop.
+	 */
+	void retry() {
+
+		if (isManaging()) {
+			toyPad.schedule(scheduleTask, retryDelay);
+		}
+	}
+
+	/**
+	 * @return true if at least one pad has a desired state
+	 */
+	private boolean isManaging() {
+
+		synchronized (desiredStates) {
+			for (PadState state : desiredStates) {
+				if (state != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Send the commands making the pads converge to their desired state. Run
+	 * on the event loop.
+	 */
+	private void reconcile() {
+
+		// Reset first: a state declared from now on needs a new run
+		scheduled.set(false);
+		PadState[] targets;
+		synchronized (desiredStates) {
+			targets = desiredStates.clone();
+		}
+		LightingShadow shadow = toyPad.getLightingShadow();
+		try {
+			LightingBatch batch = toyPad.newBatch();
+			boolean changed = false;
+			for (int slot = 0; slot < targets.length; slot++) {
+				PadEnum pad = LightingBatch.PADS[slot];
+				PadState target = targets[slot];
+				if (target == null || target.equals(shadow.getState(pad))) {
+					continue;
+				}
+				changed = true;
+				switch (target.getType()) {
+				case SOLID:
+					batch.switchPad(pad, target.getColor());
+					break;
+				case FLASH:
+					batch.flashPad(pad, target.getFlashColor());
+					break;
+				case FADE:
+					batch.fadePad(pad, target.getFadeColor());
+					break;
+				case RANDOM_FADE:
+					batch.fadePadRandom(pad, target.getPulseTime(), target.getPulseCount());
+					break;
+				default:
+					break;
+				}
+			}
+			if (changed) {
+				batch.send();
+				sentCount.incrementAndGet();
+			}
+		} catch (ToyPadException e) {
+			// The pads have been invalidated, the reconciliation is retried
+			logger.error("Error while reconciling the lighting of [{}]", toyPad.getIdentifiant());
+		}
+	}
+
+	/**
+	 * @return the delay before applying the desired state again after the
+	 *         pads have become unknown (ms)
+	 */
+	public final long getRetryDelay() {
+		return retryDelay;
+	}
+
+	/**
+	 * @param retryDelay
+	 *            the delay before applying the desired state again after the
+	 *            pads have become unknown (ms)
+	 */
+	public final void setRetryDelay(final long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * @return the number of reconciliations which have sent commands
+	 */
+	public final long getSentCount() {
+		return sentCount.get();
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shadow of the lighting state of the pads of a toypad, updated by each
+ * lighting command. It's used to skip the writes which would not change the
+ * state of the pads: a pad switched to the color it already shows, or the
+ * SWITCH_PAD before a flash or a fade from the color the pad already shows.
+ * <br>
+ * The lighting commands are checked against the shadow and applied to it
+ * while holding its lock, which is released before their frames are built
+ * and submitted. Each change gets a sequence number: a message reaching the
+ * event loop after a newer message for the same pads makes them end in an
+ * older state, so these pads become UNKNOWN. When the frames of a command
+ * can't be written, its pads become UNKNOWN too. The shadow can be read back from the toypad with
+ * ToyPad.resyncLighting().
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LightingShadow {
+
+	/**
+	 * States of the pads, in the order of their slot in the multi pads
+	 * frames.
+	 */
+	private final PadState[] states = new PadState[LightingBatch.PADS.length];
+
+	/**
+	 * Sequence number of the last change.
+	 */
+	private long sequence;
+
+	/**
+	 * Sequence number of the last message queued for each pad.
+	 */
+	private final long[] queuedSequences = new long[LightingBatch.PADS.length];
+
+	/**
+	 * Number of writes skipped.
+	 */
+	private final AtomicLong suppressedCount = new AtomicLong();
+
+	/**
+	 * Called when pads become unknown, may be null.
+	 */
+	private volatile Runnable invalidationListener;
+
+	/**
+	 * Constructor.
+	 */
+	public LightingShadow() {
+		invalidate(PadEnum.ALL.getMask());
+	}
+
+	/**
+	 * Return the state of a pad.
+	 * 
+	 * @param pad
+	 *            pad, not ALL
+	 * @return the state
+	 */
+	public synchronized PadState getState(final PadEnum pad) {
+		return states[LightingBatch.slot(pad)];
+	}
+
+	/**
+	 * Set the state of a pad.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param state
+	 *            state
+	 */
+	public synchronized void setState(final PadEnum pad, final PadState state) {
+
+		for (int slot = 0; slot < states.length; slot++) {
+			if ((LightingBatch.PADS[slot].getMask() & pad.getMask()) != 0) {
+				states[slot] = state;
+			}
+		}
+	}
+
+	/**
+	 * Check if a pad shows a solid color.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param color
+	 *            color
+	 * @return true if the pad (all the pads for ALL) shows this color
+	 */
+	public synchronized boolean isSolid(final PadEnum pad, final Color color) {
+
+		for (int slot = 0; slot < states.length; slot++) {
+			if ((LightingBatch.PADS[slot].getMask() & pad.getMask()) != 0 && !states[slot].isSolid(color)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forget the state of pads.
+	 * 
+	 * @param padMask
+	 *            mask of the pads
+	 */
+	public synchronized void invalidate(final int padMask) {
+
+		for (int slot = 0; slot < states.length; slot++) {
+			if ((LightingBatch.PADS[slot].getMask() & padMask) != 0) {
+				states[slot] = PadState.UNKNOWN;
+			}
+		}
+		Runnable listener = invalidationListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Return the sequence number of the change just applied, for its message.
+	 * Must be called with the lock held since the change.
+	 * 
+	 * @return the sequence number
+	 */
+	public synchronized long nextSequence() {
+		return ++sequence;
+	}
+
+	/**
+	 * Called by the event loop when a lighting message is queued, in the
+	 * order of the writes. The pads for which a newer message has been queued
+	 * before this one become UNKNOWN.
+	 * 
+	 * @param padMask
+	 *            mask of the pads changed by the message
+	 * @param messageSequence
+	 *            sequence number of the message
+	 * @return the mask of the pads which became UNKNOWN
+	 */
+	public synchronized int queued(final int padMask, final long messageSequence) {
+
+		int overtaken = 0;
+		for (int slot = 0; slot < states.length; slot++) {
+			int mask = LightingBatch.PADS[slot].getMask();
+			if ((mask & padMask) == 0) {
+				continue;
+			}
+			if (queuedSequences[slot] > messageSequence) {
+				overtaken |= mask;
+			} else {
+				queuedSequences[slot] = messageSequence;
+			}
+		}
+		if (overtaken != 0) {
+			invalidate(overtaken);
+		}
+		return overtaken;
+	}
+
+	/**
+	 * @param invalidationListener
+	 *            called when pads become unknown, with the lock of the shadow
+	 *            held: it must not block
+	 */
+	public final void setInvalidationListener(final Runnable invalidationListener) {
+		this.invalidationListener = invalidationListener;
+	}
+
+	/**
+	 * Count a write skipped.
+	 */
+	void suppressed() {
+		suppressedCount.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of writes skipped because they would not change the
+	 *         state of the pads
+	 */
+	public final long getSuppressedCount() {
+		return suppressedCount.get();
+	}
+}
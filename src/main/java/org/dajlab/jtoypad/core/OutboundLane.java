@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of the outbound messages of one priority, with its metrics.<br>
+ * The queue is used only by the thread of the event loop; the metrics can be
+ * read from any thread.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class OutboundLane {
+
+	/**
+	 * Priority of the lane.
+	 */
+	private final PriorityEnum priority;
+
+	/**
+	 * Capacity of the lane.
+	 */
+	private final int capacity;
+
+	/**
+	 * Messages waiting to be written.
+	 */
+	private final ArrayDeque<OutboundMessage> messages;
+
+	/**
+	 * Number of messages waiting to be written.
+	 */
+	private volatile int queueSize;
+
+	/**
+	 * Number of messages taken by the event loop.
+	 */
+	private volatile long takenCount;
+
+	/**
+	 * Sum of the wait times (ns).
+	 */
+	private volatile long totalWaitTime;
+
+	/**
+	 * Max wait time (ns).
+	 */
+	private volatile long maxWaitTime;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param priority
+	 *            priority
+	 * @param capacity
+	 *            capacity
+	 */
+	public OutboundLane(final PriorityEnum priority, final int capacity) {
+		this.priority = priority;
+		this.capacity = capacity;
+		this.messages = new ArrayDeque<>(capacity);
+	}
+
+	/**
+	 * @return true if the lane is full
+	 */
+	boolean isFull() {
+		return messages.size() >= capacity;
+	}
+
+	/**
+	 * @return true if the lane is empty
+	 */
+	boolean isEmpty() {
+		return messages.isEmpty();
+	}
+
+	/**
+	 * Add a message.
+	 * 
+	 * @param message
+	 *            message
+	 */
+	void add(final OutboundMessage message) {
+
+		messages.add(message);
+		queueSize = messages.size();
+	}
+
+	/**
+	 * @return the first message, not removed, or null if empty
+	 */
+	OutboundMessage peek() {
+		return messages.peek();
+	}
+
+	/**
+	 * Take the first message and record its wait time.
+	 * 
+	 * @return the first message or null if empty
+	 */
+	OutboundMessage poll() {
+
+		OutboundMessage message = messages.poll();
+		if (message != null) {
+			queueSize = messages.size();
+			long waitTime = System.nanoTime() - message.getEnqueueTime();
+			totalWaitTime += waitTime;
+			if (waitTime > maxWaitTime) {
+				maxWaitTime = waitTime;
+			}
+			takenCount++;
+		}
+		return message;
+	}
+
+	/**
+	 * @return an iterator on the waiting messages, supporting removal
+	 */
+	Iterator<OutboundMessage> iterator() {
+		return messages.iterator();
+	}
+
+	/**
+	 * Update the size after a removal through the iterator.
+	 */
+	void updateSize() {
+		queueSize = messages.size();
+	}
+
+	/**
+	 * @return the priority
+	 */
+	public final PriorityEnum getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public final int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * @return the number of messages taken by the event loop
+	 */
+	public final long getTakenCount() {
+		return takenCount;
+	}
+
+	/**
+	 * @return the average time a message waits in the lane (microseconds)
+	 */
+	public final long getAverageWaitTime() {
+
+		long count = takenCount;
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitTime / count);
+	}
+
+	/**
+	 * @return the max time a message waited in the lane (microseconds)
+	 */
+	public final long getMaxWaitTime() {
+		return TimeUnit.NANOSECONDS.toMicros(maxWaitTime);
+	}
+
+	/**
+	 * Reset the wait time metrics.
+	 */
+	public final void resetMetrics() {
+
+		takenCount = 0;
+		totalWaitTime = 0;
+		maxWaitTime = 0;
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A message waiting to be written to the toypad.<br>
+ * A message holds the frames of one operation (e.g. a flash is a SWITCH_PAD
+ * followed by a FLASH_PAD) and, for lighting operations, the mask of the
+ * pads it changes.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class OutboundMessage {
+
+	/**
+	 * The full 32 bytes frames.
+	 */
+	private final byte[][] frames;
+
+	/**
+	 * Mask of the pads changed by this message (see PadEnum.getMask()), 0 if
+	 * it's not a lighting message.
+	 */
+	private final int padMask;
+
+	/**
+	 * True if the final state of the pads doesn't depend on their previous
+	 * state.
+	 */
+	private final boolean absolute;
+
+	/**
+	 * Priority of the message.
+	 */
+	private final PriorityEnum priority;
+
+	/**
+	 * Time the message has been queued (ns).
+	 */
+	private long enqueueTime;
+
+	/**
+	 * Sequence number of the change of the lighting shadow made by this
+	 * message, 0 if none.
+	 */
+	private long sequence;
+
+	/**
+	 * Completed when the frames have been written to the toypad.
+	 */
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+	/**
+	 * Completed when the toypad has acknowledged the frames, null if the
+	 * acknowledgement is not awaited.
+	 */
+	private CompletableFuture<Void> acknowledgement;
+
+	/**
+	 * Last frame written for this message, whose message counter is
+	 * acknowledged by the toypad once all the frames are handled. It may be a
+	 * merged frame.
+	 */
+	private byte[] lastFrame;
+
+	/**
+	 * Messages replaced by this one before being sent.
+	 */
+	private List<OutboundMessage> superseded;
+
+	/**
+	 * Constructor for a protocol message, which is never coalesced.
+	 * 
+	 * @param frames
+	 *            the full 32 bytes frames
+	 */
+	public OutboundMessage(final byte[]... frames) {
+		this.padMask = 0;
+		this.absolute = false;
+		this.priority = PriorityEnum.PROTOCOL;
+		this.frames = frames;
+	}
+
+	/**
+	 * Constructor for a lighting message.
+	 * 
+	 * @param padMask
+	 *            mask of the pads changed by the message
+	 * @param absolute
+	 *            true if the final state of the pads doesn't depend on their
+	 *            previous state
+	 * @param frames
+	 *            the full 32 bytes frames
+	 */
+	public OutboundMessage(final int padMask, final boolean absolute, final byte[]... frames) {
+		this.padMask = padMask;
+		this.absolute = absolute;
+		this.priority = PriorityEnum.LIGHTING;
+		this.frames = frames;
+	}
+
+	/**
+	 * Check if this message makes a pending message useless: this message
+	 * must set the state of all the pads changed by the other one.
+	 * 
+	 * @param other
+	 *            a pending message
+	 * @return true if the other message can be dropped
+	 */
+	public final boolean covers(final OutboundMessage other) {
+
+		return absolute && other.padMask != 0 && (other.padMask & ~padMask) == 0;
+	}
+
+	/**
+	 * Register a message replaced by this one. The replaced message will be
+	 * completed with this one.
+	 * 
+	 * @param message
+	 *            replaced message
+	 */
+	public final void supersede(final OutboundMessage message) {
+
+		if (superseded == null) {
+			superseded = new ArrayList<>(1);
+		}
+		superseded.add(message);
+	}
+
+	/**
+	 * Complete the message, and the messages it replaced.
+	 */
+	public final void complete() {
+
+		future.complete(null);
+		if (superseded != null) {
+			for (OutboundMessage message : superseded) {
+				message.complete();
+			}
+		}
+	}
+
+	/**
+	 * Complete the message with an error, and the messages it replaced.
+	 * 
+	 * @param error
+	 *            error
+	 */
+	public final void fail(final Throwable error) {
+
+		future.completeExceptionally(error);
+		if (acknowledgement != null) {
+			acknowledgement.completeExceptionally(error);
+		}
+		if (superseded != null) {
+			for (OutboundMessage message : superseded) {
+				message.fail(error);
+			}
+		}
+	}
+
+	/**
+	 * Await the acknowledgement of the frames by the toypad. Must be called
+	 * before the message is submitted.
+	 * 
+	 * @return a future completed when the toypad has acknowledged the frames
+	 */
+	public final CompletableFuture<Void> awaitAcknowledgement() {
+
+		if (acknowledgement == null) {
+			acknowledgement = new CompletableFuture<>();
+		}
+		return acknowledgement;
+	}
+
+	/**
+	 * Check if the acknowledgement of this message, or of a message replaced
+	 * by it, is awaited.
+	 * 
+	 * @return true if the acknowledgement is awaited
+	 */
+	public final boolean isAcknowledgementAwaited() {
+
+		if (acknowledgement != null) {
+			return true;
+		}
+		if (superseded != null) {
+			for (OutboundMessage message : superseded) {
+				if (message.isAcknowledgementAwaited()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The toypad has acknowledged the frames: complete the acknowledgement,
+	 * and the acknowledgements of the messages replaced by this one.
+	 */
+	public final void acknowledge() {
+
+		if (acknowledgement != null) {
+			acknowledgement.complete(null);
+		}
+		if (superseded != null) {
+			for (OutboundMessage message : superseded) {
+				message.acknowledge();
+			}
+		}
+	}
+
+	/**
+	 * The toypad has not acknowledged the frames: fail the acknowledgement,
+	 * and the acknowledgements of the messages replaced by this one.
+	 * 
+	 * @param error
+	 *            error
+	 */
+	public final void failAcknowledgement(final Throwable error) {
+
+		if (acknowledgement != null) {
+			acknowledgement.completeExceptionally(error);
+		}
+		if (superseded != null) {
+			for (OutboundMessage message : superseded) {
+				message.failAcknowledgement(error);
+			}
+		}
+	}
+
+	/**
+	 * @return the frames
+	 */
+	public final byte[][] getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return the padMask
+	 */
+	public final int getPadMask() {
+		return padMask;
+	}
+
+	/**
+	 * @return the absolute
+	 */
+	public final boolean isAbsolute() {
+		return absolute;
+	}
+
+	/**
+	 * @return the priority
+	 */
+	public final PriorityEnum getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return the enqueueTime
+	 */
+	public final long getEnqueueTime() {
+		return enqueueTime;
+	}
+
+	/**
+	 * @param enqueueTime
+	 *            the enqueueTime to set
+	 */
+	public final void setEnqueueTime(final long enqueueTime) {
+		this.enqueueTime = enqueueTime;
+	}
+
+	/**
+	 * @return the sequence number of the change of the lighting shadow made
+	 *         by this message, 0 if none
+	 */
+	public final long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @param sequence
+	 *            the sequence number of the change of the lighting shadow
+	 *            made by this message
+	 */
+	public final void setSequence(final long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @return the last frame written for this message
+	 */
+	public final byte[] getLastFrame() {
+		return lastFrame;
+	}
+
+	/**
+	 * @param lastFrame
+	 *            the last frame written for this message
+	 */
+	public final void setLastFrame(final byte[] lastFrame) {
+		this.lastFrame = lastFrame;
+	}
+
+	/**
+	 * @return the future
+	 */
+	public final CompletableFuture<Void> getFuture() {
+		return future;
+	}
+
+}
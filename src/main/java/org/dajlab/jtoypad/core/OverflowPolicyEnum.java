@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+/**
+ * What a subscription of tag events does when its subscriber doesn't request
+ * the events as fast as they come and its buffer is full.
+ * 
+ * @author Erik Amzallag
+ */
+public enum OverflowPolicyEnum {
+
+	/**
+	 * No event is lost: the subscription fails with an overflow error.
+	 */
+	BUFFER,
+	/**
+	 * The oldest buffered event is dropped.
+	 */
+	DROP_OLDEST,
+	/**
+	 * The oldest buffered event followed by a later event of the same tag on
+	 * the same pad is dropped, as only the latest event of a tag tells if it's
+	 * on the pad. If there is none, the oldest ADDED event is dropped: the
+	 * REMOVED events are kept, so that no tag is seen on a pad it has left.
+	 */
+	COALESCE_PER_PAD;
+
+}
@@ -60,6 +60,23 @@ public enum PadEnum {
 		return pad;
 	}
 
+	/**
+	 * Return the mask of the pad, one bit per physical pad. The mask of ALL
+	 * covers the three pads.
+	 * 
+	 * @return the mask
+	 */
+	public final int getMask() {
+
+		int mask;
+		if (this == ALL) {
+			mask = LEFT.getMask() | CENTER.getMask() | RIGHT.getMask();
+		} else {
+			mask = 1 << pad;
+		}
+		return mask;
+	}
+
 	/**
 	 * Find a pad from its address.
 	 * 
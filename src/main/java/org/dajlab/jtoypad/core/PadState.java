@@ -0,0 +1,291 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+/**
+ * Lighting state of a pad: a solid color, a flash, a fade or a random fade.
+ * <br>
+ * The state is immutable: the colors, flashes and fades (which are mutable)
+ * are copied, and two states are equal if they give the same commands.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public final class PadState {
+
+	/**
+	 * Unknown state.
+	 */
+	public final static PadState UNKNOWN = new PadState();
+
+	/**
+	 * No color.
+	 */
+	private final static int NO_COLOR = -1;
+
+	/**
+	 * Type of state.
+	 */
+	private final LightingEnum type;
+
+	/**
+	 * Solid color, color 1 of a flash or destination color of a fade (RGB).
+	 */
+	private final int color;
+
+	/**
+	 * Color 2 of a flash or starting color of a fade (RGB), NO_COLOR for the
+	 * previous color of the pad.
+	 */
+	private final int color2;
+
+	/**
+	 * Time for color 1 of a flash, or pulse time of a fade.
+	 */
+	private final int time1;
+
+	/**
+	 * Time for color 2 of a flash.
+	 */
+	private final int time2;
+
+	/**
+	 * Number of pulses.
+	 */
+	private final int pulseCount;
+
+	/**
+	 * Constructor of the unknown state.
+	 */
+	private PadState() {
+		this(LightingEnum.UNKNOWN, NO_COLOR, NO_COLOR, 0, 0, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param type
+	 *            type of state
+	 * @param color
+	 *            color (RGB)
+	 * @param color2
+	 *            color 2 (RGB)
+	 * @param time1
+	 *            time 1
+	 * @param time2
+	 *            time 2
+	 * @param pulseCount
+	 *            number of pulses
+	 */
+	private PadState(final LightingEnum type, final int color, final int color2, final int time1, final int time2,
+			final int pulseCount) {
+
+		this.type = type;
+		this.color = color;
+		this.color2 = color2;
+		this.time1 = time1;
+		this.time2 = time2;
+		this.pulseCount = pulseCount;
+	}
+
+	/**
+	 * Solid color.
+	 * 
+	 * @param color
+	 *            color
+	 */
+	public PadState(final Color color) {
+		this(LightingEnum.SOLID, rgb(color), NO_COLOR, 0, 0, 0);
+	}
+
+	/**
+	 * Flash.
+	 * 
+	 * @param flashColor
+	 *            flash
+	 */
+	public PadState(final FlashColor flashColor) {
+		this(LightingEnum.FLASH, rgb(flashColor.getColor1()), rgb(flashColor.getColor2()),
+				flashColor.getTimeForColor1(), flashColor.getTimeForColor2(), flashColor.getPulseCount());
+	}
+
+	/**
+	 * Fade.
+	 * 
+	 * @param fadeColor
+	 *            fade
+	 */
+	public PadState(final FadeColor fadeColor) {
+		this(LightingEnum.FADE, rgb(fadeColor.getToColor()), rgb(fadeColor.getFromColor()),
+				fadeColor.getPulseTime(), 0, fadeColor.getPulseCount());
+	}
+
+	/**
+	 * Fade between random colors.
+	 * 
+	 * @param pulseTime
+	 *            time, 0 for a random time
+	 * @param pulseCount
+	 *            count
+	 */
+	public PadState(final int pulseTime, final int pulseCount) {
+		this(LightingEnum.RANDOM_FADE, NO_COLOR, NO_COLOR, pulseTime, 0, pulseCount);
+	}
+
+	/**
+	 * Pack a color.
+	 * 
+	 * @param color
+	 *            color, may be null
+	 * @return the RGB value, NO_COLOR if null
+	 */
+	private static int rgb(final Color color) {
+
+		if (color == null) {
+			return NO_COLOR;
+		}
+		return (color.getRed() & 0xff) << 16 | (color.getGreen() & 0xff) << 8 | color.getBlue() & 0xff;
+	}
+
+	/**
+	 * Unpack a color.
+	 * 
+	 * @param rgb
+	 *            RGB value
+	 * @return the color, null if NO_COLOR
+	 */
+	private static Color color(final int rgb) {
+
+		if (rgb == NO_COLOR) {
+			return null;
+		}
+		return new Color(rgb >> 16 & 0xff, rgb >> 8 & 0xff, rgb & 0xff);
+	}
+
+	/**
+	 * Check if the pad shows a solid color.
+	 * 
+	 * @param solidColor
+	 *            color
+	 * @return true if the state is this solid color
+	 */
+	public boolean isSolid(final Color solidColor) {
+		return type == LightingEnum.SOLID && solidColor != null && color == rgb(solidColor);
+	}
+
+	/**
+	 * @return the type of state
+	 */
+	public LightingEnum getType() {
+		return type;
+	}
+
+	/**
+	 * @return the solid color, null if the state is not SOLID
+	 */
+	public Color getColor() {
+		return type == LightingEnum.SOLID ? color(color) : null;
+	}
+
+	/**
+	 * @return a new flash, null if the state is not FLASH
+	 */
+	public FlashColor getFlashColor() {
+
+		if (type != LightingEnum.FLASH) {
+			return null;
+		}
+		return new FlashColor(color(color), time1, color(color2), time2, pulseCount);
+	}
+
+	/**
+	 * @return a new fade, null if the state is not FADE
+	 */
+	public FadeColor getFadeColor() {
+
+		if (type != LightingEnum.FADE) {
+			return null;
+		}
+		return new FadeColor(color(color2), color(color), time1, pulseCount);
+	}
+
+	/**
+	 * @return the pulse time of a random fade or a fade
+	 */
+	public int getPulseTime() {
+		return time1;
+	}
+
+	/**
+	 * @return the number of pulses of a flash, fade or random fade
+	 */
+	public int getPulseCount() {
+		return pulseCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PadState)) {
+			return false;
+		}
+		PadState other = (PadState) obj;
+		return type == other.type && color == other.color && color2 == other.color2 && time1 == other.time1
+				&& time2 == other.time2 && pulseCount == other.pulseCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+
+		int hash = type.hashCode();
+		hash = 31 * hash + color;
+		hash = 31 * hash + color2;
+		hash = 31 * hash + time1;
+		hash = 31 * hash + time2;
+		return 31 * hash + pulseCount;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+
+		switch (type) {
+		case SOLID:
+			return String.format("SOLID #%06X", color);
+		case FLASH:
+			return String.format("FLASH #%06X/%s %d/%d x%d", color, color2 == NO_COLOR ? "previous"
+					: String.format("#%06X", color2), time1, time2, pulseCount);
+		case FADE:
+			return String.format("FADE %s->#%06X %d x%d", color2 == NO_COLOR ? "previous"
+					: String.format("#%06X", color2), color, time1, pulseCount);
+		case RANDOM_FADE:
+			return String.format("RANDOM_FADE %d x%d", time1, pulseCount);
+		default:
+			return "UNKNOWN";
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A request sent to the toypad, waiting for its response.<br>
+ * A request without frame waits for the acknowledgement of a frame already
+ * written: it is never sent again.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class PendingRequest {
+
+	/**
+	 * Command of the request.
+	 */
+	private final CommandEnum command;
+
+	/**
+	 * Message counter of the request (0 to 255).
+	 */
+	private int counter;
+
+	/**
+	 * The full frame, kept to be sent again. Null for an acknowledgement.
+	 */
+	private byte[] frame;
+
+	/**
+	 * Completed with the response frame.
+	 */
+	private final CompletableFuture<byte[]> future = new CompletableFuture<>();
+
+	/**
+	 * Number of times the frame has been sent.
+	 */
+	private int attempts;
+
+	/**
+	 * Timeout task of the current attempt.
+	 */
+	private ScheduledFuture<?> timeoutTask;
+
+	/**
+	 * True for the place holder of an expired request, keeping its message
+	 * counter until its late response can no longer come.
+	 */
+	private final boolean expired;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param command
+	 *            command
+	 */
+	public PendingRequest(final CommandEnum command) {
+		this.command = command;
+		this.expired = false;
+	}
+
+	/**
+	 * Constructor for the acknowledgement of a frame already written.
+	 * 
+	 * @param command
+	 *            command of the frame
+	 * @param counter
+	 *            message counter of the frame
+	 */
+	public PendingRequest(final CommandEnum command, final int counter) {
+		this(command, counter, false);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param command
+	 *            command of the frame
+	 * @param counter
+	 *            message counter of the frame
+	 * @param expired
+	 *            true for the place holder of an expired request
+	 */
+	public PendingRequest(final CommandEnum command, final int counter, final boolean expired) {
+		this.command = command;
+		this.counter = counter;
+		this.expired = expired;
+	}
+
+	/**
+	 * @return the message counter of the request (0 to 255)
+	 */
+	public final int getCounter() {
+		return counter;
+	}
+
+	/**
+	 * @return the command
+	 */
+	public final CommandEnum getCommand() {
+		return command;
+	}
+
+	/**
+	 * @return the frame
+	 */
+	public final byte[] getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @param frame
+	 *            the frame to set
+	 */
+	public final void setFrame(final byte[] frame) {
+		this.frame = frame;
+		this.counter = frame[FrameCodec.INDEX_COUNTER] & 0xff;
+	}
+
+	/**
+	 * @return the future
+	 */
+	public final CompletableFuture<byte[]> getFuture() {
+		return future;
+	}
+
+	/**
+	 * @return the attempts
+	 */
+	public final int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @param attempts
+	 *            the attempts to set
+	 */
+	public final void setAttempts(final int attempts) {
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @return the timeoutTask
+	 */
+	public final ScheduledFuture<?> getTimeoutTask() {
+		return timeoutTask;
+	}
+
+	/**
+	 * @param timeoutTask
+	 *            the timeoutTask to set
+	 */
+	public final void setTimeoutTask(final ScheduledFuture<?> timeoutTask) {
+		this.timeoutTask = timeoutTask;
+	}
+
+	/**
+	 * @return true for the place holder of an expired request
+	 */
+	public final boolean isExpired() {
+		return expired;
+	}
+
+}
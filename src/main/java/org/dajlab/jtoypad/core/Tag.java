@@ -26,7 +26,7 @@ public class Tag {
 	/**
 	 * Tag's UID (unique hardware value).
 	 */
-	private String uid;
+	private TagUid uid;
 	/**
 	 * Tag's ID (game id).
 	 */
@@ -35,11 +35,15 @@ public class Tag {
 	 * Tag's name (character or vehicle).
 	 */
 	private String name;
+	/**
+	 * Tag's type, null if not identified.
+	 */
+	private TagTypeEnum type;
 
 	/**
 	 * @return the uid
 	 */
-	public final String getUid() {
+	public final TagUid getUid() {
 		return uid;
 	}
 
@@ -47,7 +51,7 @@ public class Tag {
 	 * @param uid
 	 *            the uid to set
 	 */
-	public final void setUid(final String uid) {
+	public final void setUid(final TagUid uid) {
 		this.uid = uid;
 	}
 
@@ -81,6 +85,21 @@ public class Tag {
 		this.name = name;
 	}
 
+	/**
+	 * @return the type
+	 */
+	public final TagTypeEnum getType() {
+		return type;
+	}
+
+	/**
+	 * @param type
+	 *            the type to set
+	 */
+	public final void setType(final TagTypeEnum type) {
+		this.type = type;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the identified tags, shared by the toypads of a manager:
+ * a tag identified on one toypad is not identified again on another one.<br>
+ * The cache is split in segments, each one locked separately and keeping its
+ * tags in access order: when a segment is full, its least recently used tag
+ * is evicted. A tag older than the time to live is removed when it's read.
+ * The tags removed (evicted, expired or invalidated) are notified to the
+ * listeners.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagCache {
+
+	/**
+	 * Default maximum number of tags.
+	 */
+	public final static int DEFAULT_MAXIMUM_SIZE = 4096;
+
+	/**
+	 * Default time to live of a tag (ms): a day.
+	 */
+	public final static long DEFAULT_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(1);
+
+	/**
+	 * Number of segments, a power of 2.
+	 */
+	private final static int SEGMENT_COUNT = 16;
+
+	/**
+	 * Longest time to live (ms), longer ones never expire: the expiries are
+	 * compared as differences of System.nanoTime(), which must not overflow.
+	 */
+	private final static long MAX_TIME_TO_LIVE = TimeUnit.DAYS.toMillis(365L * 100);
+
+	/**
+	 * Segments.
+	 */
+	private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+	/**
+	 * Time to live of a tag (ns), 0 for ever.
+	 */
+	private final long timeToLive;
+
+	/**
+	 * Listeners of the removed tags.
+	 */
+	private final List<TagCacheListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Number of tags found.
+	 */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	/**
+	 * Number of tags not found.
+	 */
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Number of tags evicted or expired.
+	 */
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * A tag and its expiry.
+	 */
+	private final static class CachedTag {
+
+		/**
+		 * Tag.
+		 */
+		private final Tag tag;
+
+		/**
+		 * Time the tag expires (ns).
+		 */
+		private final long expiry;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param tag
+		 *            tag
+		 * @param expiry
+		 *            time the tag expires (ns)
+		 */
+		private CachedTag(final Tag tag, final long expiry) {
+			this.tag = tag;
+			this.expiry = expiry;
+		}
+	}
+
+	/**
+	 * A segment: the tags in access order, bounded. Guarded by itself.
+	 */
+	private final static class Segment extends LinkedHashMap<TagUid, CachedTag> {
+
+		/**
+		 * Serial version uid.
+		 */
+		private static final long serialVersionUID = -3040389128867286016L;
+
+		/**
+		 * Maximum number of tags of the segment.
+		 */
+		private final int maximumSize;
+
+		/**
+		 * Tag evicted by the last put, null if none.
+		 */
+		private CachedTag evicted;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param maximumSize
+		 *            maximum number of tags of the segment
+		 */
+		private Segment(final int maximumSize) {
+			super(16, 0.75f, true);
+			this.maximumSize = maximumSize;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<TagUid, CachedTag> eldest) {
+
+			if (size() > maximumSize) {
+				evicted = eldest.getValue();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Constructor, with the default size and time to live.
+	 */
+	public TagCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param maximumSize
+	 *            maximum number of tags
+	 * @param timeToLive
+	 *            time to live of a tag (ms), 0 or less (or more than 100
+	 *            years) for ever
+	 */
+	public TagCache(final int maximumSize, final long timeToLive) {
+
+		int segmentSize = Math.max(1, (maximumSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+		for (int i = 0; i < SEGMENT_COUNT; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+		if (timeToLive <= 0 || timeToLive > MAX_TIME_TO_LIVE) {
+			this.timeToLive = 0;
+		} else {
+			this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+		}
+	}
+
+	/**
+	 * Return the segment of a UID.
+	 * 
+	 * @param uid
+	 *            UID
+	 * @return the segment
+	 */
+	private Segment segment(final TagUid uid) {
+
+		int hash = uid.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+	}
+
+	/**
+	 * Find a tag.
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 * @return the tag, null if not found or expired
+	 */
+	public Tag get(final TagUid uid) {
+
+		Segment segment = segment(uid);
+		CachedTag entry;
+		boolean expired = false;
+		synchronized (segment) {
+			entry = segment.get(uid);
+			if (entry != null && timeToLive > 0 && System.nanoTime() - entry.expiry > 0) {
+				segment.remove(uid);
+				expired = true;
+			}
+		}
+		if (entry == null || expired) {
+			missCount.incrementAndGet();
+			if (expired) {
+				evictionCount.incrementAndGet();
+				fireTagRemoved(entry.tag, RemovalCauseEnum.EXPIRED);
+			}
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.tag;
+	}
+
+	/**
+	 * Keep an identified tag.
+	 * 
+	 * @param tag
+	 *            tag, with its UID
+	 */
+	public void put(final Tag tag) {
+
+		Segment segment = segment(tag.getUid());
+		CachedTag evicted;
+		synchronized (segment) {
+			segment.put(tag.getUid(), new CachedTag(tag, System.nanoTime() + timeToLive));
+			evicted = segment.evicted;
+			segment.evicted = null;
+		}
+		if (evicted != null) {
+			evictionCount.incrementAndGet();
+			fireTagRemoved(evicted.tag, RemovalCauseEnum.EVICTED);
+		}
+	}
+
+	/**
+	 * Remove a tag, e.g. after it has been rewritten.
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 */
+	public void invalidate(final TagUid uid) {
+
+		Segment segment = segment(uid);
+		CachedTag entry;
+		synchronized (segment) {
+			entry = segment.remove(uid);
+		}
+		if (entry != null) {
+			fireTagRemoved(entry.tag, RemovalCauseEnum.INVALIDATED);
+		}
+	}
+
+	/**
+	 * Remove all the tags.
+	 */
+	public void invalidateAll() {
+
+		for (Segment segment : segments) {
+			List<CachedTag> entries;
+			synchronized (segment) {
+				entries = new ArrayList<>(segment.values());
+				segment.clear();
+			}
+			for (CachedTag entry : entries) {
+				fireTagRemoved(entry.tag, RemovalCauseEnum.INVALIDATED);
+			}
+		}
+	}
+
+	/**
+	 * Notify the listeners of a removed tag.
+	 * 
+	 * @param tag
+	 *            tag
+	 * @param cause
+	 *            cause of the removal
+	 */
+	private void fireTagRemoved(final Tag tag, final RemovalCauseEnum cause) {
+
+		for (TagCacheListener listener : listeners) {
+			listener.tagRemoved(tag, cause);
+		}
+	}
+
+	/**
+	 * Add a listener of the removed tags.
+	 * 
+	 * @param listener
+	 *            listener
+	 */
+	public void addTagCacheListener(final TagCacheListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener of the removed tags.
+	 * 
+	 * @param listener
+	 *            listener
+	 */
+	public void removeTagCacheListener(final TagCacheListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the number of tags, including the expired tags not read since
+	 *         they expired
+	 */
+	public int size() {
+
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of tags found
+	 */
+	public final long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of tags not found
+	 */
+	public final long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of tags evicted or expired
+	 */
+	public final long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return the ratio of the tags found, 0 if no tag has been looked up
+	 */
+	public final double getHitRate() {
+
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.EventListener;
+
+/**
+ * Listener of the tags removed from a tag cache.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public interface TagCacheListener extends EventListener {
+
+	/**
+	 * When a tag is removed from the cache. Called by the thread which
+	 * removed it, without lock held.
+	 * 
+	 * @param tag
+	 *            removed tag
+	 * @param cause
+	 *            cause of the removal
+	 */
+	void tagRemoved(Tag tag, RemovalCauseEnum cause);
+
+}
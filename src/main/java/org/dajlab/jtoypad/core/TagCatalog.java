@@ -0,0 +1,329 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Catalog of the names of the characters and the vehicles, by id.<br>
+ * The characters.properties and vehicles.properties files are compiled once
+ * into dense tables indexed by id: a lookup is an array access, without key
+ * to build and without exception for an unknown id (the empty slots of the
+ * tables act as a negative cache).<br>
+ * The catalog can be reloaded without restart with an overlay directory,
+ * whose characters.properties and vehicles.properties add or replace names
+ * (an empty name removes one). The tables are immutable and replaced at
+ * once, so the lookups are never blocked. The tags already identified keep
+ * their name (see TagCache.invalidateAll()).
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public final class TagCatalog {
+
+	/**
+	 * File of the characters.
+	 */
+	public final static String CHARACTERS_FILE = "characters.properties";
+
+	/**
+	 * File of the vehicles.
+	 */
+	public final static String VEHICLES_FILE = "vehicles.properties";
+
+	/**
+	 * Highest id kept in a table.
+	 */
+	private final static int MAX_ID = 0xFFFF;
+
+	/**
+	 * Logger.
+	 */
+	private static Logger logger = LogManager.getLogger(TagCatalog.class);
+
+	/**
+	 * Current catalog.
+	 */
+	private static volatile TagCatalog catalog = loadBundled();
+
+	/**
+	 * Names of the characters.
+	 */
+	private final NameTable characters;
+
+	/**
+	 * Names of the vehicles.
+	 */
+	private final NameTable vehicles;
+
+	/**
+	 * Names indexed by id - first id.
+	 */
+	private final static class NameTable {
+
+		/**
+		 * Lowest id.
+		 */
+		private final int firstId;
+
+		/**
+		 * Names, null for an unknown id.
+		 */
+		private final String[] names;
+
+		/**
+		 * Number of names.
+		 */
+		private final int count;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param properties
+		 *            names by id
+		 * @param source
+		 *            source of the names, for the logs
+		 */
+		private NameTable(final Properties properties, final String source) {
+
+			int min = Integer.MAX_VALUE;
+			int max = -1;
+			for (String key : properties.stringPropertyNames()) {
+				int id = parseId(key, properties.getProperty(key), source);
+				if (id >= 0) {
+					min = Math.min(min, id);
+					max = Math.max(max, id);
+				}
+			}
+			firstId = max < 0 ? 0 : min;
+			names = new String[max < 0 ? 0 : max - min + 1];
+			int n = 0;
+			for (String key : properties.stringPropertyNames()) {
+				int id = parseId(key, properties.getProperty(key), source);
+				if (id >= 0) {
+					names[id - firstId] = properties.getProperty(key);
+					n++;
+				}
+			}
+			count = n;
+		}
+
+		/**
+		 * Parse the id of an entry.
+		 * 
+		 * @param key
+		 *            key
+		 * @param name
+		 *            name
+		 * @param source
+		 *            source of the names, for the logs
+		 * @return the id, -1 if the entry is ignored
+		 */
+		private static int parseId(final String key, final String name, final String source) {
+
+			if (name.isEmpty()) {
+				// Removed by an overlay
+				return -1;
+			}
+			try {
+				int id = Integer.parseInt(key.trim());
+				if (id >= 0 && id <= MAX_ID) {
+					return id;
+				}
+			} catch (NumberFormatException e) {
+				// Logged below
+			}
+			logger.warn("Invalid id [{}] in [{}], ignored", key, source);
+			return -1;
+		}
+
+		/**
+		 * Return a name.
+		 * 
+		 * @param id
+		 *            id
+		 * @return the name, null if unknown
+		 */
+		private String get(final int id) {
+
+			int index = id - firstId;
+			return index >= 0 && index < names.length ? names[index] : null;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param characters
+	 *            names of the characters by id
+	 * @param vehicles
+	 *            names of the vehicles by id
+	 * @param source
+	 *            source of the names, for the logs
+	 */
+	private TagCatalog(final Properties characters, final Properties vehicles, final String source) {
+		this.characters = new NameTable(characters, source + CHARACTERS_FILE);
+		this.vehicles = new NameTable(vehicles, source + VEHICLES_FILE);
+	}
+
+	/**
+	 * Load the catalog bundled with the library.
+	 * 
+	 * @return the catalog, empty if it can't be read
+	 */
+	private static TagCatalog loadBundled() {
+
+		Properties characters = new Properties();
+		Properties vehicles = new Properties();
+		try {
+			loadResource(characters, CHARACTERS_FILE);
+			loadResource(vehicles, VEHICLES_FILE);
+		} catch (IOException e) {
+			logger.error("Error while reading the tag catalog : {}", e.getMessage());
+		}
+		return new TagCatalog(characters, vehicles, "classpath:");
+	}
+
+	/**
+	 * Load a resource of the library.
+	 * 
+	 * @param properties
+	 *            properties receiving the entries
+	 * @param name
+	 *            name of the resource
+	 * @throws IOException
+	 *             if the resource can't be read
+	 */
+	private static void loadResource(final Properties properties, final String name) throws IOException {
+
+		InputStream in = TagCatalog.class.getResourceAsStream("/" + name);
+		if (in == null) {
+			throw new IOException("Missing resource " + name);
+		}
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load an overlay file, if it exists.
+	 * 
+	 * @param properties
+	 *            properties receiving the entries, replacing the existing ones
+	 * @param file
+	 *            file
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	private static void loadOverlay(final Properties properties, final File file) throws IOException {
+
+		if (file.isFile()) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the current catalog
+	 */
+	public static TagCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Reload the catalog: the bundled names, then the names of the overlay
+	 * directory. The current catalog is kept if the overlay can't be read.
+	 * 
+	 * @param overlayDirectory
+	 *            directory of the characters.properties and
+	 *            vehicles.properties overlay files, each one optional; null
+	 *            for the bundled names only
+	 * @return the new catalog
+	 * @throws ToyPadException
+	 *             if the catalog can't be read
+	 */
+	public static TagCatalog reload(final File overlayDirectory) throws ToyPadException {
+
+		Properties characters = new Properties();
+		Properties vehicles = new Properties();
+		try {
+			loadResource(characters, CHARACTERS_FILE);
+			loadResource(vehicles, VEHICLES_FILE);
+			if (overlayDirectory != null) {
+				loadOverlay(characters, new File(overlayDirectory, CHARACTERS_FILE));
+				loadOverlay(vehicles, new File(overlayDirectory, VEHICLES_FILE));
+			}
+		} catch (IOException e) {
+			logger.error("Error while reading the tag catalog : {}", e.getMessage());
+			throw new ToyPadException(JToypadConstants.ERR_TAG_CATALOG);
+		}
+		TagCatalog reloaded = new TagCatalog(characters, vehicles,
+				overlayDirectory == null ? "classpath:" : overlayDirectory.getPath() + File.separator);
+		catalog = reloaded;
+		logger.info("Tag catalog reloaded : {} characters, {} vehicles", reloaded.getCharacterCount(),
+				reloaded.getVehicleCount());
+		return reloaded;
+	}
+
+	/**
+	 * Return the name of a character.
+	 * 
+	 * @param id
+	 *            id of the character
+	 * @return the name, null if unknown
+	 */
+	public String getCharacterName(final int id) {
+		return characters.get(id);
+	}
+
+	/**
+	 * Return the name of a vehicle.
+	 * 
+	 * @param id
+	 *            id of the vehicle
+	 * @return the name, null if unknown
+	 */
+	public String getVehicleName(final int id) {
+		return vehicles.get(id);
+	}
+
+	/**
+	 * @return the number of characters
+	 */
+	public int getCharacterCount() {
+		return characters.count;
+	}
+
+	/**
+	 * @return the number of vehicles
+	 */
+	public int getVehicleCount() {
+		return vehicles.count;
+	}
+}
@@ -15,12 +15,6 @@
  */
 package org.dajlab.jtoypad.core;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.MissingResourceException;
-import java.util.PropertyResourceBundle;
-import java.util.ResourceBundle;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -37,125 +31,308 @@ public class TagDecoder {
 	 */
 	private static Logger logger = LogManager.getLogger(TagDecoder.class);
 
+	/*
+	 * Key for TEA (see https://en.wikipedia.org/wiki/Tiny_Encryption_Algorithm
+	 * for more about TEA): the 16 bytes 55 FE F6 B0 62 BF 0B 41 C9 B3 7C B4 97
+	 * 3E 29 7B, read as four little endian words.
+	 */
+
+	/**
+	 * First word of the TEA key.
+	 */
+	private final static int KEY_0 = 0xB0F6FE55;
+	/**
+	 * Second word of the TEA key.
+	 */
+	private final static int KEY_1 = 0x410BBF62;
 	/**
-	 * Characters resource.
+	 * Third word of the TEA key.
 	 */
-	private static ResourceBundle characters = PropertyResourceBundle.getBundle("characters");
+	private final static int KEY_2 = 0xB47CB3C9;
+	/**
+	 * Fourth word of the TEA key.
+	 */
+	private final static int KEY_3 = 0x7B293E97;
+
+	/**
+	 * TEA delta.
+	 */
+	private final static int DELTA = 0x9E3779B9;
+
 	/**
-	 * Vehicles resource.
+	 * TEA sum after the 32 rounds.
 	 */
-	private static ResourceBundle vehicles = PropertyResourceBundle.getBundle("vehicles");
+	private final static int DECIPHER_SUM = 0xC6EF3720;
 
 	/**
-	 * Key for TEA (see https://en.wikipedia.org/wiki/Tiny_Encryption_Algorithm for
-	 * more about TEA).
+	 * Bytes the key of a character tag is derived from, after the 7 bytes of
+	 * the UID: "(c) Copyright LEGO 2014", then AA AA.
 	 */
-	private static byte[] teakey = { 0x55, (byte) 0xFE, (byte) 0xF6, (byte) 0xB0, 0x62, (byte) 0xBF, 0x0B, 0x41,
-			(byte) 0xC9, (byte) 0xB3, 0x7C, (byte) 0xB4, (byte) 0x97, 0x3E, 0x29, 0x7B };
+	private final static byte[] SCRAMBLE_BASE = { 0, 0, 0, 0, 0, 0, 0, 0x28, 0x63, 0x29, 0x20, 0x43, 0x6F, 0x70,
+			0x79, 0x72, 0x69, 0x67, 0x68, 0x74, 0x20, 0x4C, 0x45, 0x47, 0x4F, 0x20, 0x32, 0x30, 0x31, 0x34,
+			(byte) 0xAA, (byte) 0xAA };
 
 	/**
-	 * Encipher v0 and v1.
+	 * Pack two words into a block.
 	 * 
 	 * @param v0
-	 *            v0
+	 *            first word
 	 * @param v1
-	 *            v1
-	 * @return encrypted data
+	 *            second word
+	 * @return the block, first word in the low bits
 	 */
-	private static int[] encipher(final int v0, final int v1) {
-		int y = v0;
-		int z = v1;
+	private static long pack(final int v0, final int v1) {
+		return (long) v1 << 32 | v0 & 0xffffffffL;
+	}
+
+	/**
+	 * Encipher a block.
+	 * 
+	 * @param block
+	 *            block, first word in the low bits
+	 * @return encrypted block, first word in the low bits
+	 */
+	public static long encipher(final long block) {
+		return encipher(block, KEY_0, KEY_1, KEY_2, KEY_3);
+	}
+
+	/**
+	 * Encipher a block with a key.
+	 * 
+	 * @param block
+	 *            block, first word in the low bits
+	 * @param k0
+	 *            first word of the key
+	 * @param k1
+	 *            second word of the key
+	 * @param k2
+	 *            third word of the key
+	 * @param k3
+	 *            fourth word of the key
+	 * @return encrypted block, first word in the low bits
+	 */
+	private static long encipher(final long block, final int k0, final int k1, final int k2, final int k3) {
+
+		int y = (int) block;
+		int z = (int) (block >>> 32);
 		int sum = 0;
-		final int delta = 0x9E3779B9;
-		final int a = readUInt32LE(teakey, 0);
-		final int b = readUInt32LE(teakey, 4);
-		final int c = readUInt32LE(teakey, 8);
-		final int d = readUInt32LE(teakey, 12);
-		int n = 32;
-
-		while (n-- > 0) {
-			sum += delta;
-			y += (z << 4) + a ^ z + sum ^ (z >>> 5) + b;
-			z += (y << 4) + c ^ y + sum ^ (y >>> 5) + d;
+		for (int n = 0; n < 32; n++) {
+			sum += DELTA;
+			y += (z << 4) + k0 ^ z + sum ^ (z >>> 5) + k1;
+			z += (y << 4) + k2 ^ y + sum ^ (y >>> 5) + k3;
 		}
-		return new int[] { y, z };
+		return pack(y, z);
 	}
 
 	/**
-	 * Decipher v0 and v1
+	 * Decipher a block.
 	 * 
-	 * @param v0
-	 *            v0
-	 * @param v1
-	 *            v1
-	 * @return decrypted data
-	 */
-	private static int[] decipher(final int v0, final int v1) {
-
-		int y = v0;
-		int z = v1;
-		int sum = 0xC6EF3720;
-		final int delta = 0x9E3779B9;
-		final int a = readUInt32LE(teakey, 0);
-		final int b = readUInt32LE(teakey, 4);
-		final int c = readUInt32LE(teakey, 8);
-		final int d = readUInt32LE(teakey, 12);
-		int n = 32;
-
-		while (n-- > 0) {
-			z -= (y << 4) + c ^ y + sum ^ (y >>> 5) + d;
-			y -= (z << 4) + a ^ z + sum ^ (z >>> 5) + b;
-			sum -= delta;
-		}
+	 * @param block
+	 *            block, first word in the low bits
+	 * @return decrypted block, first word in the low bits
+	 */
+	public static long decipher(final long block) {
+		return decipher(block, KEY_0, KEY_1, KEY_2, KEY_3);
+	}
 
-		return new int[] { y, z };
+	/**
+	 * Decipher a block with a key.
+	 * 
+	 * @param block
+	 *            block, first word in the low bits
+	 * @param k0
+	 *            first word of the key
+	 * @param k1
+	 *            second word of the key
+	 * @param k2
+	 *            third word of the key
+	 * @param k3
+	 *            fourth word of the key
+	 * @return decrypted block, first word in the low bits
+	 */
+	private static long decipher(final long block, final int k0, final int k1, final int k2, final int k3) {
+
+		int y = (int) block;
+		int z = (int) (block >>> 32);
+		int sum = DECIPHER_SUM;
+		for (int n = 0; n < 32; n++) {
+			z -= (y << 4) + k2 ^ y + sum ^ (y >>> 5) + k3;
+			y -= (z << 4) + k0 ^ z + sum ^ (z >>> 5) + k1;
+			sum -= DELTA;
+		}
+		return pack(y, z);
 	}
 
 	/**
 	 * Encode data.
 	 * 
 	 * @param data
-	 *            data
+	 *            data (8 bytes)
 	 * @return encoded data
 	 */
 	public static byte[] encode(final byte data[]) {
 
-		logger.trace("Encoding {}", byteToHex(data));
+		byte[] encoded = new byte[8];
+		encode(data, 0, encoded, 0);
+		return encoded;
+	}
 
-		byte[] data2 = ByteBuffer.allocate(8).putInt((int) readUInt32LE(data, 0)).putInt((int) readUInt32LE(data, 4))
-				.array();
+	/**
+	 * Encode 8 bytes into a buffer of the caller, without allocation.
+	 * 
+	 * @param data
+	 *            data
+	 * @param offset
+	 *            index of the 8 bytes in data
+	 * @param target
+	 *            target, may be data
+	 * @param targetOffset
+	 *            index of the 8 encoded bytes in target
+	 */
+	public static void encode(final byte[] data, final int offset, final byte[] target, final int targetOffset) {
 
-		byte bp[] = data2;
-		int r0 = bp[0] << 24 | (bp[1] & 0xff) << 16 | (bp[2] & 0xff) << 8 | bp[3] & 0xff;
-		int r1 = bp[4] << 24 | (bp[5] & 0xff) << 16 | (bp[6] & 0xff) << 8 | bp[7] & 0xff;
-		final int r[] = encipher(r0, r1);
+		long block = encipher(pack(readUInt32LE(data, offset), readUInt32LE(data, offset + 4)));
+		writeUInt32LE((int) block, target, targetOffset);
+		writeUInt32LE((int) (block >>> 32), target, targetOffset + 4);
+	}
 
-		ByteBuffer bff = ByteBuffer.allocate(8);
-		writeUInt32LE(r[0], bff);
-		writeUInt32LE(r[1], bff);
+	/**
+	 * Decode the id of a character, without allocation.
+	 * 
+	 * @param data
+	 *            data
+	 * @param offset
+	 *            index of the 8 encrypted bytes in data
+	 * @return the id
+	 */
+	public static int decodeCharacterId(final byte[] data, final int offset) {
 
-		return bff.array();
+		// The id is the first word of the decrypted block
+		return (int) decipher(pack(readUInt32LE(data, offset), readUInt32LE(data, offset + 4)));
 	}
 
 	/**
-	 * Decode data
+	 * Decode the id of a vehicle, without allocation.
 	 * 
 	 * @param data
 	 *            data
-	 * @return decoded data
+	 * @param offset
+	 *            index of the 2 bytes of the id in data
+	 * @return the id
 	 */
-	private static byte[] decodeData(final byte[] data) {
+	public static int decodeVehicleId(final byte[] data, final int offset) {
+		return readUInt16LE(data, offset);
+	}
 
-		int d1 = readUInt32LE(data, 0);
-		int d2 = readUInt32LE(data, 4);
+	/**
+	 * Derive a word of the key of a character tag from its UID.
+	 * 
+	 * @param uid
+	 *            UID, big endian
+	 * @param count
+	 *            number of words of the base scrambled, 3 to 6
+	 * @return the word
+	 */
+	private static int scramble(final long uid, final int count) {
+
+		int v = 0;
+		for (int i = 0; i < count; i++) {
+			int word = 0;
+			for (int j = 3; j >= 0; j--) {
+				int index = i * 4 + j;
+				int b;
+				if (index == count * 4 - 1) {
+					b = 0xAA;
+				} else if (index < TagUid.LENGTH) {
+					b = (int) (uid >>> ((TagUid.LENGTH - 1 - index) * 8)) & 0xff;
+				} else {
+					b = SCRAMBLE_BASE[index] & 0xff;
+				}
+				word = word << 8 | b;
+			}
+			v = word + Integer.rotateRight(v, 25) + Integer.rotateRight(v, 10) - v;
+		}
+		return v;
+	}
 
-		final int tmp[] = decipher(d1, d2);
+	/**
+	 * Return a word of the key of a character tag: the scrambled words are
+	 * stored big endian, and read little endian by TEA.
+	 * 
+	 * @param uid
+	 *            UID, big endian
+	 * @param index
+	 *            index of the word, 0 to 3
+	 * @return the word
+	 */
+	private static int characterKey(final long uid, final int index) {
+		return Integer.reverseBytes(scramble(uid, index + 3));
+	}
 
-		ByteBuffer bff = ByteBuffer.allocate(8);
-		writeUInt32LE(tmp[0], bff);
-		writeUInt32LE(tmp[1], bff);
+	/**
+	 * Decrypt the id of a character from the pages of the tag, with the key
+	 * derived from its UID, without allocation.
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 * @param data
+	 *            data
+	 * @param offset
+	 *            index of the pages 0x24 and 0x25 (8 bytes) in data
+	 * @return the id, -1 if the pages don't hold a valid id (the id is stored
+	 *         twice)
+	 */
+	public static int decryptCharacterId(final TagUid uid, final byte[] data, final int offset) {
+
+		long value = uid.getValue();
+		long block = decipher(pack(readUInt32LE(data, offset), readUInt32LE(data, offset + 4)),
+				characterKey(value, 0), characterKey(value, 1), characterKey(value, 2), characterKey(value, 3));
+		int id = (int) block;
+		if (id != (int) (block >>> 32) || id <= 0) {
+			return -1;
+		}
+		return id;
+	}
 
-		return bff.array();
+	/**
+	 * Encrypt the id of a character as stored in the pages 0x24 and 0x25 of
+	 * its tag (e.g. to simulate a tag).
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 * @param id
+	 *            id of the character
+	 * @param target
+	 *            target
+	 * @param targetOffset
+	 *            index of the 8 encrypted bytes in target
+	 */
+	public static void encryptCharacterId(final TagUid uid, final int id, final byte[] target,
+			final int targetOffset) {
+
+		long value = uid.getValue();
+		long block = encipher(pack(id, id), characterKey(value, 0), characterKey(value, 1), characterKey(value, 2),
+				characterKey(value, 3));
+		writeUInt32LE((int) block, target, targetOffset);
+		writeUInt32LE((int) (block >>> 32), target, targetOffset + 4);
+	}
+
+	/**
+	 * Decrypt a character tag from its pages.
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 * @param data
+	 *            data
+	 * @param offset
+	 *            index of the pages 0x24 and 0x25 (8 bytes) in data
+	 * @return a Tag with id and name (if a character's name matches the id),
+	 *         null if the pages don't hold a valid id
+	 */
+	public static Tag decryptCharacter(final TagUid uid, final byte[] data, final int offset) {
+
+		int id = decryptCharacterId(uid, data, offset);
+		return id < 0 ? null : characterTag(id);
 	}
 
 	/**
@@ -166,22 +343,39 @@ public class TagDecoder {
 	 * @return a Tag with id and name (if a character's name matches the id)
 	 */
 	public static Tag decodeCharacter(final byte[] data) {
+		return decodeCharacter(data, 0);
+	}
 
-		logger.trace("Decoding character {}", byteToHex(data));
-
-		Tag tag = new Tag();
-
-		byte[] dataDecod = decodeData(data);
+	/**
+	 * Decode a character tag.
+	 * 
+	 * @param data
+	 *            data
+	 * @param offset
+	 *            index of the 8 encrypted bytes in data
+	 * @return a Tag with id and name (if a character's name matches the id)
+	 */
+	public static Tag decodeCharacter(final byte[] data, final int offset) {
+		return characterTag(decodeCharacterId(data, offset));
+	}
 
-		int id = readUInt32LE(dataDecod, 0);
+	/**
+	 * Build a character tag.
+	 * 
+	 * @param id
+	 *            id of the character
+	 * @return a Tag with id and name (if a character's name matches the id)
+	 */
+	private static Tag characterTag(final int id) {
 
+		Tag tag = new Tag();
+		tag.setType(TagTypeEnum.CHARACTER);
 		tag.setId(id);
 		logger.debug("Character's id = [{}]", id);
-		String name = null;
-		try {
-			name = characters.getString(String.valueOf(id));
+		String name = TagCatalog.getCatalog().getCharacterName(id);
+		if (name != null) {
 			logger.debug("Character's name = [{}]", name);
-		} catch (MissingResourceException e) {
+		} else {
 			logger.debug("No character for id [{}]", id);
 		}
 		tag.setName(name);
@@ -198,19 +392,30 @@ public class TagDecoder {
 	 * @return a Tag with id and name (if a vehicle's name matches the id)
 	 */
 	public static Tag decodeVehicle(byte[] data) {
+		return decodeVehicle(data, 0);
+	}
 
-		logger.trace("Decoding vehicle {}", byteToHex(data));
+	/**
+	 * Decode a vehicle tag.
+	 * 
+	 * @param data
+	 *            data
+	 * @param offset
+	 *            index of the 2 bytes of the id in data
+	 * @return a Tag with id and name (if a vehicle's name matches the id)
+	 */
+	public static Tag decodeVehicle(final byte[] data, final int offset) {
 
 		Tag tag = new Tag();
+		tag.setType(TagTypeEnum.VEHICLE);
 
-		int id = readUInt16LE(data, 0);
+		int id = decodeVehicleId(data, offset);
 		tag.setId(id);
 		logger.debug("Vehicle's id = [{}]", id);
-		String name = null;
-		try {
-			name = vehicles.getString(String.valueOf(id));
+		String name = TagCatalog.getCatalog().getVehicleName(id);
+		if (name != null) {
 			logger.debug("Vehicle's name = [{}]", name);
-		} catch (MissingResourceException e) {
+		} else {
 			logger.debug("No vehicle for id [{}]", id);
 		}
 		tag.setName(name);
@@ -227,12 +432,8 @@ public class TagDecoder {
 	 *            pointer
 	 * @return int
 	 */
-	private static int readUInt16LE(byte[] bytes, int pointer) {
-		ByteBuffer buffer = ByteBuffer.allocate(8);
-		buffer.put(bytes, pointer, 2);
-		buffer.put(new byte[6]);
-		buffer.flip();
-		return buffer.order(ByteOrder.LITTLE_ENDIAN).getInt();
+	private static int readUInt16LE(final byte[] bytes, final int pointer) {
+		return (bytes[pointer] & 0xff) | (bytes[pointer + 1] & 0xff) << 8;
 	}
 
 	/**
@@ -244,27 +445,26 @@ public class TagDecoder {
 	 *            pointer
 	 * @return int
 	 */
-	private static int readUInt32LE(byte[] bytes, int pointer) {
-		ByteBuffer buffer = ByteBuffer.allocate(8);
-		buffer.put(bytes, pointer, 4);
-		buffer.put(new byte[4]);
-		buffer.flip();
-		return buffer.order(ByteOrder.LITTLE_ENDIAN).getInt();
+	private static int readUInt32LE(final byte[] bytes, final int pointer) {
+		return (bytes[pointer] & 0xff) | (bytes[pointer + 1] & 0xff) << 8 | (bytes[pointer + 2] & 0xff) << 16
+				| (bytes[pointer + 3] & 0xff) << 24;
 	}
 
 	/**
-	 * Write a value int 32 bits Little Endian to the buffer.
+	 * Write a value int 32 bits Little Endian to a buffer.
 	 * 
 	 * @param v
 	 *            value
 	 * @param buf
 	 *            buffer
+	 * @param pointer
+	 *            pointer
 	 */
-	private static void writeUInt32LE(int v, ByteBuffer buf) {
-		buf.put((byte) (v & 0x000000ff));
-		buf.put((byte) ((v & 0x0000ff00) >> 8));
-		buf.put((byte) ((v & 0x00ff0000) >> 16));
-		buf.put((byte) ((v & 0xff000000) >> 24));
+	private static void writeUInt32LE(final int v, final byte[] buf, final int pointer) {
+		buf[pointer] = (byte) v;
+		buf[pointer + 1] = (byte) (v >>> 8);
+		buf[pointer + 2] = (byte) (v >>> 16);
+		buf[pointer + 3] = (byte) (v >>> 24);
 	}
 
 	/**
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Publisher of tag events, with backpressure.<br>
+ * Each subscriber has its own subscription: the events are buffered until the
+ * subscriber requests them, and the subscriber is called by the executor, so
+ * a slow subscriber never blocks the toypad nor the other subscribers. When
+ * the buffer of a subscription is full, its overflow policy applies.<br>
+ * The publisher is a tag listener: it can publish the events of several
+ * toypads.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagEventPublisher implements Flow.Publisher<TagEvent>, TagListener {
+
+	/**
+	 * Default max number of buffered events of a subscription.
+	 */
+	public final static int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Executor calling the subscribers.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Default max number of buffered events of a subscription.
+	 */
+	private final int capacity;
+
+	/**
+	 * Default overflow policy of a subscription.
+	 */
+	private final OverflowPolicyEnum policy;
+
+	/**
+	 * Current subscriptions.
+	 */
+	private final List<TagEventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Constructor. The subscribers are called by the common pool, and the
+	 * subscriptions fail when their buffer overflows.
+	 */
+	public TagEventPublisher() {
+		this(ForkJoinPool.commonPool(), DEFAULT_CAPACITY, OverflowPolicyEnum.BUFFER);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param executor
+	 *            executor calling the subscribers
+	 * @param capacity
+	 *            default max number of buffered events of a subscription
+	 * @param policy
+	 *            default overflow policy of a subscription
+	 */
+	public TagEventPublisher(final Executor executor, final int capacity, final OverflowPolicyEnum policy) {
+
+		this.executor = executor;
+		this.capacity = capacity;
+		this.policy = policy;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void subscribe(final Flow.Subscriber<? super TagEvent> subscriber) {
+
+		subscribe(subscriber, capacity, policy);
+	}
+
+	/**
+	 * Add a subscriber with its own buffer size and overflow policy.
+	 * 
+	 * @param subscriber
+	 *            subscriber
+	 * @param subscriptionCapacity
+	 *            max number of buffered events
+	 * @param subscriptionPolicy
+	 *            overflow policy
+	 * @return the subscription, to read its metrics
+	 */
+	public TagEventSubscription subscribe(final Flow.Subscriber<? super TagEvent> subscriber,
+			final int subscriptionCapacity, final OverflowPolicyEnum subscriptionPolicy) {
+
+		if (subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		TagEventSubscription subscription = new TagEventSubscription(this, subscriber, executor,
+				subscriptionCapacity, subscriptionPolicy);
+		subscriptions.add(subscription);
+		// Call onSubscribe
+		subscription.signal();
+		return subscription;
+	}
+
+	/**
+	 * Publish a tag event to the subscribers. Never blocks.
+	 * 
+	 * @param event
+	 *            tag event
+	 */
+	@Override
+	public void newTagEvent(final TagEvent event) {
+
+		for (TagEventSubscription subscription : subscriptions) {
+			subscription.offer(event);
+		}
+	}
+
+	/**
+	 * Complete the current subscribers, once they have received their
+	 * buffered events.
+	 */
+	public void complete() {
+
+		for (TagEventSubscription subscription : subscriptions) {
+			subscription.complete();
+		}
+	}
+
+	/**
+	 * Remove a cancelled subscription.
+	 * 
+	 * @param subscription
+	 *            subscription
+	 */
+	void remove(final TagEventSubscription subscription) {
+
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * @return the current subscriptions, to read their metrics
+	 */
+	public final List<TagEventSubscription> getSubscriptions() {
+		return subscriptions;
+	}
+
+}
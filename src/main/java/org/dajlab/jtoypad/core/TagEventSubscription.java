@@ -0,0 +1,444 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Subscription of a subscriber to the tag events.<br>
+ * The events are offered by the thread of the toypad, and buffered until the
+ * subscriber requests them: a slow subscriber never blocks the toypad. The
+ * subscriber is called by a task of the executor, one call at a time, so it
+ * doesn't need to be thread safe. When the buffer is full, the overflow
+ * policy decides which event is lost.<br>
+ * The lag of the subscriber is the number of events waiting in the buffer.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagEventSubscription implements Flow.Subscription, Runnable {
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(TagEventSubscription.class);
+
+	/**
+	 * Publisher.
+	 */
+	private final TagEventPublisher publisher;
+
+	/**
+	 * Subscriber.
+	 */
+	private final Flow.Subscriber<? super TagEvent> subscriber;
+
+	/**
+	 * Executor calling the subscriber.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Max number of buffered events.
+	 */
+	private final int capacity;
+
+	/**
+	 * Overflow policy.
+	 */
+	private final OverflowPolicyEnum policy;
+
+	/**
+	 * Events waiting to be requested. Guarded by this.
+	 */
+	private final ArrayDeque<TagEvent> buffer;
+
+	/**
+	 * Number of events requested and not yet sent. Guarded by this.
+	 */
+	private long demand;
+
+	/**
+	 * True once the publisher has no more event. Guarded by this.
+	 */
+	private boolean completed;
+
+	/**
+	 * Error to send to the subscriber. Guarded by this.
+	 */
+	private Throwable error;
+
+	/**
+	 * True once cancelled, or terminated.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * True once onSubscribe has been called. Used only by the delivery task.
+	 */
+	private boolean subscribed;
+
+	/**
+	 * Number of signals not yet handled by the delivery task.
+	 */
+	private final AtomicInteger pendingSignals = new AtomicInteger();
+
+	/**
+	 * Number of events sent to the subscriber.
+	 */
+	private final AtomicLong deliveredCount = new AtomicLong();
+
+	/**
+	 * Number of events lost by overflow.
+	 */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Number of events in the buffer.
+	 */
+	private volatile int lag;
+
+	/**
+	 * Max number of events in the buffer.
+	 */
+	private volatile int maxLag;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param publisher
+	 *            publisher
+	 * @param subscriber
+	 *            subscriber
+	 * @param executor
+	 *            executor calling the subscriber
+	 * @param capacity
+	 *            max number of buffered events
+	 * @param policy
+	 *            overflow policy
+	 */
+	public TagEventSubscription(final TagEventPublisher publisher, final Flow.Subscriber<? super TagEvent> subscriber,
+			final Executor executor, final int capacity, final OverflowPolicyEnum policy) {
+
+		this.publisher = publisher;
+		this.subscriber = subscriber;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.buffer = new ArrayDeque<>(capacity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void request(final long n) {
+
+		synchronized (this) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Non positive request: " + n);
+			} else {
+				demand += n;
+				if (demand < 0) {
+					// Unbounded
+					demand = Long.MAX_VALUE;
+				}
+			}
+		}
+		signal();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void cancel() {
+
+		if (!cancelled) {
+			cancelled = true;
+			synchronized (this) {
+				buffer.clear();
+				lag = 0;
+			}
+			publisher.remove(this);
+		}
+	}
+
+	/**
+	 * Offer an event. It's buffered until requested.
+	 * 
+	 * @param event
+	 *            event
+	 */
+	void offer(final TagEvent event) {
+
+		if (cancelled) {
+			return;
+		}
+		synchronized (this) {
+			if (completed || error != null) {
+				return;
+			}
+			if (buffer.size() >= capacity && !overflow(event)) {
+				return;
+			}
+			buffer.add(event);
+			lag = buffer.size();
+			if (lag > maxLag) {
+				maxLag = lag;
+			}
+		}
+		signal();
+	}
+
+	/**
+	 * Make room in the full buffer for a new event, according to the policy.
+	 * Must be called with the lock held.
+	 * 
+	 * @param event
+	 *            new event
+	 * @return true if the event can be buffered
+	 */
+	private boolean overflow(final TagEvent event) {
+
+		droppedCount.incrementAndGet();
+		switch (policy) {
+		case DROP_OLDEST:
+			buffer.poll();
+			return true;
+		case COALESCE_PER_PAD:
+			if (!removeSuperseded(event) && !removeOldestAdded()) {
+				buffer.poll();
+			}
+			return true;
+		default:
+			logger.warn("Tag events subscriber too slow, [{}] events buffered.", buffer.size());
+			error = new ToyPadException(JToypadConstants.ERR_SUBSCRIBER_OVERFLOW);
+			return false;
+		}
+	}
+
+	/**
+	 * Remove the oldest buffered event followed by a later event of the same
+	 * tag on the same pad: the later event gives the state of the tag. Must
+	 * be called with the lock held.
+	 * 
+	 * @param event
+	 *            new event
+	 * @return true if an event has been removed
+	 */
+	private boolean removeSuperseded(final TagEvent event) {
+
+		TagEvent[] events = buffer.toArray(new TagEvent[buffer.size()]);
+		for (int i = 0; i < events.length; i++) {
+			boolean superseded = sameTag(events[i], event);
+			for (int j = i + 1; j < events.length && !superseded; j++) {
+				superseded = sameTag(events[i], events[j]);
+			}
+			if (superseded) {
+				// TagEvent has no equals: removed by identity
+				buffer.removeFirstOccurrence(events[i]);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the oldest buffered ADDED event. The REMOVED events are kept,
+	 * otherwise the subscriber would keep a tag no longer on its pad. Must be
+	 * called with the lock held.
+	 * 
+	 * @return true if an event has been removed
+	 */
+	private boolean removeOldestAdded() {
+
+		for (TagEvent buffered : buffer) {
+			if (buffered.getAction() == ActionEnum.ADDED) {
+				return buffer.removeFirstOccurrence(buffered);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param event
+	 *            an event
+	 * @param other
+	 *            another event
+	 * @return true if both events are about the same tag on the same pad
+	 */
+	private static boolean sameTag(final TagEvent event, final TagEvent other) {
+
+		TagUid uid = event.getTag().getUid();
+		return event.getPad() == other.getPad() && uid != null && uid.equals(other.getTag().getUid());
+	}
+
+	/**
+	 * The publisher has no more event: the subscriber is completed once the
+	 * buffered events have been sent.
+	 */
+	void complete() {
+
+		synchronized (this) {
+			completed = true;
+		}
+		signal();
+	}
+
+	/**
+	 * Start the delivery task, unless it's already running. The subscription
+	 * is cancelled if the executor rejects the task.
+	 */
+	void signal() {
+
+		if (pendingSignals.getAndIncrement() == 0) {
+			try {
+				executor.execute(this);
+			} catch (RuntimeException e) {
+				logger.error("Tag events delivery rejected [{}]", e.getMessage());
+				pendingSignals.set(0);
+				cancel();
+			}
+		}
+	}
+
+	/**
+	 * Delivery task: call the subscriber with the requested events, then the
+	 * terminal signal.
+	 */
+	@Override
+	public void run() {
+
+		int signals = pendingSignals.get();
+		do {
+			if (!subscribed) {
+				subscribed = true;
+				call(null);
+			}
+			deliver();
+			signals = pendingSignals.addAndGet(-signals);
+		} while (signals != 0);
+	}
+
+	/**
+	 * Send the requested events, then the terminal signal if any.
+	 */
+	private void deliver() {
+
+		while (!cancelled) {
+			TagEvent event = null;
+			Throwable failure = null;
+			boolean complete = false;
+			synchronized (this) {
+				if (error != null) {
+					failure = error;
+				} else if (demand > 0 && !buffer.isEmpty()) {
+					event = buffer.poll();
+					lag = buffer.size();
+					if (demand != Long.MAX_VALUE) {
+						demand--;
+					}
+				} else if (completed && buffer.isEmpty()) {
+					complete = true;
+				} else {
+					return;
+				}
+			}
+			if (event != null) {
+				deliveredCount.incrementAndGet();
+				call(event);
+			} else {
+				cancel();
+				if (complete) {
+					subscriber.onComplete();
+				} else {
+					subscriber.onError(failure);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Call onSubscribe, or onNext with an event. The subscription is cancelled
+	 * if the subscriber throws an exception.
+	 * 
+	 * @param event
+	 *            event, null for onSubscribe
+	 */
+	private void call(final TagEvent event) {
+
+		try {
+			if (event == null) {
+				subscriber.onSubscribe(this);
+			} else {
+				subscriber.onNext(event);
+			}
+		} catch (RuntimeException e) {
+			logger.error("Error in tag events subscriber [{}]", e.getMessage());
+			cancel();
+		}
+	}
+
+	/**
+	 * @return the number of events sent to the subscriber
+	 */
+	public final long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * @return the number of events lost because the subscriber was too slow
+	 */
+	public final long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return the number of events waiting for the subscriber
+	 */
+	public final int getLag() {
+		return lag;
+	}
+
+	/**
+	 * @return the max number of events which have been waiting for the
+	 *         subscriber
+	 */
+	public final int getMaxLag() {
+		return maxLag;
+	}
+
+	/**
+	 * @return the overflow policy
+	 */
+	public final OverflowPolicyEnum getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return true if the subscription is cancelled or terminated
+	 */
+	public final boolean isCancelled() {
+		return cancelled;
+	}
+}
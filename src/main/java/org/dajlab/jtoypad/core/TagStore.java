@@ -0,0 +1,488 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent store of the identified tags (UID -> type, id, name), backed by
+ * a memory-mapped file. It's shared by all the toypads of a manager, so a tag
+ * already identified once, even before a restart, is identified without any
+ * request to the toypad.<br>
+ * The file is an open addressing hash table of fixed size slots, read in
+ * place: opening the store only maps the file, whatever the number of tags.
+ * Each slot has a CRC32: the body of a slot is written before its key, and a
+ * slot whose CRC doesn't match (write interrupted by a crash, or in
+ * progress) is read as a miss. The reads are lock free, the writes are
+ * serialized.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagStore {
+
+	/**
+	 * Default number of slots (2 MB file).
+	 */
+	public final static int DEFAULT_SLOT_COUNT = 16384;
+
+	/**
+	 * Magic number of the file ("JTPS").
+	 */
+	private final static int MAGIC = 0x4A545053;
+
+	/**
+	 * Version of the file format.
+	 */
+	private final static int VERSION = 1;
+
+	/**
+	 * Length of the header of the file.
+	 */
+	private final static int HEADER_LENGTH = 64;
+
+	/**
+	 * Length of a slot: key (8), type (1), id (4), name length (1), name, CRC
+	 * (4).
+	 */
+	private final static int SLOT_LENGTH = 128;
+
+	/**
+	 * Offset of the type in a slot.
+	 */
+	private final static int OFFSET_TYPE = 8;
+
+	/**
+	 * Offset of the id in a slot.
+	 */
+	private final static int OFFSET_ID = 9;
+
+	/**
+	 * Offset of the name length in a slot.
+	 */
+	private final static int OFFSET_NAME_LENGTH = 13;
+
+	/**
+	 * Offset of the name in a slot.
+	 */
+	private final static int OFFSET_NAME = 14;
+
+	/**
+	 * Offset of the CRC in a slot.
+	 */
+	private final static int OFFSET_CRC = SLOT_LENGTH - 4;
+
+	/**
+	 * Maximum length of a name (UTF-8 bytes).
+	 */
+	private final static int MAX_NAME_LENGTH = OFFSET_CRC - OFFSET_NAME;
+
+	/**
+	 * Flag set in the key of a used slot (a UID is 7 bytes long).
+	 */
+	private final static long USED = 1L << 63;
+
+	/**
+	 * Maximum number of slots probed for a UID.
+	 */
+	private final static int MAX_PROBES = 64;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(TagStore.class);
+
+	/**
+	 * File.
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * The mapped file.
+	 */
+	private final MappedByteBuffer buffer;
+
+	/**
+	 * Number of slots, a power of 2.
+	 */
+	private final int slotCount;
+
+	/**
+	 * Number of tags found.
+	 */
+	private final AtomicLong hitCount = new AtomicLong();
+
+	/**
+	 * Number of tags not found.
+	 */
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Number of tags not stored because the table is too full.
+	 */
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * Constructor, with the default number of slots for a new file.
+	 * 
+	 * @param path
+	 *            path of the file, created if it doesn't exist
+	 * @throws ToyPadException
+	 *             if the file is invalid or can't be opened
+	 */
+	public TagStore(final File path) throws ToyPadException {
+		this(path, DEFAULT_SLOT_COUNT);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param path
+	 *            path of the file, created if it doesn't exist
+	 * @param slotCount
+	 *            number of slots of a new file, rounded up to a power of 2.
+	 *            An existing file keeps its number of slots.
+	 * @throws ToyPadException
+	 *             if the file is invalid or can't be opened
+	 */
+	public TagStore(final File path, final int slotCount) throws ToyPadException {
+
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(path, "rw");
+			int count;
+			if (raf.length() == 0) {
+				count = Integer.highestOneBit(Math.max(slotCount, MAX_PROBES) - 1) << 1;
+				raf.setLength(HEADER_LENGTH + (long) count * SLOT_LENGTH);
+				raf.writeInt(MAGIC);
+				raf.writeInt(VERSION);
+				raf.writeInt(count);
+				raf.writeInt(SLOT_LENGTH);
+			} else {
+				if (raf.length() < HEADER_LENGTH || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+					throw new IOException("Bad header");
+				}
+				count = raf.readInt();
+				if (Integer.bitCount(count) != 1 || raf.readInt() != SLOT_LENGTH
+						|| raf.length() != HEADER_LENGTH + (long) count * SLOT_LENGTH) {
+					throw new IOException("Bad size");
+				}
+			}
+			this.slotCount = count;
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+			this.file = raf;
+		} catch (IOException e) {
+			logger.error("Error while opening tag store [{}] : {}", path, e.getMessage());
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e1) {
+					// Nothing more to do
+				}
+			}
+			throw new ToyPadException(JToypadConstants.ERR_TAG_STORE);
+		}
+		logger.debug("Tag store [{}] opened with {} slots", path, this.slotCount);
+	}
+
+	/**
+	 * Return the key of a UID.
+	 * 
+	 * @param uid
+	 *            UID, may be null
+	 * @return the key, 0 if there is no UID
+	 */
+	private static long key(final TagUid uid) {
+		return uid == null ? 0 : uid.getValue() | USED;
+	}
+
+	/**
+	 * Return the first slot probed for a key.
+	 * 
+	 * @param key
+	 *            key
+	 * @return the slot
+	 */
+	private int home(final long key) {
+
+		// Fibonacci hashing: the UIDs of a manufacturer share their first byte
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (slotCount - 1);
+	}
+
+	/**
+	 * Return the offset of a slot in the file.
+	 * 
+	 * @param slot
+	 *            slot
+	 * @return the offset
+	 */
+	private static int offset(final int slot) {
+		return HEADER_LENGTH + slot * SLOT_LENGTH;
+	}
+
+	/**
+	 * Read a slot, and check its CRC.
+	 * 
+	 * @param offset
+	 *            offset of the slot
+	 * @param slot
+	 *            a SLOT_LENGTH array receiving the slot
+	 * @return true if the slot is valid
+	 */
+	private boolean read(final int offset, final byte[] slot) {
+
+		for (int i = 0; i < SLOT_LENGTH; i++) {
+			slot[i] = buffer.get(offset + i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(slot, 0, OFFSET_CRC);
+		return (int) crc.getValue() == readInt(slot, OFFSET_CRC);
+	}
+
+	/**
+	 * Find a tag.
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 * @return a new tag with its UID, type, id and name, null if the tag is
+	 *         not in the store
+	 */
+	public Tag get(final TagUid uid) {
+
+		long key = key(uid);
+		if (key != 0) {
+			byte[] slot = new byte[SLOT_LENGTH];
+			int index = home(key);
+			for (int probe = 0; probe < MAX_PROBES; probe++) {
+				int offset = offset((index + probe) & (slotCount - 1));
+				long slotKey = buffer.getLong(offset);
+				if (slotKey == 0) {
+					break;
+				}
+				if (slotKey == key && read(offset, slot) && readLong(slot, 0) == key) {
+					hitCount.incrementAndGet();
+					return decode(uid, slot);
+				}
+			}
+		}
+		missCount.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Store an identified tag, replacing the previous entry of its UID.
+	 * 
+	 * @param tag
+	 *            tag, with its UID and type
+	 */
+	public synchronized void put(final Tag tag) {
+
+		long key = key(tag.getUid());
+		if (key == 0 || tag.getType() == null) {
+			return;
+		}
+		byte[] slot = encode(key, tag);
+		byte[] current = new byte[SLOT_LENGTH];
+		int index = home(key);
+		for (int probe = 0; probe < MAX_PROBES; probe++) {
+			int offset = offset((index + probe) & (slotCount - 1));
+			long slotKey = buffer.getLong(offset);
+			if (slotKey == key && read(offset, current) && Arrays.equals(current, slot)) {
+				// Already stored
+				return;
+			}
+			if (slotKey == 0 || slotKey == key) {
+				// Body first: the slot is used once its key is written
+				for (int i = OFFSET_TYPE; i < SLOT_LENGTH; i++) {
+					buffer.put(offset + i, slot[i]);
+				}
+				buffer.putLong(offset, key);
+				return;
+			}
+		}
+		rejectedCount.incrementAndGet();
+		logger.debug("Tag store full, tag [{}] not stored", tag.getUid());
+	}
+
+	/**
+	 * Encode a slot.
+	 * 
+	 * @param key
+	 *            key
+	 * @param tag
+	 *            tag
+	 * @return the slot
+	 */
+	private static byte[] encode(final long key, final Tag tag) {
+
+		byte[] slot = new byte[SLOT_LENGTH];
+		writeLong(slot, 0, key);
+		slot[OFFSET_TYPE] = (byte) tag.getType().ordinal();
+		writeInt(slot, OFFSET_ID, tag.getId());
+		if (tag.getName() == null) {
+			slot[OFFSET_NAME_LENGTH] = -1;
+		} else {
+			byte[] name = tag.getName().getBytes(StandardCharsets.UTF_8);
+			int length = Math.min(name.length, MAX_NAME_LENGTH);
+			slot[OFFSET_NAME_LENGTH] = (byte) length;
+			System.arraycopy(name, 0, slot, OFFSET_NAME, length);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(slot, 0, OFFSET_CRC);
+		writeInt(slot, OFFSET_CRC, (int) crc.getValue());
+		return slot;
+	}
+
+	/**
+	 * Decode a slot.
+	 * 
+	 * @param uid
+	 *            UID
+	 * @param slot
+	 *            valid slot
+	 * @return the tag
+	 */
+	private static Tag decode(final TagUid uid, final byte[] slot) {
+
+		Tag tag = new Tag();
+		tag.setUid(uid);
+		tag.setType(TagTypeEnum.values()[slot[OFFSET_TYPE]]);
+		tag.setId(readInt(slot, OFFSET_ID));
+		int length = slot[OFFSET_NAME_LENGTH];
+		if (length >= 0) {
+			tag.setName(new String(slot, OFFSET_NAME, length, StandardCharsets.UTF_8));
+		}
+		return tag;
+	}
+
+	/**
+	 * Read a little endian int.
+	 * 
+	 * @param bytes
+	 *            bytes
+	 * @param index
+	 *            index
+	 * @return the int
+	 */
+	private static int readInt(final byte[] bytes, final int index) {
+
+		return (bytes[index] & 0xff) | (bytes[index + 1] & 0xff) << 8 | (bytes[index + 2] & 0xff) << 16
+				| (bytes[index + 3] & 0xff) << 24;
+	}
+
+	/**
+	 * Read a little endian long.
+	 * 
+	 * @param bytes
+	 *            bytes
+	 * @param index
+	 *            index
+	 * @return the long
+	 */
+	private static long readLong(final byte[] bytes, final int index) {
+
+		return (readInt(bytes, index) & 0xffffffffL) | (long) readInt(bytes, index + 4) << 32;
+	}
+
+	/**
+	 * Write a little endian int.
+	 * 
+	 * @param bytes
+	 *            bytes
+	 * @param index
+	 *            index
+	 * @param value
+	 *            value
+	 */
+	private static void writeInt(final byte[] bytes, final int index, final int value) {
+
+		bytes[index] = (byte) value;
+		bytes[index + 1] = (byte) (value >> 8);
+		bytes[index + 2] = (byte) (value >> 16);
+		bytes[index + 3] = (byte) (value >> 24);
+	}
+
+	/**
+	 * Write a little endian long.
+	 * 
+	 * @param bytes
+	 *            bytes
+	 * @param index
+	 *            index
+	 * @param value
+	 *            value
+	 */
+	private static void writeLong(final byte[] bytes, final int index, final long value) {
+
+		writeInt(bytes, index, (int) value);
+		writeInt(bytes, index + 4, (int) (value >> 32));
+	}
+
+	/**
+	 * Write the changes to the disk, and close the file. The changes already
+	 * reach the file if the process stops without closing the store.
+	 */
+	public synchronized void close() {
+
+		try {
+			buffer.force();
+			file.close();
+		} catch (IOException e) {
+			logger.error("Error while closing tag store : {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of tags found
+	 */
+	public final long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of tags not found
+	 */
+	public final long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of tags not stored because the table is too full
+	 */
+	public final long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public final int getSlotCount() {
+		return slotCount;
+	}
+}
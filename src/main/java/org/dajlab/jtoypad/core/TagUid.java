@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+/**
+ * UID of a tag: its 7 bytes packed into a long, to be compared and hashed
+ * without allocation. The hexa representation is built only when displayed.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public final class TagUid implements Comparable<TagUid> {
+
+	/**
+	 * Length of a UID (bytes).
+	 */
+	public final static int LENGTH = 7;
+
+	/**
+	 * Hexa digits.
+	 */
+	private final static char[] HEXA = "0123456789ABCDEF".toCharArray();
+
+	/**
+	 * The 7 bytes, big endian.
+	 */
+	private final long value;
+
+	/**
+	 * Hexa representation, built on the first call to toString(). Computed
+	 * again if another thread doesn't see it yet.
+	 */
+	private String hexa;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param value
+	 *            the 7 bytes, big endian
+	 */
+	private TagUid(final long value) {
+		this.value = value;
+	}
+
+	/**
+	 * Read a UID in a frame.
+	 * 
+	 * @param data
+	 *            frame
+	 * @param index
+	 *            index of the first byte of the UID
+	 * @return the UID
+	 */
+	public static TagUid fromBytes(final byte[] data, final int index) {
+
+		long value = 0;
+		for (int i = index; i < index + LENGTH; i++) {
+			value = value << 8 | (data[i] & 0xff);
+		}
+		return new TagUid(value);
+	}
+
+	/**
+	 * Return a UID from its value.
+	 * 
+	 * @param value
+	 *            the 7 bytes, big endian
+	 * @return the UID
+	 */
+	public static TagUid valueOf(final long value) {
+
+		if ((value >>> (LENGTH * 8)) != 0) {
+			throw new IllegalArgumentException("A tag UID is 7 bytes long");
+		}
+		return new TagUid(value);
+	}
+
+	/**
+	 * Parse a UID.
+	 * 
+	 * @param hexa
+	 *            the 14 hexa digits
+	 * @return the UID
+	 */
+	public static TagUid parse(final String hexa) {
+
+		if (hexa.length() != LENGTH * 2) {
+			throw new IllegalArgumentException("A tag UID is 14 hexa digits long");
+		}
+		return new TagUid(Long.parseLong(hexa, 16));
+	}
+
+	/**
+	 * @return the 7 bytes, big endian
+	 */
+	public long getValue() {
+		return value;
+	}
+
+	/**
+	 * @return the 7 bytes
+	 */
+	public byte[] toBytes() {
+
+		byte[] bytes = new byte[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			bytes[i] = (byte) (value >>> ((LENGTH - 1 - i) * 8));
+		}
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int compareTo(final TagUid other) {
+		return Long.compare(value, other.value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+
+		// The UIDs of a manufacturer share their first byte
+		long hash = value * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof TagUid && ((TagUid) obj).value == value;
+	}
+
+	/**
+	 * Return the 14 hexa digits (upper case).
+	 * 
+	 * @return the hexa representation
+	 */
+	@Override
+	public String toString() {
+
+		String result = hexa;
+		if (result == null) {
+			char[] chars = new char[LENGTH * 2];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = HEXA[(int) (value >>> ((chars.length - 1 - i) * 4)) & 0x0f];
+			}
+			result = new String(chars);
+			hexa = result;
+		}
+		return result;
+	}
+}
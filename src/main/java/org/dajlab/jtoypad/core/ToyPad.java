@@ -15,8 +15,14 @@
  */
 package org.dajlab.jtoypad.core;
 
+import java.util.concurrent.Future;
+
 /**
- * Interface for toypad.
+ * Interface for toypad.<br>
+ * Commands are queued and written asynchronously to the toypad: each command
+ * returns a future completed when the command has been written. The lighting
+ * state of the pads is tracked: the colors the pads already show are not
+ * written again.
  * 
  * @author Erik Amzallag
  *
@@ -24,7 +30,7 @@ package org.dajlab.jtoypad.core;
 public interface ToyPad {
 
 	/**
-	 * Open the connection with the toypad.
+	 * Open the connection with the toypad. Does nothing if already opened.
 	 * 
 	 * @throws ToyPadException
 	 *             toypad exception
@@ -42,10 +48,11 @@ public interface ToyPad {
 	/**
 	 * Turn off all the pads.
 	 * 
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void turnOffPads() throws ToyPadException;
+	Future<Void> turnOffPads() throws ToyPadException;
 
 	/**
 	 * Switch the pad.
@@ -54,10 +61,11 @@ public interface ToyPad {
 	 *            pad
 	 * @param color
 	 *            color
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             in case of exception
 	 */
-	void switchPad(final PadEnum pad, final Color color) throws ToyPadException;
+	Future<Void> switchPad(final PadEnum pad, final Color color) throws ToyPadException;
 
 	/**
 	 * Switch the three pads.
@@ -68,10 +76,11 @@ public interface ToyPad {
 	 *            color for center pad
 	 * @param colorPadRight
 	 *            color for right pad
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void switchPads(final Color colorPadLeft, final Color colorPadCenter, final Color colorPadRight)
+	Future<Void> switchPads(final Color colorPadLeft, final Color colorPadCenter, final Color colorPadRight)
 			throws ToyPadException;
 
 	/**
@@ -81,10 +90,11 @@ public interface ToyPad {
 	 *            pad to flash
 	 * @param flashColor
 	 *            a flashcolor which describes the properties of the flash
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void flashPad(final PadEnum pad, final FlashColor flashColor) throws ToyPadException;
+	Future<Void> flashPad(final PadEnum pad, final FlashColor flashColor) throws ToyPadException;
 
 	/**
 	 * Flash all pads.<br>
@@ -96,11 +106,12 @@ public interface ToyPad {
 	 *            flashColor for center pad
 	 * @param flashColorRight
 	 *            flashColor for right pad
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void flashPads(final FlashColor flashColorLeft, final FlashColor flashColorCenter, final FlashColor flashColorRight)
-			throws ToyPadException;
+	Future<Void> flashPads(final FlashColor flashColorLeft, final FlashColor flashColorCenter,
+			final FlashColor flashColorRight) throws ToyPadException;
 
 	/**
 	 * Fade a pad.
@@ -109,10 +120,11 @@ public interface ToyPad {
 	 *            pad
 	 * @param fadeColor
 	 *            a fadeColor which describes the properties of the fade
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void fadePad(final PadEnum pad, final FadeColor fadeColor) throws ToyPadException;
+	Future<Void> fadePad(final PadEnum pad, final FadeColor fadeColor) throws ToyPadException;
 
 	/**
 	 * Fade once from a color to another color, the fade lasts the given time.
@@ -125,10 +137,12 @@ public interface ToyPad {
 	 *            color
 	 * @param time
 	 *            time from 0 to 255.
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void fadePad(final PadEnum pad, final Color fromColor, final Color toColor, final int time) throws ToyPadException;
+	Future<Void> fadePad(final PadEnum pad, final Color fromColor, final Color toColor, final int time)
+			throws ToyPadException;
 
 	/**
 	 * Fade between random colors (Colors are selected by the hardware).
@@ -139,10 +153,12 @@ public interface ToyPad {
 	 *            time. If 0, then random time by the hardware
 	 * @param pulseCount
 	 *            count. Use FadeColor.FADE_FOR_EVER for infinite time.
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount) throws ToyPadException;
+	Future<Void> fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount)
+			throws ToyPadException;
 
 	/**
 	 * Fade all pads.<br>
@@ -154,11 +170,58 @@ public interface ToyPad {
 	 *            fadeColor center
 	 * @param fadeColorRight
 	 *            fadeColor right
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	void fadePads(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter, final FadeColor fadeColorRight)
-			throws ToyPadException;
+	Future<Void> fadePads(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter,
+			final FadeColor fadeColorRight) throws ToyPadException;
+
+	/**
+	 * Return the reconciler of the lighting of this toypad, to declare the
+	 * state each pad must show instead of sending commands.
+	 * 
+	 * @return the reconciler
+	 */
+	LightingReconciler getLightingReconciler();
+
+	/**
+	 * Return the lighting state of a pad, as tracked from the commands sent.
+	 * 
+	 * @param pad
+	 *            pad, not ALL
+	 * @return the state, UNKNOWN if not known
+	 */
+	PadState getPadState(final PadEnum pad);
+
+	/**
+	 * Read the current color of each pad from the toypad (GET_COL), and
+	 * replace the tracked state with it. To be used when no lighting command
+	 * is pending, e.g. after another program has changed the pads. The pads
+	 * tracked as flashing or fading keep their state, as the color read is
+	 * only a step of the effect. The reconciler then sets the pads which
+	 * differ from their desired state again.
+	 * 
+	 * @return a future completed when the three pads have been read
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	Future<Void> resyncLighting() throws ToyPadException;
+
+	/**
+	 * Create a batch of lighting commands, sent at once in the fewest frames.
+	 * 
+	 * @return an empty batch
+	 */
+	LightingBatch newBatch();
+
+	/**
+	 * Return the asynchronous companion of this toypad, whose commands
+	 * complete when the toypad has acknowledged them.
+	 * 
+	 * @return the asynchronous toypad
+	 */
+	AsyncToyPad getAsyncToyPad();
 
 	/**
 	 * Return the id of the pad.
@@ -174,4 +237,14 @@ public interface ToyPad {
 	 *            tag listener
 	 */
 	void addTagListener(final TagListener tagListener);
+
+	/**
+	 * Return the publisher of the tag events of this toypad. Unlike the tag
+	 * listeners, the subscribers are called by their own task, as they
+	 * request the events. The subscribers are completed when the toypad is
+	 * closed.
+	 * 
+	 * @return the publisher
+	 */
+	TagEventPublisher getTagEventPublisher();
 }
@@ -0,0 +1,793 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.transport.FrameListener;
+import org.dajlab.jtoypad.core.transport.ToyPadTransport;
+
+/**
+ * Event loop of a toypad.<br>
+ * One thread owns all the state of the toypad: the outbound lanes and the
+ * decoding of the received frames (tag cache, identification). The other
+ * threads only put items in a lock-free inbox: messages to write, frames
+ * received by the transport (copied) and tasks (e.g. the
+ * continuations of the identification requests).<br>
+ * There is one lane per priority: protocol messages (tag identification) are
+ * always written before lighting messages.<br>
+ * A lighting message replaces the pending lighting messages which would be
+ * overwritten by it (last write wins), so only the newest state of a pad is
+ * sent.<br>
+ * Single pad lighting commands for different pads received within a short
+ * window are merged into multi pads frames (SWITCH_PADS, FADE_PADS,
+ * FLASH_PADS).<br>
+ * At each wakeup, the loop drains the inbox and the lanes and writes the
+ * pending frames in one call to the transport (one list of IRPs with
+ * javax.usb).<br>
+ * When the acknowledgement of a message is awaited, the message counter of
+ * its last written frame is registered in the correlation table once written.
+ * The acknowledgement is decoded by this thread, so it can't be received
+ * before.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class ToyPadEventLoop implements Runnable, Executor, FrameListener {
+
+	/**
+	 * Default capacity of each lane.
+	 */
+	public final static int DEFAULT_CAPACITY = 64;
+
+	/**
+	 * Max number of messages in the inbox, as a number of lanes.
+	 */
+	private final static int INBOX_LANES = 4;
+
+	/**
+	 * Max time the loop sleeps without being woken up (ms).
+	 */
+	private final static long POLL_TIMEOUT = 100;
+
+	/**
+	 * Default write combining window (ms).
+	 */
+	public final static long DEFAULT_COMBINING_WINDOW = 2;
+
+	/**
+	 * Number of frames from which the loop stops draining the lanes and
+	 * writes the batch.
+	 */
+	public final static int MAX_BATCH_SIZE = 16;
+
+	/**
+	 * Mask of the three pads.
+	 */
+	private final static int ALL_PADS_MASK = PadEnum.ALL.getMask();
+
+	/**
+	 * Single pad commands which can be merged, in the order they are written.
+	 */
+	private final static CommandEnum[] COMBINABLE_COMMANDS = new CommandEnum[] { CommandEnum.SWITCH_PAD,
+			CommandEnum.FADE_PAD, CommandEnum.FLASH_PAD };
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(ToyPadEventLoop.class);
+
+	/**
+	 * Transport, opened once.
+	 */
+	private final ToyPadTransport transport;
+
+	/**
+	 * Lanes, indexed by priority. Used only by the loop thread.
+	 */
+	private final OutboundLane[] lanes;
+
+	/**
+	 * Inbox: messages, received frames and tasks, from any thread.
+	 */
+	private final ConcurrentLinkedQueue<Object> inbox = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Number of messages in the inbox.
+	 */
+	private final AtomicInteger inboxSize = new AtomicInteger();
+
+	/**
+	 * Max number of messages in the inbox.
+	 */
+	private final int inboxCapacity;
+
+	/**
+	 * Listener decoding the received frames, on the loop thread.
+	 */
+	private final FrameListener decoder;
+
+	/**
+	 * Table waiting for the acknowledgements of the frames.
+	 */
+	private volatile CorrelationTable correlationTable;
+
+	/**
+	 * Shadow of the lighting state, invalidated for the pads of the messages
+	 * which can't be written.
+	 */
+	private volatile LightingShadow lightingShadow;
+
+	/**
+	 * Loop thread.
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * True while the loop accepts messages.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Number of frames written.
+	 */
+	private final AtomicLong sentCount = new AtomicLong();
+
+	/**
+	 * Number of messages dropped because replaced by a newer one.
+	 */
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	/**
+	 * Write combining window (ms).
+	 */
+	private volatile long combiningWindow = DEFAULT_COMBINING_WINDOW;
+
+	/**
+	 * Frames of the current batch. Used only by the loop thread.
+	 */
+	private final List<byte[]> batchFrames = new ArrayList<>(MAX_BATCH_SIZE);
+
+	/**
+	 * Messages of the current batch. Used only by the loop thread.
+	 */
+	private final List<OutboundMessage> batchMessages = new ArrayList<>(MAX_BATCH_SIZE);
+
+	/**
+	 * Number of batches written.
+	 */
+	private final AtomicLong batchCount = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param transport
+	 *            transport, opened once the loop is started
+	 * @param capacity
+	 *            capacity of each lane
+	 * @param decoder
+	 *            listener decoding the received frames, called on the loop
+	 *            thread
+	 */
+	public ToyPadEventLoop(final ToyPadTransport transport, final int capacity, final FrameListener decoder) {
+
+		this.transport = transport;
+		this.decoder = decoder;
+		this.inboxCapacity = INBOX_LANES * capacity;
+		PriorityEnum[] priorities = PriorityEnum.values();
+		lanes = new OutboundLane[priorities.length];
+		for (PriorityEnum priority : priorities) {
+			lanes[priority.ordinal()] = new OutboundLane(priority, capacity);
+		}
+	}
+
+	/**
+	 * Start the loop thread.
+	 * 
+	 * @param name
+	 *            name of the thread
+	 */
+	public void start(final String name) {
+
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the loop. Messages already queued are written before stopping,
+	 * unless the timeout expires.
+	 * 
+	 * @param timeout
+	 *            max time to wait for the queue to be written (ms)
+	 */
+	public void stop(final long timeout) {
+
+		running = false;
+		Thread loopThread = thread;
+		if (loopThread != null) {
+			LockSupport.unpark(loopThread);
+			try {
+				loopThread.join(timeout);
+				if (loopThread.isAlive()) {
+					loopThread.interrupt();
+					loopThread.join(POLL_TIMEOUT);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+			if (loopThread.isAlive()) {
+				logger.error("Event loop [{}] still running.", loopThread.getName());
+				return;
+			}
+		}
+		// The loop is over: the pending items are owned by this thread
+		Object item;
+		while ((item = inbox.poll()) != null) {
+			if (item instanceof OutboundMessage) {
+				inboxSize.decrementAndGet();
+				lanes[((OutboundMessage) item).getPriority().ordinal()].add((OutboundMessage) item);
+			}
+		}
+		for (OutboundLane lane : lanes) {
+			OutboundMessage message;
+			while ((message = lane.poll()) != null) {
+				message.fail(new ToyPadException(JToypadConstants.ERR_CLOSED));
+				invalidate(message);
+			}
+		}
+	}
+
+	/**
+	 * Submit a message, from any thread.
+	 * 
+	 * @param message
+	 *            message
+	 * @throws ToyPadException
+	 *             if the loop is stopped or the inbox is full
+	 */
+	public void submit(final OutboundMessage message) throws ToyPadException {
+
+		if (!running) {
+			throw new ToyPadException(JToypadConstants.ERR_CLOSED);
+		}
+		if (inboxSize.incrementAndGet() > inboxCapacity) {
+			inboxSize.decrementAndGet();
+			logger.error("Inbox is full, message dropped.");
+			throw new ToyPadException(JToypadConstants.ERR_QUEUE_FULL);
+		}
+		message.setEnqueueTime(System.nanoTime());
+		inbox.offer(message);
+		if (!running && inbox.remove(message)) {
+			// Stopped meanwhile, and the inbox already drained: nobody would
+			// write nor fail the message
+			inboxSize.decrementAndGet();
+			throw new ToyPadException(JToypadConstants.ERR_CLOSED);
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Run a task on the loop thread. Once the loop is stopped, the tasks are
+	 * dropped: they would find the toypad closed.
+	 * 
+	 * @param task
+	 *            task
+	 */
+	@Override
+	public void execute(final Runnable task) {
+
+		if (!running) {
+			logger.debug("Event loop stopped, task dropped.");
+			return;
+		}
+		inbox.offer(task);
+		wakeUp();
+	}
+
+	/**
+	 * A frame has been received by the transport: it's copied and decoded on
+	 * the loop thread.
+	 * 
+	 * @param frame
+	 *            a 32 bytes frame
+	 */
+	@Override
+	public void frameReceived(final byte[] frame) {
+
+		if (running && frame.length == FrameCodec.FRAME_LENGTH) {
+			inbox.offer(frame.clone());
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Wake up the loop thread.
+	 */
+	private void wakeUp() {
+
+		Thread loopThread = thread;
+		if (loopThread != null && loopThread != Thread.currentThread()) {
+			LockSupport.unpark(loopThread);
+		}
+	}
+
+	/**
+	 * Dispatch the items of the inbox: messages are put in their lane, frames
+	 * decoded and tasks run.
+	 */
+	private void drainInbox() {
+
+		Object item;
+		while ((item = inbox.poll()) != null) {
+			if (item instanceof OutboundMessage) {
+				inboxSize.decrementAndGet();
+				enqueue((OutboundMessage) item);
+			} else if (item instanceof byte[]) {
+				try {
+					decoder.frameReceived((byte[]) item);
+				} catch (RuntimeException e) {
+					logger.error("Error while decoding frame [{}]", e.getMessage());
+				}
+			} else {
+				try {
+					((Runnable) item).run();
+				} catch (RuntimeException e) {
+					logger.error("Error while running task [{}]", e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Put a message in its lane, after removing the messages it replaces.
+	 * 
+	 * @param message
+	 *            message
+	 */
+	private void enqueue(final OutboundMessage message) {
+
+		OutboundLane lane = lanes[message.getPriority().ordinal()];
+		LightingShadow shadow = lightingShadow;
+		if (shadow != null && message.getSequence() != 0
+				&& shadow.queued(message.getPadMask(), message.getSequence()) != 0) {
+			logger.debug("Lighting message queued after a newer one, its pads are unknown.");
+		}
+		if (message.isAbsolute()) {
+			coalesce(lane, message);
+		}
+		if (lane.isFull()) {
+			logger.error("Outbound queue [{}] is full, message dropped.", lane.getPriority());
+			message.fail(new ToyPadException(JToypadConstants.ERR_QUEUE_FULL));
+			invalidate(message);
+		} else {
+			lane.add(message);
+		}
+	}
+
+	/**
+	 * Remove from the lane the messages which are useless because of the new
+	 * message. A message already taken for writing is not removed.
+	 * 
+	 * @param lane
+	 *            lane of the message
+	 * @param message
+	 *            new message
+	 */
+	private void coalesce(final OutboundLane lane, final OutboundMessage message) {
+
+		Iterator<OutboundMessage> it = lane.iterator();
+		while (it.hasNext()) {
+			OutboundMessage pending = it.next();
+			if (message.covers(pending)) {
+				it.remove();
+				message.supersede(pending);
+				coalescedCount.incrementAndGet();
+			}
+		}
+		lane.updateSize();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run() {
+
+		while (true) {
+			drainInbox();
+			OutboundMessage message = pollFirst();
+			if (message == null) {
+				if (!running || Thread.interrupted()) {
+					break;
+				}
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT));
+				continue;
+			}
+			add(message);
+			// Drain what has been queued meanwhile, in the same submission
+			while (batchFrames.size() < MAX_BATCH_SIZE && (message = pollFirst()) != null) {
+				add(message);
+			}
+			flush();
+		}
+	}
+
+	/**
+	 * Take the first message of the highest priority lane.
+	 * 
+	 * @return a message, or null if all the lanes are empty
+	 */
+	private OutboundMessage pollFirst() {
+
+		OutboundMessage message = null;
+		for (int i = 0; i < lanes.length && message == null; i++) {
+			message = lanes[i].poll();
+		}
+		return message;
+	}
+
+	/**
+	 * Add a message to the batch. A single pad lighting message is merged with
+	 * the messages for the other pads.
+	 * 
+	 * @param message
+	 *            message
+	 */
+	private void add(final OutboundMessage message) {
+
+		if (isCombinable(message)) {
+			List<OutboundMessage> group = collect(message);
+			// Identification may have been queued during the window
+			addAll(PriorityEnum.PROTOCOL);
+			add(group);
+		} else {
+			addFrames(message);
+		}
+	}
+
+	/**
+	 * Add the frames of a message to the batch, as they are.
+	 * 
+	 * @param message
+	 *            message
+	 */
+	private void addFrames(final OutboundMessage message) {
+
+		batchMessages.add(message);
+		for (byte[] frame : message.getFrames()) {
+			batchFrames.add(frame);
+		}
+		message.setLastFrame(batchFrames.get(batchFrames.size() - 1));
+	}
+
+	/**
+	 * Add to the batch all the messages waiting in a lane.
+	 * 
+	 * @param priority
+	 *            priority of the lane
+	 */
+	private void addAll(final PriorityEnum priority) {
+
+		OutboundLane lane = lanes[priority.ordinal()];
+		OutboundMessage message;
+		while ((message = lane.poll()) != null) {
+			add(message);
+		}
+	}
+
+	/**
+	 * Check if a message is a single pad lighting message which can be merged
+	 * with others: one pad (not ALL), at most one SWITCH_PAD, FADE_PAD and
+	 * FLASH_PAD in this order.
+	 * 
+	 * @param message
+	 *            message
+	 * @return true if the message can be merged
+	 */
+	private static boolean isCombinable(final OutboundMessage message) {
+
+		int mask = message.getPadMask();
+		if (mask == 0 || mask == ALL_PADS_MASK || Integer.bitCount(mask) != 1) {
+			return false;
+		}
+		int commandIndex = 0;
+		for (byte[] frame : message.getFrames()) {
+			CommandEnum command = CommandEnum.findCommand(frame[FrameCodec.INDEX_COMMAND]);
+			while (commandIndex < COMBINABLE_COMMANDS.length && COMBINABLE_COMMANDS[commandIndex] != command) {
+				commandIndex++;
+			}
+			if (commandIndex == COMBINABLE_COMMANDS.length) {
+				return false;
+			}
+			commandIndex++;
+		}
+		return true;
+	}
+
+	/**
+	 * Collect the messages to merge with the first one: lighting messages for
+	 * the other pads, queued or received during the combining window. The
+	 * inbox is dispatched meanwhile, and the window ends as soon as a protocol
+	 * message is waiting.
+	 * 
+	 * @param first
+	 *            first message
+	 * @return the messages to merge
+	 */
+	private List<OutboundMessage> collect(final OutboundMessage first) {
+
+		List<OutboundMessage> group = new ArrayList<>(3);
+		group.add(first);
+		int mask = first.getPadMask();
+		OutboundLane lighting = lanes[PriorityEnum.LIGHTING.ordinal()];
+		OutboundLane protocol = lanes[PriorityEnum.PROTOCOL.ordinal()];
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(combiningWindow);
+		while (mask != ALL_PADS_MASK && protocol.isEmpty()) {
+			OutboundMessage candidate = lighting.peek();
+			if (candidate == null) {
+				drainInbox();
+				if (lighting.isEmpty()) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+						break;
+					}
+					LockSupport.parkNanos(this, remaining);
+				}
+			} else if (isCombinable(candidate) && (candidate.getPadMask() & mask) == 0) {
+				group.add(lighting.poll());
+				mask |= candidate.getPadMask();
+			} else {
+				// Keep the order: this message is written after the group
+				break;
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * Add to the batch a group of single pad messages, merged in multi pads
+	 * frames.
+	 * 
+	 * @param group
+	 *            messages to merge
+	 */
+	private void add(final List<OutboundMessage> group) {
+
+		if (group.size() == 1) {
+			addFrames(group.get(0));
+			return;
+		}
+		byte[][] sameCommand = new byte[group.size()][];
+		for (CommandEnum command : COMBINABLE_COMMANDS) {
+			int count = 0;
+			for (OutboundMessage message : group) {
+				for (byte[] frame : message.getFrames()) {
+					if (frame[FrameCodec.INDEX_COMMAND] == command.getCommandId()) {
+						sameCommand[count++] = frame;
+					}
+				}
+			}
+			if (count == 1) {
+				batchFrames.add(sameCommand[0]);
+			} else if (count > 1) {
+				batchFrames.add(FrameCodec.merge(command, sameCommand, count, new byte[FrameCodec.FRAME_LENGTH]));
+			}
+		}
+		byte[] lastFrame = batchFrames.get(batchFrames.size() - 1);
+		for (OutboundMessage message : group) {
+			message.setLastFrame(lastFrame);
+		}
+		batchMessages.addAll(group);
+	}
+
+	/**
+	 * Write the frames of the batch in one call, then complete the messages of
+	 * the batch.
+	 */
+	private void flush() {
+
+		try {
+			writeFrames(batchFrames);
+			CompletableFuture<byte[]> acknowledgement = null;
+			byte[] acknowledgedFrame = null;
+			for (OutboundMessage message : batchMessages) {
+				message.complete();
+				if (message.isAcknowledgementAwaited()) {
+					// The messages of a merged group share their last frame
+					if (message.getLastFrame() != acknowledgedFrame) {
+						acknowledgedFrame = message.getLastFrame();
+						acknowledgement = expect(acknowledgedFrame);
+					}
+					awaitAcknowledgement(message, acknowledgement);
+				}
+			}
+		} catch (Exception ex) {
+			logger.error("Error while sending message to toypad.");
+			for (OutboundMessage message : batchMessages) {
+				message.fail(new ToyPadException(JToypadConstants.ERR_USB_SEND));
+				invalidate(message);
+			}
+		}
+		batchFrames.clear();
+		batchMessages.clear();
+	}
+
+	/**
+	 * Forget the lighting state of the pads of a message which can't be
+	 * written.
+	 * 
+	 * @param message
+	 *            message
+	 */
+	private void invalidate(final OutboundMessage message) {
+
+		LightingShadow shadow = lightingShadow;
+		if (shadow != null && message.getPadMask() != 0) {
+			shadow.invalidate(message.getPadMask());
+		}
+	}
+
+	/**
+	 * Wait for the acknowledgement of a written frame.
+	 * 
+	 * @param frame
+	 *            written frame
+	 * @return a future completed with the acknowledgement, or failed
+	 */
+	private CompletableFuture<byte[]> expect(final byte[] frame) {
+
+		CompletableFuture<byte[]> acknowledgement;
+		CorrelationTable table = correlationTable;
+		try {
+			if (table == null) {
+				throw new ToyPadException(JToypadConstants.ERR_CLOSED);
+			}
+			acknowledgement = table.expect(frame);
+		} catch (ToyPadException e) {
+			acknowledgement = new CompletableFuture<>();
+			acknowledgement.completeExceptionally(e);
+		}
+		return acknowledgement;
+	}
+
+	/**
+	 * Acknowledge a message when its last frame is acknowledged.
+	 * 
+	 * @param message
+	 *            message
+	 * @param acknowledgement
+	 *            acknowledgement of the last frame of the message
+	 */
+	private static void awaitAcknowledgement(final OutboundMessage message,
+			final CompletableFuture<byte[]> acknowledgement) {
+
+		acknowledgement.whenComplete(new BiConsumer<byte[], Throwable>() {
+			@Override
+			public void accept(final byte[] response, final Throwable error) {
+				if (error == null) {
+					message.acknowledge();
+				} else {
+					message.failAcknowledgement(error);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write frames to the transport, in one call.
+	 * 
+	 * @param frames
+	 *            frames
+	 * @throws ToyPadException
+	 *             if the frames can't be written
+	 */
+	private void writeFrames(final List<byte[]> frames) throws ToyPadException {
+
+		if (logger.isTraceEnabled()) {
+			for (byte[] frame : frames) {
+				logger.trace("Sending {}", TagDecoder.byteToHex(frame));
+			}
+		}
+		transport.write(frames);
+		sentCount.addAndGet(frames.size());
+		batchCount.incrementAndGet();
+	}
+
+	/**
+	 * @param combiningWindow
+	 *            the combining window to set (ms), 0 to merge only the
+	 *            messages already queued
+	 */
+	public final void setCombiningWindow(final long combiningWindow) {
+		this.combiningWindow = combiningWindow;
+	}
+
+	/**
+	 * @param correlationTable
+	 *            the table waiting for the acknowledgements of the frames
+	 */
+	public final void setCorrelationTable(final CorrelationTable correlationTable) {
+		this.correlationTable = correlationTable;
+	}
+
+	/**
+	 * @param lightingShadow
+	 *            the shadow of the lighting state, invalidated for the pads of
+	 *            the messages which can't be written
+	 */
+	public final void setLightingShadow(final LightingShadow lightingShadow) {
+		this.lightingShadow = lightingShadow;
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	public final int getQueueSize() {
+
+		int size = inboxSize.get();
+		for (OutboundLane lane : lanes) {
+			size += lane.getQueueSize();
+		}
+		return size;
+	}
+
+	/**
+	 * Return the lane of a priority, with its metrics.
+	 * 
+	 * @param priority
+	 *            priority
+	 * @return the lane
+	 */
+	public final OutboundLane getLane(final PriorityEnum priority) {
+		return lanes[priority.ordinal()];
+	}
+
+	/**
+	 * @return the number of frames written
+	 */
+	public final long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * @return the number of batches written
+	 */
+	public final long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * @return the number of messages dropped because replaced by a newer one
+	 */
+	public final long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+}
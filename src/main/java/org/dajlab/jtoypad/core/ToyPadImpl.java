@@ -15,39 +15,44 @@
  */
 package org.dajlab.jtoypad.core;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import javax.swing.event.EventListenerList;
-import javax.usb.UsbConfiguration;
 import javax.usb.UsbDevice;
-import javax.usb.UsbEndpoint;
-import javax.usb.UsbInterface;
-import javax.usb.UsbInterfacePolicy;
-import javax.usb.UsbPipe;
-import javax.usb.event.UsbPipeDataEvent;
-import javax.usb.event.UsbPipeErrorEvent;
-import javax.usb.event.UsbPipeListener;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.transport.FrameListener;
+import org.dajlab.jtoypad.core.transport.ToyPadTransport;
+import org.dajlab.jtoypad.core.transport.UsbTransport;
 
 /**
- * Implementation of Toypad.
+ * Implementation of Toypad.<br>
+ * The frames are exchanged with the toypad through a transport (javax.usb by
+ * default).
  * 
  * @author Erik Amzallag
  *
  */
-public class ToyPadImpl implements ToyPad, UsbPipeListener {
+public class ToyPadImpl implements ToyPad, FrameListener {
 
 	/**
 	 * Generic prefix.
 	 */
-	private final static byte PREFIX_GENERIC = 0x55;
+	private final static byte PREFIX_GENERIC = FrameCodec.PREFIX_GENERIC;
 	/**
 	 * Prefix for event.
 	 */
-	private final static byte PREFIX_EVENT = 0x56;
+	private final static byte PREFIX_EVENT = FrameCodec.PREFIX_EVENT;
 
 	/**
 	 * Init command.
@@ -57,55 +62,106 @@ public class ToyPadImpl implements ToyPad, UsbPipeListener {
 			0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
 
 	/**
-	 * Endpoint for ouput.
+	 * Max time to wait for the pending messages to be written when closing (ms).
 	 */
-	private final static byte ENDPOINT_OUT = 0x01;
+	private final static long CLOSE_TIMEOUT = 2000;
 
 	/**
-	 * Endpoint for input.
+	 * Transport of the frames.
 	 */
-	private final static byte ENDPOINT_IN = (byte) 0x81;
+	private final ToyPadTransport transport;
 
 	/**
-	 * Usb device.
+	 * Logger.
 	 */
-	private UsbDevice usbDevice;
+	private Logger logger = LogManager.getLogger(ToyPadImpl.class);
+
 	/**
-	 * Usb interface.
+	 * Tag listeners.
 	 */
-	private UsbInterface iface;
+	private EventListenerList tagListeners;
 
 	/**
-	 * Logger.
+	 * Number of frames received.
 	 */
-	private Logger logger = LogManager.getLogger(ToyPadImpl.class);
+	private final AtomicLong receivedCount = new AtomicLong();
 
 	/**
-	 * Message counter. Start at 2 (1 is for the init command).
+	 * Number of characters identified from the READ response.
 	 */
-	private int messageCounter = 2;
+	private final AtomicLong localDecryptCount = new AtomicLong();
 
 	/**
-	 * Tag listeners.
+	 * Number of characters identified with a LST_MODEL request.
 	 */
-	private EventListenerList tagListeners;
+	private final AtomicLong lstModelCount = new AtomicLong();
+
+	/**
+	 * Event loop writing the outbound messages and decoding the received
+	 * frames.
+	 */
+	private volatile ToyPadEventLoop eventLoop;
+
+	/**
+	 * Write combining window (ms).
+	 */
+	private long combiningWindow = ToyPadEventLoop.DEFAULT_COMBINING_WINDOW;
+
+	/**
+	 * Requests waiting for a response.
+	 */
+	private CorrelationTable correlationTable;
+
+	/**
+	 * Scheduler for the timeouts of the requests.
+	 */
+	private volatile ScheduledExecutorService scheduler;
+
+	/**
+	 * Timeout of a request (ms).
+	 */
+	private long requestTimeout = CorrelationTable.DEFAULT_TIMEOUT;
+
+	/**
+	 * Number of retries of a request.
+	 */
+	private int requestRetries = CorrelationTable.DEFAULT_RETRIES;
+
+	/**
+	 * Cache for tags, may be shared by the toypads of a manager.
+	 */
+	private volatile TagCache tagCache = new TagCache();
+
+	/**
+	 * Persistent store of the identified tags, shared by the toypads. May be
+	 * null.
+	 */
+	private volatile TagStore tagStore;
+
+	/**
+	 * Scheduler of the identification of the tags, pipelining their requests.
+	 */
+	private final IdentificationScheduler identificationScheduler = new IdentificationScheduler(this);
 
 	/**
-	 * Map events.
+	 * Shadow of the lighting state of the pads.
 	 */
-	private Map<Integer, TagEvent> mapEvents = new HashMap<>();
+	private final LightingShadow shadow = new LightingShadow();
 
 	/**
-	 * USB pipe in.
+	 * Reconciler of the lighting with the desired state of the pads.
 	 */
-	private UsbPipe pipeIn;
+	private final LightingReconciler reconciler = new LightingReconciler(this);
 
 	/**
-	 * Cache for tags.<br>
-	 * Key: UID<br>
-	 * Value: Tag
+	 * Publisher of the tag events.
 	 */
-	private Map<String, Tag> tagCache;
+	private final TagEventPublisher tagEventPublisher = new TagEventPublisher();
+
+	/**
+	 * Asynchronous companion of this toypad.
+	 */
+	private final AsyncToyPad asyncToyPad = new AsyncToyPadImpl(this);
 
 	/**
 	 * Constructor.
@@ -117,12 +173,28 @@ public class ToyPadImpl implements ToyPad, UsbPipeListener {
 	 */
 	public ToyPadImpl(final UsbDevice usbDevice) throws ToyPadException {
 
-		this.usbDevice = usbDevice;
-		tagCache = new HashMap<>();
-		UsbConfiguration configuration = usbDevice.getActiveUsbConfiguration();
-		iface = (UsbInterface) configuration.getUsbInterfaces().get(0);
+		this(new UsbTransport(usbDevice));
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param transport
+	 *            transport of the frames, not opened
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	public ToyPadImpl(final ToyPadTransport transport) throws ToyPadException {
+
+		this.transport = transport;
+		shadow.setInvalidationListener(new Runnable() {
+			@Override
+			public void run() {
+				reconciler.retry();
+			}
+		});
 		open();
-		sendMessage(TOYPAD_INIT);
+		sendMessage(new OutboundMessage(TOYPAD_INIT));
 		// Got this response, seems to be useless :
 		// 55 19 01 00 2F 02 01 02 02 04 02 F5 00 19 87 55 80 4D D7 AE AE
 		// 1C E5 11 FF 20 1C E2 00 00 00 00
@@ -138,47 +210,64 @@ public class ToyPadImpl implements ToyPad, UsbPipeListener {
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void open() throws ToyPadException {
+	public synchronized void open() throws ToyPadException {
 
+		if (eventLoop != null) {
+			// Already opened
+			return;
+		}
+		eventLoop = new ToyPadEventLoop(transport, ToyPadEventLoop.DEFAULT_CAPACITY, this);
+		eventLoop.setCombiningWindow(combiningWindow);
+		eventLoop.setLightingShadow(shadow);
+		// The pads may have been changed while closed
+		shadow.invalidate(PadEnum.ALL.getMask());
+		// The identifications in flight at close will never complete
+		identificationScheduler.reset();
+		eventLoop.start("jtoypad-loop-" + getIdentifiant());
 		try {
-			iface.claim(new UsbInterfacePolicy() {
-				public boolean forceClaim(UsbInterface usbInterface) {
-					return true;
-				}
-			});
-			UsbEndpoint endpoint = (UsbEndpoint) iface.getUsbEndpoint(ENDPOINT_IN);
-			pipeIn = endpoint.getUsbPipe();
-			pipeIn.open();
-			pipeIn.addUsbPipeListener(this);
-			byte[] data = new byte[32];
-			pipeIn.asyncSubmit(data);
-
-		} catch (Exception ex) {
-			try {
-				iface.release();
-			} catch (Exception e) {
-			}
-			logger.error("Error while claiming usb [{}]", ex.getMessage());
-			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
-		} finally {
-
+			transport.open(eventLoop);
+		} catch (ToyPadException e) {
+			eventLoop.stop(0);
+			eventLoop = null;
+			throw e;
 		}
-
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r, "jtoypad-timeout-" + getIdentifiant());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		correlationTable = new CorrelationTable(eventLoop, scheduler);
+		correlationTable.setTimeout(requestTimeout);
+		correlationTable.setRetries(requestRetries);
+		eventLoop.setCorrelationTable(correlationTable);
+		// Apply the desired state again
+		reconciler.schedule();
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void close() throws ToyPadException {
+	public synchronized void close() throws ToyPadException {
 
-		try {
-			iface.release();
-		} catch (Exception e) {
-			logger.error("Error while release usb [{}]", e.getMessage());
-			throw new ToyPadException(JToypadConstants.ERR_CLOSE_USB);
+		if (eventLoop != null) {
+			// Let the pending messages be written
+			eventLoop.stop(CLOSE_TIMEOUT);
+			eventLoop = null;
 		}
-
+		if (correlationTable != null) {
+			correlationTable.close();
+			correlationTable = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		transport.close();
+		tagEventPublisher.complete();
 	}
 
 	/**
@@ -189,467 +278,1469 @@ public class ToyPadImpl implements ToyPad, UsbPipeListener {
 	 * @param payload
 	 *            payload
 	 * @return a complete 32 bits command
+	 * @throws ToyPadException
+	 *             if the toypad is closed
 	 */
-	private byte[] completeCommand(CommandEnum command, byte[] payload) {
+	private byte[] completeCommand(CommandEnum command, byte[] payload) throws ToyPadException {
 
-		byte[] fullCommand = new byte[32];
-		fullCommand[0] = PREFIX_GENERIC;
-		fullCommand[1] = command.getPayloadSize();
-		fullCommand[2] = command.getCommandId();
-		fullCommand[3] = (byte) messageCounter;
-		int i = 0;
-		while (i < payload.length) {
-			fullCommand[i + 4] = payload[i];
-			i++;
+		CorrelationTable table = correlationTable;
+		if (table == null) {
+			throw new ToyPadException(JToypadConstants.ERR_CLOSED);
 		}
-		fullCommand[i + 4] = calculateChecksum(fullCommand);
-		messageCounter++;
-		return fullCommand;
+		return FrameCodec.encode(command, table.nextCounter(), payload);
 	}
 
 	/**
-	 * Calculate checksum for a command.
+	 * Build a command.
 	 * 
 	 * @param command
 	 *            command
-	 * @return the checksum
+	 * @param payload
+	 *            payload
+	 * @return the full command, the message counter is at index 3
+	 * @throws ToyPadException
+	 *             if the toypad is closed
 	 */
-	private byte calculateChecksum(byte[] command) {
+	private byte[] buildCommand(CommandEnum command, byte[] payload) throws ToyPadException {
 
-		byte checksum = 0;
-		for (byte b : command) {
-			checksum += b;
-			checksum = (byte) (checksum % 256);
-		}
-
-		return checksum;
+		checkPayload(command, payload);
+		return completeCommand(command, payload);
 	}
 
 	/**
-	 * Send a command.
+	 * Check the size of a payload.
 	 * 
 	 * @param command
 	 *            command
 	 * @param payload
 	 *            payload
-	 * @return the message counter
-	 * @throws ToyPadException
-	 *             toypad exception
 	 */
-	private int sendCommand(CommandEnum command, byte[] payload) throws ToyPadException {
+	private void checkPayload(CommandEnum command, byte[] payload) {
 
 		logger.trace("Sending command [{}]", command.name());
 		if (payload.length != command.getPayloadSize() - 2) {
 			logger.error("Incorrect payload size : expected=[{}], actual=[{}]", command.getPayloadSize(),
 					payload.length);
 		}
-		byte[] completedMessage = completeCommand(command, payload);
-		sendMessage(completedMessage);
+	}
+
+	/**
+	 * Start a command in a new frame. The payload is then put
+	 * in the frame, from FrameCodec.INDEX_PAYLOAD, before calling
+	 * FrameCodec.seal().
+	 * 
+	 * @param command
+	 *            command
+	 * @return the frame with its header
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	private byte[] newFrame(CommandEnum command) throws ToyPadException {
 
-		// returning the message counter
-		return completedMessage[3];
+		CorrelationTable table = correlationTable;
+		if (table == null) {
+			throw new ToyPadException(JToypadConstants.ERR_CLOSED);
+		}
+		logger.trace("Sending command [{}]", command.name());
+		int counter = table.nextCounter();
+		return FrameCodec.start(new byte[FrameCodec.FRAME_LENGTH], command, counter);
 	}
 
 	/**
-	 * Send message. <br>
-	 * This method is synchronized.
+	 * Create a lighting message.
+	 * 
+	 * @param sequence
+	 *            sequence number of the change of the shadow made by the
+	 *            message
+	 * @param padMask
+	 *            mask of the pads changed by the message
+	 * @param absolute
+	 *            true if the final state of the pads doesn't depend on their
+	 *            previous state
+	 * @param frames
+	 *            the full 32 bytes frames
+	 * @return the message
+	 */
+	private OutboundMessage lightingMessage(final long sequence, final int padMask, final boolean absolute,
+			final byte[]... frames) {
+
+		OutboundMessage message = new OutboundMessage(padMask, absolute, frames);
+		message.setSequence(sequence);
+		return message;
+	}
+
+	/**
+	 * Send a command which is never coalesced.
 	 * 
 	 * @param command
-	 *            the full command
+	 *            command
+	 * @param payload
+	 *            payload
+	 * @return a future completed when the command has been written
 	 * @throws ToyPadException
 	 *             toypad exception
 	 */
-	private synchronized void sendMessage(byte[] command) throws ToyPadException {
+	private Future<Void> sendCommand(CommandEnum command, byte[] payload) throws ToyPadException {
 
-		byte[] message;
-		if (command.length != 32) {
-			logger.error("Incorrect lenght. Expected 32 bits, got [{}]", command.length);
-			throw new ToyPadException(JToypadConstants.ERR_MESSAGE_LENGTH);
-		} else {
-			message = command;
-		}
-		if (logger.isTraceEnabled()) {
-			logger.trace("Sending {}", TagDecoder.byteToHex(message));
+		return sendMessage(new OutboundMessage(buildCommand(command, payload)));
+	}
+
+	/**
+	 * Send a request and wait for its response, matched with the message
+	 * counter.<br>
+	 * The request is sent again if the response doesn't come in time.
+	 * 
+	 * @param command
+	 *            command
+	 * @param payload
+	 *            payload
+	 * @return a future completed with the response frame, or failed if there
+	 *         is still no response after the retries
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	public CompletableFuture<byte[]> sendRequest(final CommandEnum command, final byte[] payload)
+			throws ToyPadException {
+
+		CorrelationTable table = correlationTable;
+		if (table == null) {
+			throw new ToyPadException(JToypadConstants.ERR_CLOSED);
 		}
-		try {
-			UsbEndpoint endpoint = (UsbEndpoint) iface.getUsbEndpoint(ENDPOINT_OUT);
-			UsbPipe pipe = endpoint.getUsbPipe();
-			pipe.open();
-			pipe.syncSubmit(message);
-			pipe.close();
-		} catch (Exception ex) {
-			logger.error("Error while sending message to toypad.");
-			throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
-		} finally {
+		checkPayload(command, payload);
+		return table.send(command, payload);
+	}
+
+	/**
+	 * Send message. <br>
+	 * The message is put in the inbox of the event loop, which writes it.
+	 * 
+	 * @param message
+	 *            the message
+	 * @return a future completed when the message has been written
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	private Future<Void> sendMessage(OutboundMessage message) throws ToyPadException {
 
+		for (byte[] frame : message.getFrames()) {
+			if (frame.length != 32) {
+				logger.error("Incorrect lenght. Expected 32 bits, got [{}]", frame.length);
+				throw new ToyPadException(JToypadConstants.ERR_MESSAGE_LENGTH);
+			}
 		}
+		ToyPadEventLoop loop = eventLoop;
+		if (loop == null) {
+			throw new ToyPadException(JToypadConstants.ERR_CLOSED);
+		}
+		loop.submit(message);
+		return message.getFuture();
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Build a SWITCH_PAD command.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param color
+	 *            color
+	 * @return the full command
+	 * @throws ToyPadException
+	 *             if the toypad is closed
 	 */
-	@Override
-	public void turnOffPads() throws ToyPadException {
+	private byte[] buildSwitchPad(final PadEnum pad, final Color color) throws ToyPadException {
 
-		switchPad(PadEnum.ALL, Color.BLACK);
+		byte[] frame = newFrame(CommandEnum.SWITCH_PAD);
+		frame[FrameCodec.INDEX_PAYLOAD] = pad.getValue();
+		FrameCodec.putColor(frame, FrameCodec.INDEX_PAYLOAD + 1, color);
+		return FrameCodec.seal(frame);
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Build a SWITCH_PADS command.
+	 * 
+	 * @param colorPadLeft
+	 *            color for left pad, may be null
+	 * @param colorPadCenter
+	 *            color for center pad, may be null
+	 * @param colorPadRight
+	 *            color for right pad, may be null
+	 * @return the full command
+	 * @throws ToyPadException
+	 *             if the toypad is closed
 	 */
-	@Override
-	public void switchPad(final PadEnum pad, final Color color) throws ToyPadException {
+	private byte[] buildSwitchPads(final Color colorPadLeft, final Color colorPadCenter, final Color colorPadRight)
+			throws ToyPadException {
+
+		byte[] frame = newFrame(CommandEnum.SWITCH_PADS);
+		putSwitchSlot(frame, FrameCodec.INDEX_PAYLOAD, colorPadCenter);
+		putSwitchSlot(frame, FrameCodec.INDEX_PAYLOAD + 4, colorPadLeft);
+		putSwitchSlot(frame, FrameCodec.INDEX_PAYLOAD + 8, colorPadRight);
+		return FrameCodec.seal(frame);
+	}
+
+	/**
+	 * Build a FLASH_PAD command.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param flashColor
+	 *            flash
+	 * @return the full command
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	private byte[] buildFlashPad(final PadEnum pad, final FlashColor flashColor) throws ToyPadException {
+
+		byte[] frame = newFrame(CommandEnum.FLASH_PAD);
+		frame[FrameCodec.INDEX_PAYLOAD] = pad.getValue();
+		frame[FrameCodec.INDEX_PAYLOAD + 1] = (byte) flashColor.getTimeForColor1();
+		frame[FrameCodec.INDEX_PAYLOAD + 2] = (byte) flashColor.getTimeForColor2();
+		frame[FrameCodec.INDEX_PAYLOAD + 3] = (byte) flashColor.getPulseCount();
+		FrameCodec.putColor(frame, FrameCodec.INDEX_PAYLOAD + 4, flashColor.getColor1());
+		return FrameCodec.seal(frame);
+	}
+
+	/**
+	 * Build a FADE_PAD command.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param fadeColor
+	 *            fade
+	 * @return the full command
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	private byte[] buildFadePad(final PadEnum pad, final FadeColor fadeColor) throws ToyPadException {
+
+		byte[] frame = newFrame(CommandEnum.FADE_PAD);
+		frame[FrameCodec.INDEX_PAYLOAD] = pad.getValue();
+		frame[FrameCodec.INDEX_PAYLOAD + 1] = (byte) fadeColor.getPulseTime();
+		frame[FrameCodec.INDEX_PAYLOAD + 2] = (byte) fadeColor.getPulseCount();
+		FrameCodec.putColor(frame, FrameCodec.INDEX_PAYLOAD + 3, fadeColor.getToColor());
+		return FrameCodec.seal(frame);
+	}
+
+	/**
+	 * Put the slot of a pad in a SWITCH_PADS frame.
+	 * 
+	 * @param frame
+	 *            frame
+	 * @param index
+	 *            index of the slot
+	 * @param color
+	 *            color, null to leave the pad unchanged
+	 */
+	private static void putSwitchSlot(final byte[] frame, final int index, final Color color) {
 
 		if (color != null) {
-			sendCommand(CommandEnum.SWITCH_PAD, new byte[] { pad.getValue(), (byte) color.getRed(),
-					(byte) color.getGreen(), (byte) color.getBlue() });
+			frame[index] = 1;
+			FrameCodec.putColor(frame, index + 1, color);
 		}
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Put the slot of a pad in a FLASH_PADS frame.
+	 * 
+	 * @param frame
+	 *            frame
+	 * @param index
+	 *            index of the slot
+	 * @param flashColor
+	 *            flash, null to leave the pad unchanged
 	 */
-	@Override
-	public void switchPads(final Color colorPadLeft, final Color colorPadCenter, final Color colorPadRight)
-			throws ToyPadException {
+	private static void putFlashSlot(final byte[] frame, final int index, final FlashColor flashColor) {
+
+		if (flashColor != null) {
+			frame[index] = 1;
+			frame[index + 1] = (byte) flashColor.getTimeForColor1();
+			frame[index + 2] = (byte) flashColor.getTimeForColor2();
+			frame[index + 3] = (byte) flashColor.getPulseCount();
+			FrameCodec.putColor(frame, index + 4, flashColor.getColor1());
+		}
+	}
+
+	/**
+	 * Put the slot of a pad in a FADE_PADS frame.
+	 * 
+	 * @param frame
+	 *            frame
+	 * @param index
+	 *            index of the slot
+	 * @param fadeColor
+	 *            fade, null to leave the pad unchanged
+	 */
+	private static void putFadeSlot(final byte[] frame, final int index, final FadeColor fadeColor) {
 
-		byte[] payload = new byte[12];
-		if (colorPadCenter != null) {
-			payload[0] = 1;
-			payload[1] = (byte) colorPadCenter.getRed();
-			payload[2] = (byte) colorPadCenter.getGreen();
-			payload[3] = (byte) colorPadCenter.getBlue();
+		if (fadeColor != null) {
+			frame[index] = 1;
+			frame[index + 1] = (byte) fadeColor.getPulseTime();
+			frame[index + 2] = (byte) fadeColor.getPulseCount();
+			FrameCodec.putColor(frame, index + 3, fadeColor.getToColor());
 		}
-		if (colorPadLeft != null) {
-			payload[4] = 1;
-			payload[5] = (byte) colorPadLeft.getRed();
-			payload[6] = (byte) colorPadLeft.getGreen();
-			payload[7] = (byte) colorPadLeft.getBlue();
+	}
+
+	/**
+	 * Compute the mask of the pads for which a value is given.
+	 * 
+	 * @param left
+	 *            value for the left pad
+	 * @param center
+	 *            value for the center pad
+	 * @param right
+	 *            value for the right pad
+	 * @return the mask
+	 */
+	private static int padMask(final Object left, final Object center, final Object right) {
+
+		int mask = 0;
+		if (left != null) {
+			mask |= PadEnum.LEFT.getMask();
 		}
-		if (colorPadRight != null) {
-			payload[8] = 1;
-			payload[9] = (byte) colorPadRight.getRed();
-			payload[10] = (byte) colorPadRight.getGreen();
-			payload[11] = (byte) colorPadRight.getBlue();
+		if (center != null) {
+			mask |= PadEnum.CENTER.getMask();
 		}
-		sendCommand(CommandEnum.SWITCH_PADS, payload);
+		if (right != null) {
+			mask |= PadEnum.RIGHT.getMask();
+		}
+		return mask;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void flashPad(final PadEnum pad, final FlashColor flashColor) throws ToyPadException {
+	public Future<Void> turnOffPads() throws ToyPadException {
 
-		switchPad(pad, flashColor.getColor2());
-		sendCommand(CommandEnum.FLASH_PAD,
-				new byte[] { pad.getValue(), (byte) flashColor.getTimeForColor1(), (byte) flashColor.getTimeForColor2(),
-						(byte) flashColor.getPulseCount(), (byte) flashColor.getColor1().getRed(),
-						(byte) flashColor.getColor1().getGreen(), (byte) flashColor.getColor1().getBlue() });
+		return switchPad(PadEnum.ALL, Color.BLACK);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void flashPads(final FlashColor flashColorLeft, final FlashColor flashColorCenter,
-			final FlashColor flashColorRight) throws ToyPadException {
+	public Future<Void> switchPad(final PadEnum pad, final Color color) throws ToyPadException {
 
-		byte[] payload = new byte[21];
-
-		Color color2Center = null;
-		Color color2Left = null;
-		Color color2Right = null;
-
-		if (flashColorCenter != null) {
-			payload[0] = 1;
-			payload[1] = (byte) flashColorCenter.getTimeForColor1();
-			payload[2] = (byte) flashColorCenter.getTimeForColor2();
-			payload[3] = (byte) flashColorCenter.getPulseCount();
-			payload[4] = (byte) flashColorCenter.getColor1().getRed();
-			payload[5] = (byte) flashColorCenter.getColor1().getGreen();
-			payload[6] = (byte) flashColorCenter.getColor1().getBlue();
-			color2Center = flashColorCenter.getColor2();
-		}
-		if (flashColorLeft != null) {
-			payload[7] = 1;
-			payload[8] = (byte) flashColorLeft.getTimeForColor1();
-			payload[9] = (byte) flashColorLeft.getTimeForColor2();
-			payload[10] = (byte) flashColorLeft.getPulseCount();
-			payload[11] = (byte) flashColorLeft.getColor1().getRed();
-			payload[12] = (byte) flashColorLeft.getColor1().getGreen();
-			payload[13] = (byte) flashColorLeft.getColor1().getBlue();
-			color2Left = flashColorLeft.getColor2();
-		}
-		if (flashColorRight != null) {
-			payload[14] = 1;
-			payload[15] = (byte) flashColorRight.getTimeForColor1();
-			payload[16] = (byte) flashColorRight.getTimeForColor2();
-			payload[17] = (byte) flashColorRight.getPulseCount();
-			payload[18] = (byte) flashColorRight.getColor1().getRed();
-			payload[19] = (byte) flashColorRight.getColor1().getGreen();
-			payload[20] = (byte) flashColorRight.getColor1().getBlue();
-			color2Right = flashColorRight.getColor2();
-		}
-		switchPads(color2Left, color2Center, color2Right);
-		sendCommand(CommandEnum.FLASH_PADS, payload);
+		return send(switchPadMessage(pad, color));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount) throws ToyPadException {
+	public Future<Void> switchPads(final Color colorPadLeft, final Color colorPadCenter, final Color colorPadRight)
+			throws ToyPadException {
 
-		sendCommand(CommandEnum.FADE_PAD_RANDOM, new byte[] { pad.getValue(), (byte) pulseTime, (byte) pulseCount });
+		return send(switchPadsMessage(colorPadLeft, colorPadCenter, colorPadRight));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void fadePad(final PadEnum pad, final FadeColor fadeColor) throws ToyPadException {
+	public Future<Void> flashPad(final PadEnum pad, final FlashColor flashColor) throws ToyPadException {
 
-		switchPad(pad, fadeColor.getFromColor());
-		sendCommand(CommandEnum.FADE_PAD,
-				new byte[] { pad.getValue(), (byte) fadeColor.getPulseTime(), (byte) fadeColor.getPulseCount(),
-						(byte) fadeColor.getToColor().getRed(), (byte) fadeColor.getToColor().getGreen(),
-						(byte) fadeColor.getToColor().getBlue() });
+		return send(flashPadMessage(pad, flashColor));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void fadePad(final PadEnum pad, final Color fromColor, final Color toColor, final int time)
-			throws ToyPadException {
+	public Future<Void> flashPads(final FlashColor flashColorLeft, final FlashColor flashColorCenter,
+			final FlashColor flashColorRight) throws ToyPadException {
 
-		fadePad(pad, new FadeColor(fromColor, toColor, time, 1));
+		return send(flashPadsMessage(flashColorLeft, flashColorCenter, flashColorRight));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void fadePads(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter, final FadeColor fadeColorRight)
+	public Future<Void> fadePadRandom(final PadEnum pad, final int pulseTime, final int pulseCount)
 			throws ToyPadException {
 
-		byte[] payload = new byte[18];
-		Color fromColorCenter = null;
-		Color fromColorLeft = null;
-		Color fromColorRight = null;
-
-		if (fadeColorCenter != null) {
-			payload[0] = 1;
-			payload[1] = (byte) fadeColorCenter.getPulseTime();
-			payload[2] = (byte) fadeColorCenter.getPulseCount();
-			payload[3] = (byte) fadeColorCenter.getToColor().getRed();
-			payload[4] = (byte) fadeColorCenter.getToColor().getGreen();
-			payload[5] = (byte) fadeColorCenter.getToColor().getBlue();
-			fromColorCenter = fadeColorCenter.getFromColor();
-		}
-		if (fadeColorLeft != null) {
-			payload[6] = 1;
-			payload[7] = (byte) fadeColorLeft.getPulseTime();
-			payload[8] = (byte) fadeColorLeft.getPulseCount();
-			payload[9] = (byte) fadeColorLeft.getToColor().getRed();
-			payload[10] = (byte) fadeColorLeft.getToColor().getGreen();
-			payload[11] = (byte) fadeColorLeft.getToColor().getBlue();
-			fromColorLeft = fadeColorLeft.getFromColor();
-		}
-		if (fadeColorRight != null) {
-			payload[12] = 1;
-			payload[13] = (byte) fadeColorRight.getPulseTime();
-			payload[14] = (byte) fadeColorRight.getPulseCount();
-			payload[15] = (byte) fadeColorRight.getToColor().getRed();
-			payload[16] = (byte) fadeColorRight.getToColor().getGreen();
-			payload[17] = (byte) fadeColorRight.getToColor().getBlue();
-			fromColorRight = fadeColorRight.getFromColor();
-		}
-		switchPads(fromColorLeft, fromColorCenter, fromColorRight);
-		sendCommand(CommandEnum.FADE_PADS, payload);
+		return send(fadePadRandomMessage(pad, pulseTime, pulseCount));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public String getIdentifiant() {
-		return usbDevice.toString();
+	public Future<Void> fadePad(final PadEnum pad, final FadeColor fadeColor) throws ToyPadException {
+
+		return send(fadePadMessage(pad, fadeColor));
 	}
 
 	/**
-	 * Decode input data to tag
-	 * 
-	 * @param data
-	 *            data
+	 * {@inheritDoc}
 	 */
-	private void decodeInput(final byte[] data) {
-
-		if (logger.isTraceEnabled()) {
-			logger.trace("Incoming {}", TagDecoder.byteToHex(data));
-		}
-
-		Tag tag = null;
-
-		if (data[0] == PREFIX_EVENT) {
-			// Check if it's an event message
-			PadEnum pad = PadEnum.findPad(data[2]);
-			ActionEnum action = ActionEnum.findAction(data[5]);
-			if (pad != null && action != null) {
-				TagEvent tagEvent = new TagEvent(this);
-				tagEvent.setAction(action);
-				tagEvent.setPad(pad);
-
-				StringBuilder uid = new StringBuilder();
-				for (int i = 6; i < 13; i++) {
-					byte b = data[i];
-					uid.append(String.format("%02X", b));
-				}
-				String sUid = uid.toString();
-				tagEvent.getTag().setUid(sUid);
-				logger.debug("Tag's UID = [{}]", tagEvent.getTag().getUid());
-
-				byte idx = data[4];
-				tagEvent.setIndex(idx);
-
-				if (action == ActionEnum.ADDED) {
-					logger.debug("Tag " + action.name().toLowerCase() + " to " + pad.name().toLowerCase() + " pad");
-					if (tagCache.containsKey(sUid)) {
-						tag = tagCache.get(sUid);
-						tagEvent.setTag(tag);
-						fireTagEvent(tagEvent);
-					} else {
-						try {
-							int counter = 0;
-							// Sending READ command
-							byte[] readPl = new byte[] { idx, 0x24 };
-							counter = sendCommand(CommandEnum.READ, readPl);
-							mapEvents.put(new Integer(counter), tagEvent);
-						} catch (ToyPadException e) {
-							logger.warn("Fail to send READ command.");
-						}
-					}
-				} else {
-					logger.debug("Tag " + action.name().toLowerCase() + " from " + pad.name().toLowerCase() + " pad");
-					fireTagEvent(tagEvent);
-				}
-			}
-		} else if (data[0] == PREFIX_GENERIC) {
-			// Awaited message
-			if (data[1] == 0x12) {
-
-				logger.debug("Response for READ command");
-				int counter = data[2];
-
-				byte isVehicle = data[13];
-				if (isVehicle == 0x01) {
-					// It's a vehicle
-					byte[] idVehicle = new byte[2];
-					idVehicle[0] = data[4];
-					idVehicle[1] = data[5];
-
-					tag = TagDecoder.decodeVehicle(idVehicle);
-					TagEvent tagEvent = mapEvents.remove(new Integer(counter));
-					if (tagEvent != null) {
-						tag.setUid(tagEvent.getTag().getUid());
-						tagCache.put(tag.getUid(), tag);
-						tagEvent.getTag().setId(tag.getId());
-						tagEvent.getTag().setName(tag.getName());
-						fireTagEvent(tagEvent);
-					}
-				} else {
-					// It's a character
-					// Sending LST_MODEL command
-					byte[] lst_modelPl = new byte[8];
-					TagEvent tagEvent = mapEvents.remove(new Integer(counter));
-					if (tagEvent != null) {
-						lst_modelPl[0] = tagEvent.getIndex();
-						try {
-							counter = sendCommand(CommandEnum.LST_MODEL, TagDecoder.encode(lst_modelPl));
-							mapEvents.put(new Integer(counter), tagEvent);
-						} catch (ToyPadException e) {
-							logger.warn("Fail to send LST_MODEL command.");
-						}
-					}
-				}
-
-			} else if (data[1] == 0x0a) {
-				// Example : 55 0A 09 00 7D 9C 04 79 96 32 69 B1 E0 00 00 00 00
-				// 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00
-
-				logger.debug("Response for LST_MODEL command");
-				int counter = data[2];
+	@Override
+	public Future<Void> fadePad(final PadEnum pad, final Color fromColor, final Color toColor, final int time)
+			throws ToyPadException {
 
-				TagEvent tagEvent = mapEvents.remove(new Integer(counter));
-				if (tagEvent != null) {
-					byte[] idcrypted = new byte[8];
-					for (int i = 4; i < 12; i++) {
-						idcrypted[i - 4] = data[i];
-					}
-					tag = TagDecoder.decodeCharacter(idcrypted);
-					tag.setUid(tagEvent.getTag().getUid());
-					tagCache.put(tag.getUid(), tag);
-					tagEvent.getTag().setId(tag.getId());
-					tagEvent.getTag().setName(tag.getName());
-					fireTagEvent(tagEvent);
-				}
-			} else {
-				logger.debug("Useless return.");
-			}
-		}
+		return fadePad(pad, new FadeColor(fromColor, toColor, time, 1));
 	}
 
 	/**
-	 * Fire tag event to tag listeners.
-	 * 
-	 * @param tagEvent
-	 *            tag event
+	 * {@inheritDoc}
 	 */
-	private void fireTagEvent(final TagEvent tagEvent) {
+	@Override
+	public Future<Void> fadePads(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter,
+			final FadeColor fadeColorRight) throws ToyPadException {
 
-		if (tagListeners != null) {
-			for (TagListener listener : tagListeners.getListeners(TagListener.class)) {
-				listener.newTagEvent(tagEvent);
-			}
-		}
+		return send(fadePadsMessage(fadeColorLeft, fadeColorCenter, fadeColorRight));
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void addTagListener(final TagListener tagListener) {
-
-		if (tagListeners == null) {
-			tagListeners = new EventListenerList();
-		}
-		tagListeners.add(TagListener.class, tagListener);
+	public LightingBatch newBatch() {
+		return new LightingBatch(this);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void errorEventOccurred(UsbPipeErrorEvent event) {
+	public AsyncToyPad getAsyncToyPad() {
+		return asyncToyPad;
+	}
 
-		logger.error(event.getUsbException().getMessage());
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public LightingReconciler getLightingReconciler() {
+		return reconciler;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void dataEventOccurred(final UsbPipeDataEvent event) {
+	public PadState getPadState(final PadEnum pad) {
+		return shadow.getState(pad);
+	}
 
-		byte[] data = new byte[32];
-		try {
-			pipeIn.asyncSubmit(data);
-		} catch (Exception e) {
-			logger.error("Error while reading data. {}", e.getMessage());
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Future<Void> resyncLighting() throws ToyPadException {
+
+		CompletableFuture<?>[] reads = new CompletableFuture<?>[LightingBatch.PADS.length];
+		for (int slot = 0; slot < reads.length; slot++) {
+			final PadEnum pad = LightingBatch.PADS[slot];
+			reads[slot] = sendRequest(CommandEnum.GET_COL, new byte[] { pad.getValue() })
+					.thenAccept(new Consumer<byte[]>() {
+						@Override
+						public void accept(final byte[] response) {
+							// Response: counter, then red, green and blue
+							Color color = new Color(response[3] & 0xff, response[4] & 0xff, response[5] & 0xff);
+							synchronized (shadow) {
+								// The color read from a flash or a fade is one of its
+								// steps, it doesn't tell if the effect still runs
+								LightingEnum type = shadow.getState(pad).getType();
+								if (type == LightingEnum.SOLID || type == LightingEnum.UNKNOWN) {
+									shadow.setState(pad, new PadState(color));
+								}
+							}
+						}
+					});
 		}
-		if (event.getData() != null && event.getData().length == 32) {
-			decodeInput(event.getData());
+		return CompletableFuture.allOf(reads).thenRun(new Runnable() {
+			@Override
+			public void run() {
+				// Bring the pads changed by another program back to their
+				// desired state
+				reconciler.schedule();
+			}
+		});
+	}
+
+	/**
+	 * Send a lighting message.
+	 * 
+	 * @param message
+	 *            message, null if there is nothing to send
+	 * @return a future completed when the message has been written
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	Future<Void> send(final OutboundMessage message) throws ToyPadException {
+
+		if (message == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		submitLighting(message);
+		return message.getFuture();
+	}
+
+	/**
+	 * Send a lighting message and wait for its acknowledgement by the toypad.
+	 * 
+	 * @param message
+	 *            message, null if there is nothing to send
+	 * @return a future completed when the toypad has acknowledged the message,
+	 *         or failed if it doesn't in time
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	CompletableFuture<Void> sendAcknowledged(final OutboundMessage message) throws ToyPadException {
+
+		if (message == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> acknowledgement = message.awaitAcknowledgement();
+		submitLighting(message);
+		return acknowledgement;
+	}
+
+	/**
+	 * Submit a lighting message, already applied to the shadow. The pads of
+	 * the message become unknown if it can't be submitted.
+	 * 
+	 * @param message
+	 *            message
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	private void submitLighting(final OutboundMessage message) throws ToyPadException {
+
+		try {
+			sendMessage(message);
+		} catch (ToyPadException e) {
+			shadow.invalidate(message.getPadMask());
+			throw e;
+		}
+	}
+
+	/**
+	 * Apply a solid color to the shadow of a pad.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param color
+	 *            color, may be null
+	 * @return the color to write, null if there is none or if the pad already
+	 *         shows it
+	 */
+	private Color solidColor(final PadEnum pad, final Color color) {
+
+		if (color == null) {
+			return null;
+		}
+		if (shadow.isSolid(pad, color)) {
+			shadow.suppressed();
+			return null;
+		}
+		shadow.setState(pad, new PadState(color));
+		return color;
+	}
+
+	/**
+	 * Check the starting color of a flash or a fade.
+	 * 
+	 * @param pad
+	 *            pad, or ALL
+	 * @param color
+	 *            starting color, may be null
+	 * @return the color to switch the pad to before the effect, null if there
+	 *         is none or if the pad already shows it
+	 */
+	private Color startColor(final PadEnum pad, final Color color) {
+
+		if (color != null && shadow.isSolid(pad, color)) {
+			shadow.suppressed();
+			return null;
+		}
+		return color;
+	}
+
+	/**
+	 * Return the frames of a message with an optional first frame.
+	 * 
+	 * @param first
+	 *            first frame, may be null
+	 * @param second
+	 *            second frame
+	 * @return the frames
+	 */
+	private static byte[][] frames(final byte[] first, final byte[] second) {
+
+		if (first == null) {
+			return new byte[][] { second };
+		}
+		return new byte[][] { first, second };
+	}
+
+	/**
+	 * Build the message of a batch: the colors in a SWITCH_PADS frame, then
+	 * the flashes in a FLASH_PADS frame, the fades in a FADE_PADS frame and
+	 * the random fades in a FADE_PAD_RANDOM frame for each pad. The colors the
+	 * pads already show are not written.
+	 * 
+	 * @param batch
+	 *            batch
+	 * @return the message, null if there is nothing to send
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage batchMessage(final LightingBatch batch) throws ToyPadException {
+
+		Color[] colors = new Color[LightingBatch.PADS.length];
+		int mask = 0;
+		boolean absolute = true;
+		boolean switches = false;
+		boolean flashes = false;
+		boolean fades = false;
+		int randoms = 0;
+		long sequence;
+		synchronized (shadow) {
+			for (int slot = 0; slot < LightingBatch.PADS.length; slot++) {
+				if (!batch.hasCommand(slot)) {
+					continue;
+				}
+				PadEnum pad = LightingBatch.PADS[slot];
+				if (batch.getFlashColor(slot) != null) {
+					colors[slot] = startColor(pad, batch.getColor(slot));
+					shadow.setState(pad, new PadState(batch.getFlashColor(slot)));
+					flashes = true;
+				} else if (batch.getFadeColor(slot) != null) {
+					colors[slot] = startColor(pad, batch.getColor(slot));
+					shadow.setState(pad, new PadState(batch.getFadeColor(slot)));
+					fades = true;
+				} else if (batch.isRandom(slot)) {
+					shadow.setState(pad,
+							new PadState(batch.getRandomPulseTime(slot), batch.getRandomPulseCount(slot)));
+					randoms++;
+				} else {
+					colors[slot] = solidColor(pad, batch.getColor(slot));
+					if (colors[slot] == null) {
+						// Already shown
+						continue;
+					}
+				}
+				mask |= pad.getMask();
+				absolute &= colors[slot] != null || batch.isRandom(slot);
+				switches |= colors[slot] != null;
+			}
+			sequence = shadow.nextSequence();
+		}
+		if (mask == 0) {
+			return null;
+		}
+		byte[][] frames = new byte[(switches ? 1 : 0) + (flashes ? 1 : 0) + (fades ? 1 : 0) + randoms][];
+		int count = 0;
+		// Written in the order of the message counters
+		if (switches) {
+			byte[] switchPads = newFrame(CommandEnum.SWITCH_PADS);
+			for (int slot = 0; slot < LightingBatch.PADS.length; slot++) {
+				putSwitchSlot(switchPads, FrameCodec.INDEX_PAYLOAD + slot * 4, colors[slot]);
+			}
+			frames[count++] = FrameCodec.seal(switchPads);
+		}
+		if (flashes) {
+			byte[] flashPads = newFrame(CommandEnum.FLASH_PADS);
+			for (int slot = 0; slot < LightingBatch.PADS.length; slot++) {
+				putFlashSlot(flashPads, FrameCodec.INDEX_PAYLOAD + slot * 7, batch.getFlashColor(slot));
+			}
+			frames[count++] = FrameCodec.seal(flashPads);
+		}
+		if (fades) {
+			byte[] fadePads = newFrame(CommandEnum.FADE_PADS);
+			for (int slot = 0; slot < LightingBatch.PADS.length; slot++) {
+				putFadeSlot(fadePads, FrameCodec.INDEX_PAYLOAD + slot * 6, batch.getFadeColor(slot));
+			}
+			frames[count++] = FrameCodec.seal(fadePads);
+		}
+		for (int slot = 0; slot < LightingBatch.PADS.length; slot++) {
+			if (batch.isRandom(slot)) {
+				byte[] frame = newFrame(CommandEnum.FADE_PAD_RANDOM);
+				frame[FrameCodec.INDEX_PAYLOAD] = LightingBatch.PADS[slot].getValue();
+				frame[FrameCodec.INDEX_PAYLOAD + 1] = (byte) batch.getRandomPulseTime(slot);
+				frame[FrameCodec.INDEX_PAYLOAD + 2] = (byte) batch.getRandomPulseCount(slot);
+				frames[count++] = FrameCodec.seal(frame);
+			}
+		}
+		return lightingMessage(sequence, mask, absolute, frames);
+	}
+
+	/**
+	 * Build the message switching a pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param color
+	 *            color, may be null
+	 * @return the message, null if there is nothing to send
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage switchPadMessage(final PadEnum pad, final Color color) throws ToyPadException {
+
+		Color changed;
+		long sequence;
+		synchronized (shadow) {
+			changed = solidColor(pad, color);
+			sequence = shadow.nextSequence();
+		}
+		if (changed == null) {
+			return null;
+		}
+		return lightingMessage(sequence, pad.getMask(), true, buildSwitchPad(pad, changed));
+	}
+
+	/**
+	 * Build the message switching the three pads.
+	 * 
+	 * @param colorPadLeft
+	 *            color for left pad, may be null
+	 * @param colorPadCenter
+	 *            color for center pad, may be null
+	 * @param colorPadRight
+	 *            color for right pad, may be null
+	 * @return the message, null if there is nothing to send
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage switchPadsMessage(final Color colorPadLeft, final Color colorPadCenter,
+			final Color colorPadRight) throws ToyPadException {
+
+		Color left;
+		Color center;
+		Color right;
+		long sequence;
+		synchronized (shadow) {
+			left = solidColor(PadEnum.LEFT, colorPadLeft);
+			center = solidColor(PadEnum.CENTER, colorPadCenter);
+			right = solidColor(PadEnum.RIGHT, colorPadRight);
+			sequence = shadow.nextSequence();
+		}
+		if (left == null && center == null && right == null) {
+			return null;
+		}
+		return lightingMessage(sequence, padMask(left, center, right), true, buildSwitchPads(left, center, right));
+	}
+
+	/**
+	 * Build the message flashing a pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param flashColor
+	 *            flash
+	 * @return the message
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage flashPadMessage(final PadEnum pad, final FlashColor flashColor) throws ToyPadException {
+
+		Color color2;
+		long sequence;
+		synchronized (shadow) {
+			color2 = startColor(pad, flashColor.getColor2());
+			shadow.setState(pad, new PadState(flashColor));
+			sequence = shadow.nextSequence();
+		}
+		if (color2 != null) {
+			byte[] switchPad = buildSwitchPad(pad, color2);
+			return lightingMessage(sequence, pad.getMask(), true, switchPad, buildFlashPad(pad, flashColor));
+		}
+		// Flash with the current color of the pad
+		return lightingMessage(sequence, pad.getMask(), false, buildFlashPad(pad, flashColor));
+	}
+
+	/**
+	 * Build the message flashing the three pads.
+	 * 
+	 * @param flashColorLeft
+	 *            flash for left pad, may be null
+	 * @param flashColorCenter
+	 *            flash for center pad, may be null
+	 * @param flashColorRight
+	 *            flash for right pad, may be null
+	 * @return the message, null if there is nothing to send
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage flashPadsMessage(final FlashColor flashColorLeft, final FlashColor flashColorCenter,
+			final FlashColor flashColorRight) throws ToyPadException {
+
+		Color color2Center = null;
+		Color color2Left = null;
+		Color color2Right = null;
+		boolean absolute = true;
+		long sequence;
+
+		synchronized (shadow) {
+			if (flashColorCenter != null) {
+				color2Center = startColor(PadEnum.CENTER, flashColorCenter.getColor2());
+				absolute &= color2Center != null;
+				shadow.setState(PadEnum.CENTER, new PadState(flashColorCenter));
+			}
+			if (flashColorLeft != null) {
+				color2Left = startColor(PadEnum.LEFT, flashColorLeft.getColor2());
+				absolute &= color2Left != null;
+				shadow.setState(PadEnum.LEFT, new PadState(flashColorLeft));
+			}
+			if (flashColorRight != null) {
+				color2Right = startColor(PadEnum.RIGHT, flashColorRight.getColor2());
+				absolute &= color2Right != null;
+				shadow.setState(PadEnum.RIGHT, new PadState(flashColorRight));
+			}
+			sequence = shadow.nextSequence();
+		}
+		int mask = padMask(flashColorLeft, flashColorCenter, flashColorRight);
+		if (mask == 0) {
+			return null;
+		}
+		// Written in the order of the message counters
+		byte[] switchPads = null;
+		if (color2Left != null || color2Center != null || color2Right != null) {
+			switchPads = buildSwitchPads(color2Left, color2Center, color2Right);
+		}
+		byte[] flashPads = newFrame(CommandEnum.FLASH_PADS);
+		putFlashSlot(flashPads, FrameCodec.INDEX_PAYLOAD, flashColorCenter);
+		putFlashSlot(flashPads, FrameCodec.INDEX_PAYLOAD + 7, flashColorLeft);
+		putFlashSlot(flashPads, FrameCodec.INDEX_PAYLOAD + 14, flashColorRight);
+		return lightingMessage(sequence, mask, absolute, frames(switchPads, FrameCodec.seal(flashPads)));
+	}
+
+	/**
+	 * Build the message fading a pad between random colors.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param pulseTime
+	 *            time, 0 for a random time
+	 * @param pulseCount
+	 *            count
+	 * @return the message
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage fadePadRandomMessage(final PadEnum pad, final int pulseTime, final int pulseCount)
+			throws ToyPadException {
+
+		long sequence;
+		synchronized (shadow) {
+			shadow.setState(pad, new PadState(pulseTime, pulseCount));
+			sequence = shadow.nextSequence();
+		}
+		byte[] frame = newFrame(CommandEnum.FADE_PAD_RANDOM);
+		frame[FrameCodec.INDEX_PAYLOAD] = pad.getValue();
+		frame[FrameCodec.INDEX_PAYLOAD + 1] = (byte) pulseTime;
+		frame[FrameCodec.INDEX_PAYLOAD + 2] = (byte) pulseCount;
+		return lightingMessage(sequence, pad.getMask(), true, FrameCodec.seal(frame));
+	}
+
+	/**
+	 * Build the message fading a pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param fadeColor
+	 *            fade
+	 * @return the message
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage fadePadMessage(final PadEnum pad, final FadeColor fadeColor) throws ToyPadException {
+
+		Color fromColor;
+		long sequence;
+		synchronized (shadow) {
+			fromColor = startColor(pad, fadeColor.getFromColor());
+			shadow.setState(pad, new PadState(fadeColor));
+			sequence = shadow.nextSequence();
+		}
+		if (fromColor != null) {
+			byte[] switchPad = buildSwitchPad(pad, fromColor);
+			return lightingMessage(sequence, pad.getMask(), true, switchPad, buildFadePad(pad, fadeColor));
+		}
+		// Fade from the current color of the pad
+		return lightingMessage(sequence, pad.getMask(), false, buildFadePad(pad, fadeColor));
+	}
+
+	/**
+	 * Build the message fading the three pads.
+	 * 
+	 * @param fadeColorLeft
+	 *            fade for left pad, may be null
+	 * @param fadeColorCenter
+	 *            fade for center pad, may be null
+	 * @param fadeColorRight
+	 *            fade for right pad, may be null
+	 * @return the message, null if there is nothing to send
+	 * @throws ToyPadException
+	 *             if the toypad is closed
+	 */
+	OutboundMessage fadePadsMessage(final FadeColor fadeColorLeft, final FadeColor fadeColorCenter,
+			final FadeColor fadeColorRight) throws ToyPadException {
+
+		Color fromColorCenter = null;
+		Color fromColorLeft = null;
+		Color fromColorRight = null;
+		boolean absolute = true;
+		long sequence;
+
+		synchronized (shadow) {
+			if (fadeColorCenter != null) {
+				fromColorCenter = startColor(PadEnum.CENTER, fadeColorCenter.getFromColor());
+				absolute &= fromColorCenter != null;
+				shadow.setState(PadEnum.CENTER, new PadState(fadeColorCenter));
+			}
+			if (fadeColorLeft != null) {
+				fromColorLeft = startColor(PadEnum.LEFT, fadeColorLeft.getFromColor());
+				absolute &= fromColorLeft != null;
+				shadow.setState(PadEnum.LEFT, new PadState(fadeColorLeft));
+			}
+			if (fadeColorRight != null) {
+				fromColorRight = startColor(PadEnum.RIGHT, fadeColorRight.getFromColor());
+				absolute &= fromColorRight != null;
+				shadow.setState(PadEnum.RIGHT, new PadState(fadeColorRight));
+			}
+			sequence = shadow.nextSequence();
+		}
+		int mask = padMask(fadeColorLeft, fadeColorCenter, fadeColorRight);
+		if (mask == 0) {
+			return null;
+		}
+		// Written in the order of the message counters
+		byte[] switchPads = null;
+		if (fromColorLeft != null || fromColorCenter != null || fromColorRight != null) {
+			switchPads = buildSwitchPads(fromColorLeft, fromColorCenter, fromColorRight);
+		}
+		byte[] fadePads = newFrame(CommandEnum.FADE_PADS);
+		putFadeSlot(fadePads, FrameCodec.INDEX_PAYLOAD, fadeColorCenter);
+		putFadeSlot(fadePads, FrameCodec.INDEX_PAYLOAD + 6, fadeColorLeft);
+		putFadeSlot(fadePads, FrameCodec.INDEX_PAYLOAD + 12, fadeColorRight);
+		return lightingMessage(sequence, mask, absolute, frames(switchPads, FrameCodec.seal(fadePads)));
+	}
+
+	/**
+	 * Run a task on the event loop.
+	 * 
+	 * @param task
+	 *            task
+	 * @return false if the toypad is closed
+	 */
+	boolean execute(final Runnable task) {
+
+		ToyPadEventLoop loop = eventLoop;
+		if (loop == null) {
+			return false;
+		}
+		loop.execute(task);
+		return true;
+	}
+
+	/**
+	 * Run a task after a delay, on the scheduler of the toypad. Nothing is
+	 * done while the toypad is closed.
+	 * 
+	 * @param task
+	 *            task, which must not block
+	 * @param delay
+	 *            delay (ms)
+	 */
+	void schedule(final Runnable task, final long delay) {
+
+		ScheduledExecutorService executor = scheduler;
+		if (executor != null) {
+			try {
+				executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				logger.debug("Toypad closed, task dropped.");
+			}
+		}
+	}
+
+	/**
+	 * @return the cache for tags
+	 */
+	public final TagCache getTagCache() {
+		return tagCache;
+	}
+
+	/**
+	 * @param tagCache
+	 *            the cache for tags, shared by the toypads of a manager
+	 */
+	public final void setTagCache(final TagCache tagCache) {
+		this.tagCache = tagCache;
+	}
+
+	/**
+	 * @param tagStore
+	 *            the persistent store of the identified tags, null for none
+	 */
+	public final void setTagStore(final TagStore tagStore) {
+		this.tagStore = tagStore;
+	}
+
+	/**
+	 * @return the lighting shadow of the pads
+	 */
+	LightingShadow getLightingShadow() {
+		return shadow;
+	}
+
+	/**
+	 * @return the number of lighting writes skipped because they would not
+	 *         change the state of the pads
+	 */
+	public final long getSuppressedCount() {
+		return shadow.getSuppressedCount();
+	}
+
+	/**
+	 * @return the number of frames written to the toypad
+	 */
+	public final long getSentCount() {
+		ToyPadEventLoop loop = eventLoop;
+		return loop != null ? loop.getSentCount() : 0;
+	}
+
+	/**
+	 * @return the number of batches of frames written to the toypad
+	 */
+	public final long getBatchCount() {
+		ToyPadEventLoop loop = eventLoop;
+		return loop != null ? loop.getBatchCount() : 0;
+	}
+
+	/**
+	 * @return the number of lighting commands dropped because replaced by a
+	 *         newer one before being sent
+	 */
+	public final long getCoalescedCount() {
+		ToyPadEventLoop loop = eventLoop;
+		return loop != null ? loop.getCoalescedCount() : 0;
+	}
+
+	/**
+	 * Return the outbound lane of a priority, to read its queue depth and wait
+	 * time metrics.
+	 * 
+	 * @param priority
+	 *            priority
+	 * @return the lane, null if the toypad is closed
+	 */
+	public final OutboundLane getOutboundLane(final PriorityEnum priority) {
+		ToyPadEventLoop loop = eventLoop;
+		return loop != null ? loop.getLane(priority) : null;
+	}
+
+	/**
+	 * @param requestTimeout
+	 *            time to wait for the response of a request before sending it
+	 *            again (ms)
+	 */
+	public final void setRequestTimeout(final long requestTimeout) {
+
+		this.requestTimeout = requestTimeout;
+		if (correlationTable != null) {
+			correlationTable.setTimeout(requestTimeout);
+		}
+	}
+
+	/**
+	 * @param requestRetries
+	 *            number of times a request without response is sent again
+	 */
+	public final void setRequestRetries(final int requestRetries) {
+
+		this.requestRetries = requestRetries;
+		if (correlationTable != null) {
+			correlationTable.setRetries(requestRetries);
+		}
+	}
+
+	/**
+	 * @return the number of requests sent again because their response
+	 *         didn't come in time
+	 */
+	public final long getRetriedRequestCount() {
+		return correlationTable != null ? correlationTable.getRetriedCount() : 0;
+	}
+
+	/**
+	 * @return the number of requests expired without response
+	 */
+	public final long getExpiredRequestCount() {
+		return correlationTable != null ? correlationTable.getExpiredCount() : 0;
+	}
+
+	/**
+	 * @return the number of frames received from the toypad
+	 */
+	public final long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	/**
+	 * @return the number of characters identified from the READ response,
+	 *         without LST_MODEL request
+	 */
+	public final long getLocalDecryptCount() {
+		return localDecryptCount.get();
+	}
+
+	/**
+	 * @return the number of characters identified with a LST_MODEL request
+	 */
+	public final long getLstModelCount() {
+		return lstModelCount.get();
+	}
+
+	/**
+	 * @return the maximum number of tag identifications in flight
+	 */
+	public final int getIdentificationWindow() {
+		return identificationScheduler.getWindow();
+	}
+
+	/**
+	 * Set the maximum number of tag identifications in flight: when several
+	 * tags are put at once, their requests are pipelined up to this window.
+	 * 
+	 * @param identificationWindow
+	 *            the maximum number of identifications in flight, 1 to
+	 *            identify the tags one at a time
+	 */
+	public final void setIdentificationWindow(final int identificationWindow) {
+		identificationScheduler.setWindow(identificationWindow);
+	}
+
+	/**
+	 * @return the highest number of tag identifications in flight
+	 */
+	public final int getMaxIdentificationsInFlight() {
+		return identificationScheduler.getMaxInFlight();
+	}
+
+	/**
+	 * @return the transport of the frames
+	 */
+	public final ToyPadTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Set the time during which the single pad lighting commands are waited
+	 * for, to be merged into one multi pads frame.
+	 * 
+	 * @param combiningWindow
+	 *            time in ms, 0 to merge only the commands already queued
+	 */
+	public final void setCombiningWindow(final long combiningWindow) {
+
+		this.combiningWindow = combiningWindow;
+		ToyPadEventLoop loop = eventLoop;
+		if (loop != null) {
+			loop.setCombiningWindow(combiningWindow);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getIdentifiant() {
+		return transport.getIdentifiant();
+	}
+
+	/**
+	 * Decode input data to tag.<br>
+	 * The data may be a receive buffer of the transport, reused after the
+	 * decoding: it must not be kept.
+	 * 
+	 * @param data
+	 *            data
+	 */
+	private void decodeInput(final byte[] data) {
+
+		if (logger.isTraceEnabled()) {
+			logger.trace("Incoming {}", TagDecoder.byteToHex(data));
+		}
+
+		if (data[0] == PREFIX_EVENT) {
+			// Check if it's an event message
+			PadEnum pad = PadEnum.findPad(data[2]);
+			ActionEnum action = ActionEnum.findAction(data[5]);
+			if (pad != null && action != null) {
+				TagEvent tagEvent = new TagEvent(this);
+				tagEvent.setAction(action);
+				tagEvent.setPad(pad);
+
+				// The hexa UID is built only if displayed
+				TagUid uid = TagUid.fromBytes(data, 6);
+				tagEvent.getTag().setUid(uid);
+				logger.debug("Tag's UID = [{}]", uid);
+
+				byte idx = data[4];
+				tagEvent.setIndex(idx);
+
+				if (action == ActionEnum.ADDED) {
+					logger.debug("Tag " + action.name().toLowerCase() + " to " + pad.name().toLowerCase() + " pad");
+					identificationScheduler.added(tagEvent);
+				} else {
+					logger.debug("Tag " + action.name().toLowerCase() + " from " + pad.name().toLowerCase() + " pad");
+					identificationScheduler.removed(tagEvent);
+				}
+			}
+		} else if (data[0] == PREFIX_GENERIC) {
+			// Awaited message
+			CorrelationTable table = correlationTable;
+			if (table == null || !table.complete(data)) {
+				logger.debug("Useless return.");
+			}
+		}
+	}
+
+	/**
+	 * Identify a new tag from the cache, or from the persistent store, and
+	 * fire its event.
+	 * 
+	 * @param tagEvent
+	 *            tag event, with the UID of the tag
+	 * @return true if the tag was known, false if it must be read
+	 */
+	boolean identifyKnownTag(final TagEvent tagEvent) {
+
+		TagUid uid = tagEvent.getTag().getUid();
+		Tag tag = tagCache.get(uid);
+		if (tag == null) {
+			tag = findStoredTag(uid);
+			if (tag == null) {
+				return false;
+			}
+			// Identified before, no request to the toypad
+			tagCache.put(tag);
+		}
+		tagEvent.setTag(tag);
+		fireTagEvent(tagEvent);
+		return true;
+	}
+
+	/**
+	 * Send a READ request for a new tag. The tag event is fired when the tag is
+	 * identified, then the identification scheduler is notified.
+	 * 
+	 * @param tagEvent
+	 *            tag event
+	 */
+	void readTag(final TagEvent tagEvent) {
+
+		// The timeouts complete the requests on another thread: the response
+		// is decoded on the loop thread, read once as it's cleared at close
+		ToyPadEventLoop loop = eventLoop;
+		if (loop == null) {
+			identificationFailed(tagEvent, CommandEnum.READ);
+			return;
+		}
+		try {
+			sendRequest(CommandEnum.READ, new byte[] { tagEvent.getIndex(), 0x24 })
+					.whenCompleteAsync(new BiConsumer<byte[], Throwable>() {
+						@Override
+						public void accept(final byte[] response, final Throwable error) {
+							if (error == null) {
+								decodeReadResponse(tagEvent, response);
+							} else {
+								identificationFailed(tagEvent, CommandEnum.READ);
+							}
+						}
+					}, loop);
+		} catch (ToyPadException e) {
+			identificationFailed(tagEvent, CommandEnum.READ);
+		}
+	}
+
+	/**
+	 * Decode the response of a READ request.
+	 * 
+	 * @param tagEvent
+	 *            tag event
+	 * @param data
+	 *            response
+	 */
+	private void decodeReadResponse(final TagEvent tagEvent, final byte[] data) {
+
+		logger.debug("Response for READ command");
+		byte isVehicle = data[13];
+		if (isVehicle == 0x01) {
+			// It's a vehicle
+			identified(tagEvent, TagDecoder.decodeVehicle(data, 4));
+			return;
+		}
+		// It's a character: its id is encrypted in the pages with a key
+		// derived from the UID
+		Tag tag = TagDecoder.decryptCharacter(tagEvent.getTag().getUid(), data, 4);
+		if (tag != null) {
+			localDecryptCount.incrementAndGet();
+			identified(tagEvent, tag);
+		} else {
+			// Not decrypted, sending LST_MODEL command
+			lstModelCount.incrementAndGet();
+			ToyPadEventLoop loop = eventLoop;
+			if (loop == null) {
+				identificationFailed(tagEvent, CommandEnum.LST_MODEL);
+				return;
+			}
+			byte[] lst_modelPl = new byte[8];
+			lst_modelPl[0] = tagEvent.getIndex();
+			try {
+				TagDecoder.encode(lst_modelPl, 0, lst_modelPl, 0);
+				sendRequest(CommandEnum.LST_MODEL, lst_modelPl)
+						.whenCompleteAsync(new BiConsumer<byte[], Throwable>() {
+							@Override
+							public void accept(final byte[] response, final Throwable error) {
+								if (error == null) {
+									decodeLstModelResponse(tagEvent, response);
+								} else {
+									identificationFailed(tagEvent, CommandEnum.LST_MODEL);
+								}
+							}
+						}, loop);
+			} catch (ToyPadException e) {
+				identificationFailed(tagEvent, CommandEnum.LST_MODEL);
+			}
+		}
+	}
+
+	/**
+	 * Decode the response of a LST_MODEL request.
+	 * 
+	 * @param tagEvent
+	 *            tag event
+	 * @param data
+	 *            response
+	 */
+	private void decodeLstModelResponse(final TagEvent tagEvent, final byte[] data) {
+
+		// Example : 55 0A 09 00 7D 9C 04 79 96 32 69 B1 E0 00 00 00 00
+		// 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00
+		logger.debug("Response for LST_MODEL command");
+		identified(tagEvent, TagDecoder.decodeCharacter(data, 4));
+	}
+
+	/**
+	 * A tag has been identified: keep it and fire the event.
+	 * 
+	 * @param tagEvent
+	 *            tag event
+	 * @param tag
+	 *            decoded tag, without UID
+	 */
+	private void identified(final TagEvent tagEvent, final Tag tag) {
+
+		tag.setUid(tagEvent.getTag().getUid());
+		storeTag(tag);
+		tagEvent.getTag().setType(tag.getType());
+		tagEvent.getTag().setId(tag.getId());
+		tagEvent.getTag().setName(tag.getName());
+		fireTagEvent(tagEvent);
+		identificationScheduler.completed(tagEvent);
+	}
+
+	/**
+	 * Find a tag in the persistent store.
+	 * 
+	 * @param uid
+	 *            UID of the tag
+	 * @return the tag, null if not found or if there is no store
+	 */
+	private Tag findStoredTag(final TagUid uid) {
+
+		TagStore store = tagStore;
+		return store == null ? null : store.get(uid);
+	}
+
+	/**
+	 * Keep an identified tag in the cache, and in the persistent store.
+	 * 
+	 * @param tag
+	 *            tag
+	 */
+	private void storeTag(final Tag tag) {
+
+		tagCache.put(tag);
+		TagStore store = tagStore;
+		if (store != null) {
+			store.put(tag);
+		}
+	}
+
+	/**
+	 * Called when a tag could not be identified: the event is fired with the
+	 * UID only, so the tag is not lost.
+	 * 
+	 * @param tagEvent
+	 *            tag event
+	 * @param command
+	 *            failed command
+	 */
+	private void identificationFailed(final TagEvent tagEvent, final CommandEnum command) {
+
+		logger.warn("Fail to identify tag [{}] with command [{}].", tagEvent.getTag().getUid(), command);
+		if (eventLoop != null) {
+			fireTagEvent(tagEvent);
+		}
+		identificationScheduler.completed(tagEvent);
+	}
+
+	/**
+	 * Fire tag event to tag listeners.
+	 * 
+	 * @param tagEvent
+	 *            tag event
+	 */
+	void fireTagEvent(final TagEvent tagEvent) {
+
+		tagEventPublisher.newTagEvent(tagEvent);
+		if (tagListeners != null) {
+			for (TagListener listener : tagListeners.getListeners(TagListener.class)) {
+				listener.newTagEvent(tagEvent);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void addTagListener(final TagListener tagListener) {
+
+		if (tagListeners == null) {
+			tagListeners = new EventListenerList();
+		}
+		tagListeners.add(TagListener.class, tagListener);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public TagEventPublisher getTagEventPublisher() {
+		return tagEventPublisher;
+	}
+
+	/**
+	 * Called on the thread of the event loop, which owns the frame.
+	 * 
+	 * @param frame
+	 *            received frame
+	 */
+	@Override
+	public void frameReceived(final byte[] frame) {
+
+		if (frame.length == FrameCodec.FRAME_LENGTH) {
+			receivedCount.incrementAndGet();
+			decodeInput(frame);
 		}
 	}
 }
@@ -18,18 +18,18 @@ package org.dajlab.jtoypad.core;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.usb.UsbDevice;
-import javax.usb.UsbDeviceDescriptor;
-import javax.usb.UsbException;
-import javax.usb.UsbHostManager;
-import javax.usb.UsbHub;
-import javax.usb.UsbServices;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.transport.ToyPadTransport;
+import org.dajlab.jtoypad.core.transport.TransportProvider;
+import org.dajlab.jtoypad.core.transport.UsbTransportProvider;
 
 /**
- * Toypads manager.
+ * Toypads manager.<br>
+ * The toypads are found by a transport provider (javax.usb by default). The
+ * tag events of all the toypads are published by the manager. The toypads
+ * share a bounded cache of the identified tags, and can share a persistent
+ * store of them.
  * 
  * @author Erik Amzallag
  *
@@ -37,19 +37,31 @@ import org.apache.logging.log4j.Logger;
 public class ToyPadManager {
 
 	/**
-	 * Vendor ID (usb).
-	 */
-	private static short VENDOR_ID = 0x0e6f;
-	/**
-	 * Product id (usb).
+	 * Provider of the transports.
 	 */
-	private static short PRODUCT_ID = 0x0241;
+	private final TransportProvider transportProvider;
 
 	/**
 	 * List of connected toypads.
 	 */
 	private List<ToyPad> toyPads;
 
+	/**
+	 * Publisher of the tag events of all the toypads.
+	 */
+	private final TagEventPublisher tagEventPublisher = new TagEventPublisher();
+
+	/**
+	 * Cache of the identified tags, shared by the toypads.
+	 */
+	private TagCache tagCache = new TagCache();
+
+	/**
+	 * Persistent store of the identified tags, shared by the toypads. May be
+	 * null.
+	 */
+	private TagStore tagStore;
+
 	/**
 	 * Logger.
 	 */
@@ -59,6 +71,17 @@ public class ToyPadManager {
 	 * Constructor.
 	 */
 	public ToyPadManager() {
+		this(new UsbTransportProvider());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param transportProvider
+	 *            provider of the transports
+	 */
+	public ToyPadManager(final TransportProvider transportProvider) {
+		this.transportProvider = transportProvider;
 		toyPads = new ArrayList<ToyPad>();
 	}
 
@@ -70,15 +93,18 @@ public class ToyPadManager {
 	 */
 	public void connect() throws ToyPadException {
 
-		List<UsbDevice> devices = findDevices(VENDOR_ID, PRODUCT_ID);
-		if (devices != null) {
-			for (UsbDevice usbDevice : devices) {
-				ToyPad toyPad;
+		List<ToyPadTransport> transports = transportProvider.findTransports();
+		if (transports != null) {
+			for (ToyPadTransport transport : transports) {
+				ToyPadImpl toyPad;
 				try {
-					toyPad = new ToyPadImpl(usbDevice);
+					toyPad = new ToyPadImpl(transport);
+					toyPad.setTagCache(tagCache);
+					toyPad.setTagStore(tagStore);
+					toyPad.addTagListener(tagEventPublisher);
 					toyPads.add(toyPad);
 				} catch (ToyPadException e) {
-					logger.error("Error while connecting to [{}]", usbDevice.toString());
+					logger.error("Error while connecting to [{}]", transport.getIdentifiant());
 				}
 			}
 		}
@@ -95,81 +121,57 @@ public class ToyPadManager {
 				logger.error("Error while disconnecting [{}]", toyPad.getIdentifiant());
 			}
 		}
+		tagEventPublisher.complete();
 	}
 
 	/**
-	 * Find devices.
-	 * 
-	 * @param vendorId
-	 *            vendor id.
-	 * @param productId
-	 *            product id.
-	 * @return list of devices, null if not usbroot
-	 * @throws ToyPadException
-	 *             toypad exception
+	 * @return the toyPads
 	 */
-	private List<UsbDevice> findDevices(short vendorId, short productId) throws ToyPadException {
+	public final List<ToyPad> getToyPads() {
+		return toyPads;
+	}
 
-		List<UsbDevice> list = new ArrayList<>(0);
-		UsbHub hub = (UsbHub) getUsbRootHoob();
-		if (hub != null) {
-			list = findDevices(hub, vendorId, productId);
-		}
-		logger.debug("Number of toypads detected : [{}]", list.size());
-		return list;
+	/**
+	 * @return the cache of the identified tags, shared by the toypads
+	 */
+	public final TagCache getTagCache() {
+		return tagCache;
 	}
 
 	/**
-	 * Find the devices recursively among the usb hubs.
+	 * Set the cache of the identified tags (e.g. with another size or time to
+	 * live), before connecting the toypads.
 	 * 
-	 * @param hub
-	 *            hub
-	 * @param vendorId
-	 *            vendor id
-	 * @param productId
-	 *            product id
-	 * @return list of devices
-	 */
-	private List<UsbDevice> findDevices(UsbHub hub, short vendorId, short productId) {
-		List<UsbDevice> devices = new ArrayList<UsbDevice>();
-
-		for (UsbDevice device : (List<UsbDevice>) hub.getAttachedUsbDevices()) {
-			UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
-			if (desc.idVendor() == vendorId && desc.idProduct() == productId)
-				devices.add(device);
-			if (device.isUsbHub()) {
-				List<UsbDevice> sousDevices = findDevices((UsbHub) device, vendorId, productId);
-				if (sousDevices != null)
-					devices.addAll(sousDevices);
-			}
-		}
+	 * @param tagCache
+	 *            the cache of the identified tags, shared by the toypads
+	 */
+	public final void setTagCache(final TagCache tagCache) {
+		this.tagCache = tagCache;
+	}
 
-		return devices;
+	/**
+	 * @return the persistent store of the identified tags
+	 */
+	public final TagStore getTagStore() {
+		return tagStore;
 	}
 
 	/**
-	 * Return the root usb hub.
+	 * Set the persistent store of the identified tags, before connecting the
+	 * toypads. The store is not closed by the manager.
 	 * 
-	 * @return a hub
-	 * @throws ToyPadException
-	 *             toypad exception
+	 * @param tagStore
+	 *            the persistent store of the identified tags, null for none
 	 */
-	private UsbDevice getUsbRootHoob() throws ToyPadException {
-
-		try {
-			final UsbServices services = UsbHostManager.getUsbServices();
-			return services.getRootUsbHub();
-		} catch (SecurityException | UsbException e) {
-			logger.error("Error while accessing usb");
-			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
-		}
+	public final void setTagStore(final TagStore tagStore) {
+		this.tagStore = tagStore;
 	}
 
 	/**
-	 * @return the toyPads
+	 * @return the publisher of the tag events of all the toypads
 	 */
-	public final List<ToyPad> getToyPads() {
-		return toyPads;
+	public final TagEventPublisher getTagEventPublisher() {
+		return tagEventPublisher;
 	}
 
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.FrameCodec;
+import org.dajlab.jtoypad.core.JToypadConstants;
+import org.dajlab.jtoypad.core.ToyPadException;
+
+/**
+ * Transport over a Linux hidraw device (/dev/hidrawN), without libusb.<br>
+ * The 32 bytes reports are read and written with a FileChannel. As the toypad
+ * doesn't use numbered reports, each report written is preceded by a 0 report
+ * id, and the reports read start at the first byte.<br>
+ * The input and the output may be two different files, e.g. two FIFOs
+ * standing in for the device in tests.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class HidrawTransport implements ToyPadTransport {
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(HidrawTransport.class);
+
+	/**
+	 * File the reports are read from.
+	 */
+	private final Path input;
+
+	/**
+	 * File the reports are written to.
+	 */
+	private final Path output;
+
+	/**
+	 * Channel of the input, kept once closed.
+	 */
+	private volatile FileChannel inputChannel;
+
+	/**
+	 * Channel of the output, the same as the input for a device. Kept once
+	 * closed.
+	 */
+	private volatile FileChannel outputChannel;
+
+	/**
+	 * Report written: report id then the frame. Used by the writer only.
+	 */
+	private final ByteBuffer report = ByteBuffer.allocate(FrameCodec.FRAME_LENGTH + 1);
+
+	/**
+	 * Reader thread.
+	 */
+	private Thread thread;
+
+	/**
+	 * Listener of the received frames.
+	 */
+	private volatile FrameListener listener;
+
+	/**
+	 * Constructor for a hidraw device.
+	 * 
+	 * @param device
+	 *            the device, e.g. /dev/hidraw0
+	 */
+	public HidrawTransport(final Path device) {
+		this(device, device);
+	}
+
+	/**
+	 * Constructor with a different input and output.
+	 * 
+	 * @param input
+	 *            file the reports are read from
+	 * @param output
+	 *            file the reports are written to
+	 */
+	public HidrawTransport(final Path input, final Path output) {
+		this.input = input;
+		this.output = output;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void open(final FrameListener listener) throws ToyPadException {
+
+		this.listener = listener;
+		final FileChannel in;
+		FileChannel out = null;
+		try {
+			if (input.equals(output)) {
+				in = FileChannel.open(input, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				out = in;
+			} else {
+				// Opening a FIFO blocks until the other side is opened
+				in = FileChannel.open(input, StandardOpenOption.READ);
+				try {
+					out = FileChannel.open(output, StandardOpenOption.WRITE);
+				} finally {
+					if (out == null) {
+						in.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Error while opening [{}] : [{}]", input, e.getMessage());
+			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+		}
+		inputChannel = in;
+		outputChannel = out;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				read(in);
+			}
+		}, "jtoypad-hidraw-" + input.getFileName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Read the reports until the channel is closed.
+	 * 
+	 * @param channel
+	 *            channel of the input
+	 */
+	private void read(final FileChannel channel) {
+
+		byte[] frame = new byte[FrameCodec.FRAME_LENGTH];
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		try {
+			while (true) {
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						logger.debug("End of [{}]", input);
+						return;
+					}
+				}
+				try {
+					listener.frameReceived(frame);
+				} catch (RuntimeException e) {
+					logger.error("Error while decoding frame [{}]", e.getMessage());
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// Closed
+		} catch (IOException e) {
+			logger.error("Error while reading [{}] : [{}]", input, e.getMessage());
+		} catch (RuntimeException e) {
+			logger.error("Error while reading [{}] : [{}]", input, e.getMessage());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void write(final List<byte[]> frames) throws ToyPadException {
+
+		FileChannel channel = outputChannel;
+		if (channel == null) {
+			throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
+		}
+		try {
+			for (byte[] frame : frames) {
+				report.clear();
+				// No numbered reports : report id 0
+				report.put((byte) 0);
+				report.put(frame);
+				report.flip();
+				while (report.hasRemaining()) {
+					channel.write(report);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Error while sending frames [{}]", e.getMessage());
+			throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws ToyPadException {
+
+		// Closing the channel stops the reader thread
+		closeChannels();
+		if (thread != null) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Close the channels, quietly. They are kept: a closed channel fails with
+	 * a ClosedChannelException.
+	 */
+	private void closeChannels() {
+
+		FileChannel in = inputChannel;
+		FileChannel out = outputChannel;
+		try {
+			if (in != null) {
+				in.close();
+			}
+			if (out != null && out != in) {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.error("Error while closing [{}] : [{}]", input, e.getMessage());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getIdentifiant() {
+		return input.toString();
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.JToypadConstants;
+import org.dajlab.jtoypad.core.ToyPadException;
+
+/**
+ * Discovery of the toypads among the Linux hidraw devices.<br>
+ * The vendor and product ids are read from the uevent file of each device in
+ * sysfs (HID_ID=0003:00000E6F:00000241).
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class HidrawTransportProvider implements TransportProvider {
+
+	/**
+	 * Default directory of the hidraw devices in sysfs.
+	 */
+	public final static String DEFAULT_SYSFS_DIR = "/sys/class/hidraw";
+
+	/**
+	 * Default directory of the device files.
+	 */
+	public final static String DEFAULT_DEV_DIR = "/dev";
+
+	/**
+	 * Key of the ids in the uevent file.
+	 */
+	private final static String HID_ID = "HID_ID=";
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(HidrawTransportProvider.class);
+
+	/**
+	 * Directory of the hidraw devices in sysfs.
+	 */
+	private final Path sysfsDir;
+
+	/**
+	 * Directory of the device files.
+	 */
+	private final Path devDir;
+
+	/**
+	 * Constructor.
+	 */
+	public HidrawTransportProvider() {
+		this(Paths.get(DEFAULT_SYSFS_DIR), Paths.get(DEFAULT_DEV_DIR));
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param sysfsDir
+	 *            directory of the hidraw devices in sysfs
+	 * @param devDir
+	 *            directory of the device files
+	 */
+	public HidrawTransportProvider(final Path sysfsDir, final Path devDir) {
+		this.sysfsDir = sysfsDir;
+		this.devDir = devDir;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ToyPadTransport> findTransports() throws ToyPadException {
+
+		List<ToyPadTransport> transports = new ArrayList<>();
+		if (!Files.isDirectory(sysfsDir)) {
+			logger.debug("No hidraw device");
+			return transports;
+		}
+		try (DirectoryStream<Path> devices = Files.newDirectoryStream(sysfsDir, "hidraw*")) {
+			for (Path device : devices) {
+				if (isToyPad(device.resolve("device").resolve("uevent"))) {
+					transports.add(new HidrawTransport(devDir.resolve(device.getFileName().toString())));
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Error while accessing [{}]", sysfsDir);
+			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+		}
+		logger.debug("Number of toypads detected : [{}]", transports.size());
+		return transports;
+	}
+
+	/**
+	 * Check the ids of a hidraw device.
+	 * 
+	 * @param uevent
+	 *            uevent file of the device
+	 * @return true if it's a toypad
+	 */
+	private boolean isToyPad(final Path uevent) {
+
+		try {
+			for (String line : Files.readAllLines(uevent, StandardCharsets.US_ASCII)) {
+				if (line.startsWith(HID_ID)) {
+					// bus:vendor:product, in hexa
+					String[] ids = line.substring(HID_ID.length()).split(":");
+					return ids.length == 3 && Integer.parseInt(ids[1], 16) == UsbTransportProvider.VENDOR_ID
+							&& Integer.parseInt(ids[2], 16) == UsbTransportProvider.PRODUCT_ID;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			logger.debug("Can't read [{}]", uevent);
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.usb.UsbException;
+import javax.usb.UsbIrp;
+import javax.usb.UsbPipe;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.FrameCodec;
+
+/**
+ * Ring of IN transfers kept submitted on the pipe in.<br>
+ * Several IRPs are in flight at the same time, each with its own 32 bytes
+ * buffer, so a transfer is always queued while an incoming frame is decoded.
+ * Once decoded, the IRP is submitted again with the same buffer: the frames
+ * are decoded out of the ring without being copied, and must not be kept
+ * after the decoding.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class InboundRing {
+
+	/**
+	 * Default number of IN transfers in flight.
+	 */
+	public final static int DEFAULT_SIZE = 4;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(InboundRing.class);
+
+	/**
+	 * Pipe in.
+	 */
+	private final UsbPipe pipeIn;
+
+	/**
+	 * The IRPs, with their buffer.
+	 */
+	private final UsbIrp[] irps;
+
+	/**
+	 * True while the IRPs are submitted again.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Number of frames received.
+	 */
+	private final AtomicLong receivedCount = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pipeIn
+	 *            an opened USB pipe in
+	 * @param size
+	 *            number of IN transfers in flight
+	 */
+	public InboundRing(final UsbPipe pipeIn, final int size) {
+
+		this.pipeIn = pipeIn;
+		irps = new UsbIrp[Math.max(1, size)];
+	}
+
+	/**
+	 * Create the IRPs and submit them.
+	 * 
+	 * @throws UsbException
+	 *             usb exception
+	 */
+	public void start() throws UsbException {
+
+		running = true;
+		for (int i = 0; i < irps.length; i++) {
+			irps[i] = pipeIn.createUsbIrp();
+			irps[i].setData(new byte[FrameCodec.FRAME_LENGTH]);
+			pipeIn.asyncSubmit(irps[i]);
+		}
+	}
+
+	/**
+	 * Stop submitting the IRPs again. The pending IRPs must then be aborted on
+	 * the pipe.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Return the frame received by an IRP of the ring.
+	 * 
+	 * @param irp
+	 *            a completed IRP
+	 * @return the buffer of the IRP, null if it doesn't contain a full frame
+	 */
+	public byte[] frame(final UsbIrp irp) {
+
+		if (irp == null || irp.isUsbException() || irp.getActualLength() != FrameCodec.FRAME_LENGTH) {
+			return null;
+		}
+		receivedCount.incrementAndGet();
+		return irp.getData();
+	}
+
+	/**
+	 * Submit again a completed IRP, with the same buffer.
+	 * 
+	 * @param irp
+	 *            a completed IRP of the ring
+	 */
+	public void recycle(final UsbIrp irp) {
+
+		if (!running || irp == null) {
+			return;
+		}
+		irp.setComplete(false);
+		irp.setUsbException(null);
+		irp.setActualLength(0);
+		try {
+			pipeIn.asyncSubmit(irp);
+		} catch (Exception e) {
+			logger.error("Error while reading data. {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of IN transfers in flight
+	 */
+	public final int getSize() {
+		return irps.length;
+	}
+
+	/**
+	 * @return the number of frames received
+	 */
+	public final long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+}
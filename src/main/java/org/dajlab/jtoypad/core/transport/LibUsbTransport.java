@@ -0,0 +1,504 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.FrameCodec;
+import org.dajlab.jtoypad.core.JToypadConstants;
+import org.dajlab.jtoypad.core.ToyPadException;
+import org.usb4java.BufferUtils;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceHandle;
+import org.usb4java.LibUsb;
+import org.usb4java.Transfer;
+import org.usb4java.TransferCallback;
+
+/**
+ * Transport over the low-level API of usb4java (libusb), without the
+ * javax.usb layer.<br>
+ * All the transfers are asynchronous interrupt transfers, allocated at the
+ * opening with their direct buffer and submitted again once completed: a ring
+ * of IN transfers always queued, and a pool of OUT transfers for the frames
+ * of a write. The callbacks are called by a single thread handling the libusb
+ * events.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LibUsbTransport implements ToyPadTransport {
+
+	/**
+	 * Default number of IN transfers in flight.
+	 */
+	public final static int DEFAULT_IN_TRANSFERS = 4;
+
+	/**
+	 * Number of OUT transfers, the max number of frames in flight.
+	 */
+	private final static int OUT_TRANSFERS = 16;
+
+	/**
+	 * Endpoint for ouput.
+	 */
+	private final static byte ENDPOINT_OUT = 0x01;
+
+	/**
+	 * Endpoint for input.
+	 */
+	private final static byte ENDPOINT_IN = (byte) 0x81;
+
+	/**
+	 * Interface of the toypad.
+	 */
+	private final static int INTERFACE = 0;
+
+	/**
+	 * Timeout of an OUT transfer (ms).
+	 */
+	private final static long WRITE_TIMEOUT = 1000;
+
+	/**
+	 * Timeout of a libusb event handling (us), to check if the transport is
+	 * closed.
+	 */
+	private final static long EVENT_TIMEOUT = 100_000;
+
+	/**
+	 * Max time to wait for the IN transfers to be cancelled (ms).
+	 */
+	private final static long CLOSE_TIMEOUT = 1000;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(LibUsbTransport.class);
+
+	/**
+	 * libusb context.
+	 */
+	private final Context context;
+
+	/**
+	 * Device, referenced until the transport is disposed.
+	 */
+	private final Device device;
+
+	/**
+	 * Handle of the opened device.
+	 */
+	private DeviceHandle handle;
+
+	/**
+	 * Number of IN transfers.
+	 */
+	private int inTransfers = DEFAULT_IN_TRANSFERS;
+
+	/**
+	 * IN transfers.
+	 */
+	private Transfer[] inRing;
+
+	/**
+	 * OUT transfers.
+	 */
+	private Transfer[] outPool;
+
+	/**
+	 * Number of IN transfers submitted.
+	 */
+	private final AtomicInteger activeIn = new AtomicInteger();
+
+	/**
+	 * Number of OUT transfers submitted, whose callback has not been called.
+	 */
+	private final AtomicInteger activeOut = new AtomicInteger();
+
+	/**
+	 * True if OUT transfers could not be cancelled: they are still held by
+	 * libusb, so they can't be used again.
+	 */
+	private volatile boolean outStalled;
+
+	/**
+	 * True once the reference on the device is released.
+	 */
+	private boolean disposed;
+
+	/**
+	 * Released when an OUT transfer completes.
+	 */
+	private final Semaphore outCompleted = new Semaphore(0);
+
+	/**
+	 * Number of OUT transfers of the current write which failed.
+	 */
+	private final AtomicInteger outErrors = new AtomicInteger();
+
+	/**
+	 * Frame given to the listener. Used by the event thread only.
+	 */
+	private final byte[] inFrame = new byte[FrameCodec.FRAME_LENGTH];
+
+	/**
+	 * Listener of the received frames.
+	 */
+	private volatile FrameListener listener;
+
+	/**
+	 * True until the transport is closed.
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Thread handling the libusb events.
+	 */
+	private Thread eventThread;
+
+	/**
+	 * Callback of the IN transfers.
+	 */
+	private final TransferCallback inCallback = new TransferCallback() {
+		@Override
+		public void processTransfer(final Transfer transfer) {
+			inCompleted(transfer);
+		}
+	};
+
+	/**
+	 * Callback of the OUT transfers.
+	 */
+	private final TransferCallback outCallback = new TransferCallback() {
+		@Override
+		public void processTransfer(final Transfer transfer) {
+			if (transfer.status() != LibUsb.TRANSFER_COMPLETED) {
+				outErrors.incrementAndGet();
+			}
+			activeOut.decrementAndGet();
+			outCompleted.release();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param context
+	 *            libusb context
+	 * @param device
+	 *            device, referenced by the caller; unreferenced by dispose()
+	 */
+	public LibUsbTransport(final Context context, final Device device) {
+		this.context = context;
+		this.device = device;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void open(final FrameListener listener) throws ToyPadException {
+
+		if (disposed) {
+			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+		}
+		this.listener = listener;
+		outStalled = false;
+		handle = new DeviceHandle();
+		int result = LibUsb.open(device, handle);
+		if (result != LibUsb.SUCCESS) {
+			handle = null;
+			throw error("Error while opening", result, JToypadConstants.ERR_OPEN_USB);
+		}
+		// Not supported on all the platforms
+		LibUsb.setAutoDetachKernelDriver(handle, true);
+		result = LibUsb.claimInterface(handle, INTERFACE);
+		if (result != LibUsb.SUCCESS) {
+			LibUsb.close(handle);
+			handle = null;
+			throw error("Error while claiming", result, JToypadConstants.ERR_OPEN_USB);
+		}
+
+		outPool = new Transfer[OUT_TRANSFERS];
+		for (int i = 0; i < outPool.length; i++) {
+			outPool[i] = LibUsb.allocTransfer();
+			LibUsb.fillInterruptTransfer(outPool[i], handle, ENDPOINT_OUT,
+					BufferUtils.allocateByteBuffer(FrameCodec.FRAME_LENGTH), outCallback, null, WRITE_TIMEOUT);
+		}
+		running = true;
+		eventThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				handleEvents();
+			}
+		}, "jtoypad-libusb-" + getIdentifiant());
+		eventThread.setDaemon(true);
+		eventThread.start();
+
+		inRing = new Transfer[inTransfers];
+		for (int i = 0; i < inRing.length; i++) {
+			inRing[i] = LibUsb.allocTransfer();
+			LibUsb.fillInterruptTransfer(inRing[i], handle, ENDPOINT_IN,
+					BufferUtils.allocateByteBuffer(FrameCodec.FRAME_LENGTH), inCallback, null, 0);
+			result = LibUsb.submitTransfer(inRing[i]);
+			if (result != LibUsb.SUCCESS) {
+				close();
+				throw error("Error while reading", result, JToypadConstants.ERR_OPEN_USB);
+			}
+			activeIn.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Handle the libusb events until the transport is closed and the IN
+	 * transfers are cancelled.
+	 */
+	private void handleEvents() {
+
+		long deadline = Long.MAX_VALUE;
+		while (running || (activeIn.get() > 0 && System.currentTimeMillis() < deadline)) {
+			if (!running && deadline == Long.MAX_VALUE) {
+				deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+			}
+			int result = LibUsb.handleEventsTimeout(context, EVENT_TIMEOUT);
+			if (result != LibUsb.SUCCESS) {
+				logger.error("Error while handling usb events [{}]", LibUsb.errorName(result));
+			}
+		}
+	}
+
+	/**
+	 * Called when an IN transfer is completed: the frame is given to the
+	 * listener, then the transfer is submitted again.
+	 * 
+	 * @param transfer
+	 *            transfer
+	 */
+	private void inCompleted(final Transfer transfer) {
+
+		int status = transfer.status();
+		if (status == LibUsb.TRANSFER_COMPLETED && transfer.actualLength() == FrameCodec.FRAME_LENGTH) {
+			ByteBuffer buffer = transfer.buffer();
+			buffer.rewind();
+			buffer.get(inFrame);
+			try {
+				listener.frameReceived(inFrame);
+			} catch (RuntimeException e) {
+				logger.error("Error while decoding frame [{}]", e.getMessage());
+			}
+		} else if (status != LibUsb.TRANSFER_CANCELLED) {
+			logger.error("Error while reading data, status [{}]", status);
+		}
+		if (running && status != LibUsb.TRANSFER_CANCELLED && status != LibUsb.TRANSFER_NO_DEVICE
+				&& LibUsb.submitTransfer(transfer) == LibUsb.SUCCESS) {
+			return;
+		}
+		activeIn.decrementAndGet();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void write(final List<byte[]> frames) throws ToyPadException {
+
+		if (outPool == null || outStalled) {
+			throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
+		}
+		int index = 0;
+		while (index < frames.size()) {
+			// At most one OUT transfer per frame in flight
+			int count = Math.min(outPool.length, frames.size() - index);
+			outErrors.set(0);
+			int submitted = 0;
+			for (int i = 0; i < count; i++) {
+				Transfer transfer = outPool[i];
+				ByteBuffer buffer = transfer.buffer();
+				buffer.clear();
+				buffer.put(frames.get(index + i));
+				activeOut.incrementAndGet();
+				if (LibUsb.submitTransfer(transfer) != LibUsb.SUCCESS) {
+					activeOut.decrementAndGet();
+					outErrors.incrementAndGet();
+					break;
+				}
+				submitted++;
+			}
+			// libusb completes the transfers at the latest on their timeout
+			if (!awaitOut(submitted, 2 * WRITE_TIMEOUT)) {
+				// The transfers must be given back before being used again
+				for (int i = 0; i < submitted; i++) {
+					LibUsb.cancelTransfer(outPool[i]);
+				}
+				if (!awaitOut(submitted, CLOSE_TIMEOUT)) {
+					logger.error("[{}] OUT transfers not cancelled", activeOut.get());
+					outStalled = true;
+				}
+				throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
+			}
+			if (outErrors.get() > 0) {
+				logger.error("Error while sending frames, [{}] transfers failed", outErrors.get());
+				throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
+			}
+			index += count;
+		}
+	}
+
+	/**
+	 * Wait for the callbacks of OUT transfers.
+	 * 
+	 * @param count
+	 *            number of transfers
+	 * @param timeout
+	 *            timeout (ms)
+	 * @return true if the callbacks have been called, false if the timeout
+	 *         elapsed (the callbacks called meanwhile are still counted by the
+	 *         next wait)
+	 */
+	private boolean awaitOut(final int count, final long timeout) {
+
+		try {
+			return outCompleted.tryAcquire(count, timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}<br>
+	 * The transport can be opened again; the device stays referenced until
+	 * dispose() is called.
+	 */
+	@Override
+	public synchronized void close() throws ToyPadException {
+
+		if (handle == null) {
+			// Not opened, or already closed
+			return;
+		}
+		running = false;
+		if (inRing != null) {
+			for (Transfer transfer : inRing) {
+				if (transfer != null) {
+					LibUsb.cancelTransfer(transfer);
+				}
+			}
+		}
+		if (eventThread != null) {
+			try {
+				eventThread.join(CLOSE_TIMEOUT + 2 * EVENT_TIMEOUT / 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			eventThread = null;
+		}
+		// Transfers still used by libusb are leaked rather than freed
+		if (activeIn.get() == 0) {
+			freeTransfers(inRing);
+		} else {
+			logger.warn("[{}] IN transfers not cancelled", activeIn.get());
+		}
+		if (activeOut.get() == 0) {
+			freeTransfers(outPool);
+		} else {
+			logger.warn("[{}] OUT transfers not cancelled", activeOut.get());
+		}
+		inRing = null;
+		outPool = null;
+		LibUsb.releaseInterface(handle, INTERFACE);
+		LibUsb.close(handle);
+		handle = null;
+	}
+
+	/**
+	 * Close the transport if needed, then release the reference on the
+	 * device. Called by the provider, once the transport will not be opened
+	 * again.
+	 */
+	synchronized void dispose() {
+
+		try {
+			close();
+		} catch (ToyPadException e) {
+			logger.error("Error while closing [{}]", getIdentifiant());
+		}
+		if (!disposed) {
+			disposed = true;
+			LibUsb.unrefDevice(device);
+		}
+	}
+
+	/**
+	 * Free transfers.
+	 * 
+	 * @param transfers
+	 *            transfers, may be null
+	 */
+	private static void freeTransfers(final Transfer[] transfers) {
+
+		if (transfers != null) {
+			for (Transfer transfer : transfers) {
+				if (transfer != null) {
+					LibUsb.freeTransfer(transfer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Log a libusb error.
+	 * 
+	 * @param message
+	 *            message
+	 * @param result
+	 *            libusb error code
+	 * @param code
+	 *            code of the exception
+	 * @return the exception to throw
+	 */
+	private ToyPadException error(final String message, final int result, final String code) {
+
+		logger.error("{} [{}] : [{}]", message, getIdentifiant(), LibUsb.errorName(result));
+		return new ToyPadException(code);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getIdentifiant() {
+		return "libusb-" + LibUsb.getBusNumber(device) + "-" + LibUsb.getDeviceAddress(device);
+	}
+
+	/**
+	 * Set the number of IN transfers kept in flight, taken into account at the
+	 * next opening.
+	 * 
+	 * @param inTransfers
+	 *            number of IN transfers
+	 */
+	public final void setInTransfers(final int inTransfers) {
+		this.inTransfers = Math.max(1, inTransfers);
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.JToypadConstants;
+import org.dajlab.jtoypad.core.ToyPadException;
+import org.usb4java.Context;
+import org.usb4java.Device;
+import org.usb4java.DeviceDescriptor;
+import org.usb4java.DeviceList;
+import org.usb4java.LibUsb;
+
+/**
+ * Discovery of the toypads with the low-level API of usb4java.<br>
+ * The provider owns a libusb context, shared by its transports, and the
+ * references on their devices: it must be closed once the transports are no
+ * longer used. The transports can be closed and opened again until then.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LibUsbTransportProvider implements TransportProvider {
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(LibUsbTransportProvider.class);
+
+	/**
+	 * libusb context.
+	 */
+	private Context context;
+
+	/**
+	 * Transports found, holding a reference on their device.
+	 */
+	private final List<LibUsbTransport> transports = new ArrayList<>();
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized List<ToyPadTransport> findTransports() throws ToyPadException {
+
+		if (context == null) {
+			Context newContext = new Context();
+			int result = LibUsb.init(newContext);
+			if (result != LibUsb.SUCCESS) {
+				logger.error("Error while initializing libusb [{}]", LibUsb.errorName(result));
+				throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+			}
+			context = newContext;
+		}
+		DeviceList list = new DeviceList();
+		int result = LibUsb.getDeviceList(context, list);
+		if (result < 0) {
+			logger.error("Error while accessing usb [{}]", LibUsb.errorName(result));
+			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+		}
+		List<ToyPadTransport> found = new ArrayList<>();
+		try {
+			DeviceDescriptor descriptor = new DeviceDescriptor();
+			for (Device device : list) {
+				if (LibUsb.getDeviceDescriptor(device, descriptor) == LibUsb.SUCCESS
+						&& descriptor.idVendor() == UsbTransportProvider.VENDOR_ID
+						&& descriptor.idProduct() == UsbTransportProvider.PRODUCT_ID) {
+					// Kept after the list is freed, until the provider is closed
+					LibUsbTransport transport = new LibUsbTransport(context, LibUsb.refDevice(device));
+					transports.add(transport);
+					found.add(transport);
+				}
+			}
+		} finally {
+			LibUsb.freeDeviceList(list, true);
+		}
+		logger.debug("Number of toypads detected : [{}]", found.size());
+		return found;
+	}
+
+	/**
+	 * Close the transports found if needed, release their devices, then the
+	 * libusb context.
+	 */
+	public synchronized void close() {
+
+		for (LibUsbTransport transport : transports) {
+			transport.dispose();
+		}
+		transports.clear();
+		if (context != null) {
+			LibUsb.exit(context);
+			context = null;
+		}
+	}
+
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.ActionEnum;
+import org.dajlab.jtoypad.core.CommandEnum;
+import org.dajlab.jtoypad.core.FrameCodec;
+import org.dajlab.jtoypad.core.PadEnum;
+import org.dajlab.jtoypad.core.ToyPadException;
+
+/**
+ * In-memory transport simulating a toypad, to run the whole stack without
+ * device (tests, benchmarks).<br>
+ * Each frame written is answered with a response carrying its message
+ * counter: the pages set with setPages() for a READ, the color of the pad for
+ * a GET_COL, zeros for the other commands. The colors are those of the last
+ * SWITCH_PAD and SWITCH_PADS frames, or set with setPadColor(). Tag events are simulated with placeTag() and removeTag(). The
+ * frames are received on a dedicated thread, like with a real device, and
+ * the responses can be delayed with setLatency() to simulate its round
+ * trip, or dropped with dropResponses() to simulate lost frames.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LoopbackTransport implements ToyPadTransport {
+
+	/**
+	 * Number of bytes of pages returned by a READ.
+	 */
+	private final static int PAGES_LENGTH = 16;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(LoopbackTransport.class);
+
+	/**
+	 * Id of the toypad.
+	 */
+	private final String identifiant;
+
+	/**
+	 * Frames waiting to be received.
+	 */
+	private final LinkedBlockingQueue<InboundFrame> inbound = new LinkedBlockingQueue<>();
+
+	/**
+	 * Pages of the tags, indexed by tag index.
+	 */
+	private final byte[][] pages = new byte[256][];
+
+	/**
+	 * Colors of the pads (RGB), indexed by pad value - 1.
+	 */
+	private final int[] colors = new int[3];
+
+	/**
+	 * Listener of the received frames.
+	 */
+	private volatile FrameListener listener;
+
+	/**
+	 * Thread delivering the received frames.
+	 */
+	private Thread thread;
+
+	/**
+	 * True if the frames written are answered.
+	 */
+	private volatile boolean answering = true;
+
+	/**
+	 * Time between a frame written and its response (ns).
+	 */
+	private volatile long latency;
+
+	/**
+	 * Number of frames written.
+	 */
+	private final AtomicLong writtenCount = new AtomicLong();
+
+	/**
+	 * Number of frames written, indexed by command id.
+	 */
+	private final AtomicLongArray commandCounts = new AtomicLongArray(256);
+
+	/**
+	 * Number of responses still to drop, indexed by command id.
+	 */
+	private final AtomicIntegerArray droppedResponses = new AtomicIntegerArray(256);
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param identifiant
+	 *            id of the simulated toypad
+	 */
+	public LoopbackTransport(final String identifiant) {
+		this.identifiant = identifiant;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void open(final FrameListener listener) throws ToyPadException {
+
+		this.listener = listener;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "jtoypad-loopback-" + identifiant);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Deliver the received frames to the listener, until interrupted.
+	 */
+	private void deliver() {
+
+		try {
+			while (true) {
+				InboundFrame inboundFrame = inbound.take();
+				long wait = inboundFrame.due - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				try {
+					listener.frameReceived(inboundFrame.frame);
+				} catch (RuntimeException e) {
+					logger.error("Error while decoding frame [{}]", e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(final List<byte[]> frames) throws ToyPadException {
+
+		for (byte[] frame : frames) {
+			writtenCount.incrementAndGet();
+			int commandId = frame[FrameCodec.INDEX_COMMAND] & 0xff;
+			commandCounts.incrementAndGet(commandId);
+			if (answering && frame[0] == FrameCodec.PREFIX_GENERIC && !dropResponse(commandId)) {
+				inbound.offer(new InboundFrame(respond(frame), System.nanoTime() + latency));
+			}
+		}
+	}
+
+	/**
+	 * Check if the response to a frame must be dropped.
+	 * 
+	 * @param commandId
+	 *            id of the command of the frame
+	 * @return true to drop the response
+	 */
+	private boolean dropResponse(final int commandId) {
+
+		while (true) {
+			int count = droppedResponses.get(commandId);
+			if (count == 0) {
+				return false;
+			}
+			if (droppedResponses.compareAndSet(commandId, count, count - 1)) {
+				logger.debug("Response to command [{}] dropped", commandId);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Build the response to a frame.
+	 * 
+	 * @param frame
+	 *            frame written
+	 * @return the response
+	 */
+	private byte[] respond(final byte[] frame) {
+
+		byte[] response = new byte[FrameCodec.FRAME_LENGTH];
+		response[0] = FrameCodec.PREFIX_GENERIC;
+		// The response has the message counter at the place of the command
+		response[2] = frame[FrameCodec.INDEX_COUNTER];
+		CommandEnum command = CommandEnum.findCommand(frame[FrameCodec.INDEX_COMMAND]);
+		if (command == CommandEnum.SWITCH_PAD) {
+			int pad = frame[FrameCodec.INDEX_PAYLOAD];
+			int color = readColor(frame, FrameCodec.INDEX_PAYLOAD + 1);
+			for (int slot = 0; slot < colors.length; slot++) {
+				if (pad == 0 || pad == slot + 1) {
+					setColor(slot, color);
+				}
+			}
+		} else if (command == CommandEnum.SWITCH_PADS) {
+			// A slot for each pad (center, left, right): a flag, then the color
+			for (int slot = 0; slot < colors.length; slot++) {
+				int offset = FrameCodec.INDEX_PAYLOAD + slot * 4;
+				if (frame[offset] != 0) {
+					setColor(slot, readColor(frame, offset + 1));
+				}
+			}
+		}
+		if (command == CommandEnum.READ) {
+			response[1] = PAGES_LENGTH + 2;
+			byte[] tagPages = pages[frame[FrameCodec.INDEX_PAYLOAD] & 0xff];
+			if (tagPages != null) {
+				System.arraycopy(tagPages, 0, response, FrameCodec.INDEX_PAYLOAD, PAGES_LENGTH);
+			}
+		} else if (command == CommandEnum.GET_COL) {
+			response[1] = 4;
+			int color = getColor(frame[FrameCodec.INDEX_PAYLOAD] - 1);
+			response[3] = (byte) (color >> 16);
+			response[4] = (byte) (color >> 8);
+			response[5] = (byte) color;
+		} else if (command == CommandEnum.LST_MODEL) {
+			response[1] = 10;
+		} else {
+			response[1] = 1;
+		}
+		return FrameCodec.seal(response);
+	}
+
+	/**
+	 * Read a color in a frame.
+	 * 
+	 * @param frame
+	 *            frame
+	 * @param index
+	 *            index of the red component
+	 * @return the color (RGB)
+	 */
+	private static int readColor(final byte[] frame, final int index) {
+
+		return (frame[index] & 0xff) << 16 | (frame[index + 1] & 0xff) << 8 | frame[index + 2] & 0xff;
+	}
+
+	/**
+	 * @param slot
+	 *            pad value - 1
+	 * @return the color of the pad (RGB)
+	 */
+	private synchronized int getColor(final int slot) {
+		return colors[slot];
+	}
+
+	/**
+	 * @param slot
+	 *            pad value - 1
+	 * @param color
+	 *            the color of the pad (RGB)
+	 */
+	private synchronized void setColor(final int slot, final int color) {
+		colors[slot] = color;
+	}
+
+	/**
+	 * Simulate a pad changed without the knowledge of the library (e.g. by
+	 * another program).
+	 * 
+	 * @param pad
+	 *            pad, not ALL
+	 * @param red
+	 *            red
+	 * @param green
+	 *            green
+	 * @param blue
+	 *            blue
+	 */
+	public void setPadColor(final PadEnum pad, final int red, final int green, final int blue) {
+		setColor(pad.getValue() - 1, red << 16 | green << 8 | blue);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws ToyPadException {
+
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		inbound.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getIdentifiant() {
+		return identifiant;
+	}
+
+	/**
+	 * Simulate a tag put on a pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param index
+	 *            index of the tag on the toypad
+	 * @param uid
+	 *            the 7 bytes UID of the tag
+	 */
+	public void placeTag(final PadEnum pad, final int index, final byte[] uid) {
+		receive(buildEvent(pad, index, ActionEnum.ADDED, uid));
+	}
+
+	/**
+	 * Simulate a tag removed from a pad.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param index
+	 *            index of the tag on the toypad
+	 * @param uid
+	 *            the 7 bytes UID of the tag
+	 */
+	public void removeTag(final PadEnum pad, final int index, final byte[] uid) {
+		receive(buildEvent(pad, index, ActionEnum.REMOVED, uid));
+	}
+
+	/**
+	 * Build a tag event frame.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param index
+	 *            index of the tag
+	 * @param action
+	 *            action
+	 * @param uid
+	 *            the 7 bytes UID
+	 * @return the frame
+	 */
+	private static byte[] buildEvent(final PadEnum pad, final int index, final ActionEnum action,
+			final byte[] uid) {
+
+		byte[] frame = new byte[FrameCodec.FRAME_LENGTH];
+		frame[0] = FrameCodec.PREFIX_EVENT;
+		frame[1] = 0x0b;
+		frame[2] = pad.getValue();
+		frame[4] = (byte) index;
+		frame[5] = (byte) (action == ActionEnum.ADDED ? 0 : 1);
+		System.arraycopy(uid, 0, frame, 6, 7);
+		return FrameCodec.seal(frame);
+	}
+
+	/**
+	 * Receive a raw frame, as if sent by the toypad.
+	 * 
+	 * @param frame
+	 *            a 32 bytes frame
+	 */
+	public void receive(final byte[] frame) {
+		inbound.offer(new InboundFrame(frame, System.nanoTime()));
+	}
+
+	/**
+	 * Set the pages returned by a READ of a tag.
+	 * 
+	 * @param index
+	 *            index of the tag
+	 * @param tagPages
+	 *            the 16 bytes read, null for zeros
+	 */
+	public void setPages(final int index, final byte[] tagPages) {
+		pages[index & 0xff] = tagPages;
+	}
+
+	/**
+	 * @param answering
+	 *            false to never answer, to simulate timeouts
+	 */
+	public final void setAnswering(final boolean answering) {
+		this.answering = answering;
+	}
+
+	/**
+	 * Set the time between a frame written and its response. The responses
+	 * are still received in order, so the requests written together are
+	 * answered together.
+	 * 
+	 * @param latency
+	 *            latency (ms), 0 to answer at once
+	 */
+	public final void setLatency(final long latency) {
+		this.latency = TimeUnit.MILLISECONDS.toNanos(latency);
+	}
+
+	/**
+	 * Drop the next responses to a command, as if they were lost.
+	 * 
+	 * @param command
+	 *            command
+	 * @param count
+	 *            number of responses to drop
+	 */
+	public final void dropResponses(final CommandEnum command, final int count) {
+		droppedResponses.set(command.getCommandId() & 0xff, count);
+	}
+
+	/**
+	 * @return the number of frames written
+	 */
+	public final long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * @param command
+	 *            command
+	 * @return the number of frames of the command written, retries included
+	 */
+	public final long getWrittenCount(final CommandEnum command) {
+		return commandCounts.get(command.getCommandId() & 0xff);
+	}
+
+	/**
+	 * A frame waiting to be received.
+	 */
+	private static class InboundFrame {
+
+		/**
+		 * The 32 bytes frame.
+		 */
+		private final byte[] frame;
+
+		/**
+		 * Time the frame is received (ns).
+		 */
+		private final long due;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param frame
+		 *            the 32 bytes frame
+		 * @param due
+		 *            time the frame is received (ns)
+		 */
+		InboundFrame(final byte[] frame, final long due) {
+			this.frame = frame;
+			this.due = due;
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.util.List;
+
+import org.dajlab.jtoypad.core.ToyPadException;
+
+/**
+ * Transport of the frames between a toypad and the host.<br>
+ * ToyPadImpl only depends on this interface: the frames are written with
+ * write() and the received frames are given to the listener set at the
+ * opening.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public interface ToyPadTransport {
+
+	/**
+	 * Open the transport and start receiving frames.
+	 * 
+	 * @param listener
+	 *            listener of the received frames
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	void open(final FrameListener listener) throws ToyPadException;
+
+	/**
+	 * Write frames to the toypad, in this order. Called by one thread at a
+	 * time (the event loop of the toypad).
+	 * 
+	 * @param frames
+	 *            the full 32 bytes frames
+	 * @throws ToyPadException
+	 *             if the frames can't be written
+	 */
+	void write(final List<byte[]> frames) throws ToyPadException;
+
+	/**
+	 * Close the transport. No frame is received after.
+	 * 
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	void close() throws ToyPadException;
+
+	/**
+	 * Return the id of the toypad.
+	 * 
+	 * @return the id
+	 */
+	String getIdentifiant();
+}
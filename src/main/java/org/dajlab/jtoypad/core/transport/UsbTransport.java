@@ -0,0 +1,275 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.usb.UsbConfiguration;
+import javax.usb.UsbDevice;
+import javax.usb.UsbEndpoint;
+import javax.usb.UsbInterface;
+import javax.usb.UsbInterfacePolicy;
+import javax.usb.UsbIrp;
+import javax.usb.UsbPipe;
+import javax.usb.event.UsbPipeDataEvent;
+import javax.usb.event.UsbPipeErrorEvent;
+import javax.usb.event.UsbPipeListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.JToypadConstants;
+import org.dajlab.jtoypad.core.ToyPadException;
+
+/**
+ * Transport over javax.usb.<br>
+ * The interface of the toypad is claimed at the opening, the frames are read
+ * with a ring of IN transfers and written as one list of IRPs per call.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class UsbTransport implements ToyPadTransport, UsbPipeListener {
+
+	/**
+	 * Endpoint for ouput.
+	 */
+	private final static byte ENDPOINT_OUT = 0x01;
+
+	/**
+	 * Endpoint for input.
+	 */
+	private final static byte ENDPOINT_IN = (byte) 0x81;
+
+	/**
+	 * Data of the IRPs between two writes.
+	 */
+	private final static byte[] EMPTY = new byte[0];
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(UsbTransport.class);
+
+	/**
+	 * Usb device.
+	 */
+	private final UsbDevice usbDevice;
+
+	/**
+	 * Usb interface.
+	 */
+	private final UsbInterface iface;
+
+	/**
+	 * USB pipe in.
+	 */
+	private UsbPipe pipeIn;
+
+	/**
+	 * USB pipe out.
+	 */
+	private UsbPipe pipeOut;
+
+	/**
+	 * IN transfers kept submitted on the pipe in.
+	 */
+	private InboundRing inboundRing;
+
+	/**
+	 * Number of IN transfers in flight.
+	 */
+	private int inboundTransfers = InboundRing.DEFAULT_SIZE;
+
+	/**
+	 * Listener of the received frames.
+	 */
+	private volatile FrameListener listener;
+
+	/**
+	 * IRPs reused from a write to the next.
+	 */
+	private final List<UsbIrp> irpPool = new ArrayList<>();
+
+	/**
+	 * IRPs of the current write.
+	 */
+	private final List<UsbIrp> batchIrps = new ArrayList<>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param usbDevice
+	 *            usb device
+	 */
+	public UsbTransport(final UsbDevice usbDevice) {
+
+		this.usbDevice = usbDevice;
+		UsbConfiguration configuration = usbDevice.getActiveUsbConfiguration();
+		iface = (UsbInterface) configuration.getUsbInterfaces().get(0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void open(final FrameListener listener) throws ToyPadException {
+
+		this.listener = listener;
+		try {
+			iface.claim(new UsbInterfacePolicy() {
+				public boolean forceClaim(UsbInterface usbInterface) {
+					return true;
+				}
+			});
+			UsbEndpoint endpoint = (UsbEndpoint) iface.getUsbEndpoint(ENDPOINT_IN);
+			pipeIn = endpoint.getUsbPipe();
+			pipeIn.open();
+			pipeIn.addUsbPipeListener(this);
+			inboundRing = new InboundRing(pipeIn, inboundTransfers);
+			inboundRing.start();
+
+			UsbEndpoint endpointOut = (UsbEndpoint) iface.getUsbEndpoint(ENDPOINT_OUT);
+			pipeOut = endpointOut.getUsbPipe();
+			pipeOut.open();
+		} catch (Exception ex) {
+			try {
+				iface.release();
+			} catch (Exception e) {
+			}
+			logger.error("Error while claiming usb [{}]", ex.getMessage());
+			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized void write(final List<byte[]> frames) throws ToyPadException {
+
+		while (irpPool.size() < frames.size()) {
+			irpPool.add(pipeOut.createUsbIrp());
+		}
+		batchIrps.clear();
+		for (int i = 0; i < frames.size(); i++) {
+			UsbIrp irp = irpPool.get(i);
+			irp.setData(frames.get(i));
+			irp.setActualLength(0);
+			irp.setUsbException(null);
+			irp.setComplete(false);
+			batchIrps.add(irp);
+		}
+		try {
+			pipeOut.syncSubmit(batchIrps);
+		} catch (Exception e) {
+			logger.error("Error while sending frames [{}]", e.getMessage());
+			throw new ToyPadException(JToypadConstants.ERR_USB_SEND);
+		} finally {
+			// The IRPs don't keep the frames, which may go back to a pool
+			for (UsbIrp irp : batchIrps) {
+				irp.setData(EMPTY);
+			}
+			batchIrps.clear();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void close() throws ToyPadException {
+
+		try {
+			if (pipeOut != null && pipeOut.isOpen()) {
+				pipeOut.close();
+			}
+			if (inboundRing != null) {
+				inboundRing.stop();
+			}
+			if (pipeIn != null && pipeIn.isOpen()) {
+				pipeIn.removeUsbPipeListener(this);
+				pipeIn.abortAllSubmissions();
+				pipeIn.close();
+			}
+			iface.release();
+		} catch (Exception e) {
+			logger.error("Error while release usb [{}]", e.getMessage());
+			throw new ToyPadException(JToypadConstants.ERR_CLOSE_USB);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getIdentifiant() {
+		return usbDevice.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void errorEventOccurred(UsbPipeErrorEvent event) {
+
+		logger.error(event.getUsbException().getMessage());
+		InboundRing ring = inboundRing;
+		if (ring != null) {
+			ring.recycle(event.getUsbIrp());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void dataEventOccurred(final UsbPipeDataEvent event) {
+
+		InboundRing ring = inboundRing;
+		if (ring == null) {
+			return;
+		}
+		// The other IN transfers of the ring are still queued meanwhile
+		try {
+			byte[] data = ring.frame(event.getUsbIrp());
+			if (data != null) {
+				listener.frameReceived(data);
+			}
+		} finally {
+			ring.recycle(event.getUsbIrp());
+		}
+	}
+
+	/**
+	 * Set the number of IN transfers kept in flight, taken into account at the
+	 * next opening.
+	 * 
+	 * @param inboundTransfers
+	 *            number of IN transfers
+	 */
+	public final void setInboundTransfers(final int inboundTransfers) {
+		this.inboundTransfers = inboundTransfers;
+	}
+
+	/**
+	 * @return the usb device
+	 */
+	public final UsbDevice getUsbDevice() {
+		return usbDevice;
+	}
+
+}
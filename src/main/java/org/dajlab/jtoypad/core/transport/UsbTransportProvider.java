@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.usb.UsbDevice;
+import javax.usb.UsbDeviceDescriptor;
+import javax.usb.UsbException;
+import javax.usb.UsbHostManager;
+import javax.usb.UsbHub;
+import javax.usb.UsbServices;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.dajlab.jtoypad.core.JToypadConstants;
+import org.dajlab.jtoypad.core.ToyPadException;
+
+/**
+ * Discovery of the toypads with javax.usb.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class UsbTransportProvider implements TransportProvider {
+
+	/**
+	 * Vendor ID (usb).
+	 */
+	public final static short VENDOR_ID = 0x0e6f;
+	/**
+	 * Product id (usb).
+	 */
+	public final static short PRODUCT_ID = 0x0241;
+
+	/**
+	 * Logger.
+	 */
+	private Logger logger = LogManager.getLogger(UsbTransportProvider.class);
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<ToyPadTransport> findTransports() throws ToyPadException {
+
+		List<ToyPadTransport> transports = new ArrayList<>();
+		for (UsbDevice usbDevice : findDevices(VENDOR_ID, PRODUCT_ID)) {
+			transports.add(new UsbTransport(usbDevice));
+		}
+		return transports;
+	}
+
+	/**
+	 * Find devices.
+	 * 
+	 * @param vendorId
+	 *            vendor id.
+	 * @param productId
+	 *            product id.
+	 * @return list of devices
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	private List<UsbDevice> findDevices(short vendorId, short productId) throws ToyPadException {
+
+		List<UsbDevice> list = new ArrayList<>(0);
+		UsbHub hub = (UsbHub) getUsbRootHoob();
+		if (hub != null) {
+			list = findDevices(hub, vendorId, productId);
+		}
+		logger.debug("Number of toypads detected : [{}]", list.size());
+		return list;
+	}
+
+	/**
+	 * Find the devices recursively among the usb hubs.
+	 * 
+	 * @param hub
+	 *            hub
+	 * @param vendorId
+	 *            vendor id
+	 * @param productId
+	 *            product id
+	 * @return list of devices
+	 */
+	private List<UsbDevice> findDevices(UsbHub hub, short vendorId, short productId) {
+		List<UsbDevice> devices = new ArrayList<UsbDevice>();
+
+		for (UsbDevice device : (List<UsbDevice>) hub.getAttachedUsbDevices()) {
+			UsbDeviceDescriptor desc = device.getUsbDeviceDescriptor();
+			if (desc.idVendor() == vendorId && desc.idProduct() == productId)
+				devices.add(device);
+			if (device.isUsbHub()) {
+				List<UsbDevice> sousDevices = findDevices((UsbHub) device, vendorId, productId);
+				if (sousDevices != null)
+					devices.addAll(sousDevices);
+			}
+		}
+
+		return devices;
+	}
+
+	/**
+	 * Return the root usb hub.
+	 * 
+	 * @return a hub
+	 * @throws ToyPadException
+	 *             toypad exception
+	 */
+	private UsbDevice getUsbRootHoob() throws ToyPadException {
+
+		try {
+			final UsbServices services = UsbHostManager.getUsbServices();
+			return services.getRootUsbHub();
+		} catch (SecurityException | UsbException e) {
+			logger.error("Error while accessing usb");
+			throw new ToyPadException(JToypadConstants.ERR_OPEN_USB);
+		}
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Future;
+
+import org.dajlab.jtoypad.core.Color;
+import org.dajlab.jtoypad.core.CommandEnum;
+import org.dajlab.jtoypad.core.FrameCodec;
+import org.dajlab.jtoypad.core.PadEnum;
+import org.dajlab.jtoypad.core.ToyPadImpl;
+import org.dajlab.jtoypad.core.transport.LoopbackTransport;
+
+/**
+ * Measure the time and the memory allocated by the encoding of SWITCH_PAD
+ * frames: with a payload array, and in place in the frame.<br>
+ * Then measure the whole command, ToyPadImpl.switchPad() written to a
+ * LoopbackTransport: time per command, and bytes allocated per command by
+ * the calling thread and by all the threads (event loop and loopback
+ * included). The frame, the message, its future and the state of the pad
+ * are allocated by each command.<br>
+ * Needs a HotSpot JVM to read the allocated bytes of the threads.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class FrameEncoderBenchmark {
+
+	/**
+	 * Number of frames encoded by a run.
+	 */
+	private final static int ITERATIONS = 5_000_000;
+
+	/**
+	 * Number of commands sent by a run.
+	 */
+	private final static int COMMANDS = 200_000;
+
+	/**
+	 * Number of commands sent before waiting for one to be written.
+	 */
+	private final static int IN_FLIGHT = 64;
+
+	/**
+	 * Number of warmup runs.
+	 */
+	private final static int WARMUP = 5;
+
+	/**
+	 * Colors of the animation.
+	 */
+	private final static Color[] COLORS = Color.ALL_COLORS;
+
+	/**
+	 * Prevents the JIT from removing the encoding.
+	 */
+	private static int sink;
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            args
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public static void main(final String[] args) throws Exception {
+
+		for (int i = 0; i < WARMUP; i++) {
+			encodeWithPayload(ITERATIONS);
+			encodeInPlace(ITERATIONS);
+		}
+		measure("payload", false);
+		measure("in place", true);
+
+		ToyPadImpl toyPad = new ToyPadImpl(new LoopbackTransport("loopback"));
+		// Written at once, not waited for to be merged
+		toyPad.setCombiningWindow(0);
+		try {
+			for (int i = 0; i < WARMUP; i++) {
+				switchPad(toyPad, COMMANDS);
+			}
+			measureSwitchPad(toyPad);
+		} finally {
+			toyPad.close();
+		}
+	}
+
+	/**
+	 * Run the commands and print the results.
+	 * 
+	 * @param toyPad
+	 *            toypad
+	 * @throws Exception
+	 *             in case of error
+	 */
+	private static void measureSwitchPad(final ToyPadImpl toyPad) throws Exception {
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long[] threadIds = bean.getAllThreadIds();
+		long bytesBefore = bean.getThreadAllocatedBytes(threadId);
+		long allBytesBefore = sum(bean.getThreadAllocatedBytes(threadIds));
+		long start = System.nanoTime();
+		switchPad(toyPad, COMMANDS);
+		long time = System.nanoTime() - start;
+		long bytes = bean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		long allBytes = sum(bean.getThreadAllocatedBytes(threadIds)) - allBytesBefore;
+		System.out.println(String.format("%-10s : %6.1f ns/command, %6.2f bytes/command, %6.2f bytes/command all threads",
+				"switchPad", (double) time / COMMANDS, (double) bytes / COMMANDS, (double) allBytes / COMMANDS));
+	}
+
+	/**
+	 * Switch the center pad between two colors, waiting regularly for a
+	 * command to be written so the queue doesn't fill up.
+	 * 
+	 * @param toyPad
+	 *            toypad
+	 * @param commands
+	 *            number of commands
+	 * @throws Exception
+	 *             in case of error
+	 */
+	private static void switchPad(final ToyPadImpl toyPad, final int commands) throws Exception {
+
+		for (int i = 0; i < commands; i++) {
+			// Two colors, so that no command is suppressed as redundant
+			Future<Void> future = toyPad.switchPad(PadEnum.CENTER, COLORS[i % 2]);
+			if (i % IN_FLIGHT == 0) {
+				future.get();
+			}
+		}
+	}
+
+	/**
+	 * @param values
+	 *            values, -1 for an unknown value
+	 * @return the sum of the known values
+	 */
+	private static long sum(final long[] values) {
+
+		long sum = 0;
+		for (long value : values) {
+			if (value > 0) {
+				sum += value;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Run and print the results.
+	 * 
+	 * @param name
+	 *            name of the run
+	 * @param inPlace
+	 *            true to encode in place
+	 */
+	private static void measure(final String name, final boolean inPlace) {
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = bean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		if (inPlace) {
+			encodeInPlace(ITERATIONS);
+		} else {
+			encodeWithPayload(ITERATIONS);
+		}
+		long time = System.nanoTime() - start;
+		long bytes = bean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		System.out.println(String.format("%-10s : %6.1f ns/frame, %6.2f bytes/frame", name,
+				(double) time / ITERATIONS, (double) bytes / ITERATIONS));
+	}
+
+	/**
+	 * Encode frames from a payload array.
+	 * 
+	 * @param iterations
+	 *            number of frames
+	 */
+	private static void encodeWithPayload(final int iterations) {
+
+		for (int i = 0; i < iterations; i++) {
+			Color color = COLORS[i % COLORS.length];
+			byte[] frame = FrameCodec.encode(CommandEnum.SWITCH_PAD, i, new byte[] { PadEnum.CENTER.getValue(),
+					(byte) color.getRed(), (byte) color.getGreen(), (byte) color.getBlue() });
+			sink += frame[7];
+		}
+	}
+
+	/**
+	 * Encode frames in place.
+	 * 
+	 * @param iterations
+	 *            number of frames
+	 */
+	private static void encodeInPlace(final int iterations) {
+
+		for (int i = 0; i < iterations; i++) {
+			byte[] frame = FrameCodec.start(new byte[FrameCodec.FRAME_LENGTH], CommandEnum.SWITCH_PAD, i);
+			frame[FrameCodec.INDEX_PAYLOAD] = PadEnum.CENTER.getValue();
+			FrameCodec.putColor(frame, FrameCodec.INDEX_PAYLOAD + 1, COLORS[i % COLORS.length]);
+			FrameCodec.seal(frame);
+			sink += frame[7];
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dajlab.jtoypad.core.ActionEnum;
+import org.dajlab.jtoypad.core.IdentificationScheduler;
+import org.dajlab.jtoypad.core.PadEnum;
+import org.dajlab.jtoypad.core.TagDecoder;
+import org.dajlab.jtoypad.core.TagEvent;
+import org.dajlab.jtoypad.core.TagListener;
+import org.dajlab.jtoypad.core.TagUid;
+import org.dajlab.jtoypad.core.ToyPadImpl;
+import org.dajlab.jtoypad.core.transport.LoopbackTransport;
+
+/**
+ * Measure the time to identify N tags put at once on a simulated toypad
+ * whose responses come after a latency: tags identified one at a time
+ * (window of 1), then pipelined (default window).<br>
+ * Half of the tags are characters identified from their READ response, the
+ * others need a LST_MODEL request too.<br>
+ * Usage: IdentificationBenchmark [latency in ms] (4 by default).
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class IdentificationBenchmark {
+
+	/**
+	 * Numbers of tags put at once.
+	 */
+	private final static int[] TAG_COUNTS = { 1, 2, 4, 8 };
+
+	/**
+	 * Number of measured runs for each count.
+	 */
+	private final static int ROUNDS = 10;
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            latency of the simulated toypad (ms)
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public static void main(final String[] args) throws Exception {
+
+		long latency = args.length > 0 ? Long.parseLong(args[0]) : 4;
+		// Warmup
+		run(latency, 8, IdentificationScheduler.DEFAULT_WINDOW, ROUNDS);
+		for (int count : TAG_COUNTS) {
+			long[] serial = run(latency, count, 1, ROUNDS);
+			long[] pipelined = run(latency, count, IdentificationScheduler.DEFAULT_WINDOW, ROUNDS);
+			System.out.println(String.format(
+					"%d tags : one at a time first=%4d ms, all=%4d ms; pipelined first=%4d ms, all=%4d ms", count,
+					serial[0], serial[1], pipelined[0], pipelined[1]));
+		}
+	}
+
+	/**
+	 * Put tags on a new toypad, and measure their identification.
+	 * 
+	 * @param latency
+	 *            latency of the simulated toypad (ms)
+	 * @param count
+	 *            number of tags put at once
+	 * @param window
+	 *            identification window
+	 * @param rounds
+	 *            number of runs
+	 * @return mean time to the first identified tag, and to the last (ms)
+	 * @throws Exception
+	 *             in case of error
+	 */
+	private static long[] run(final long latency, final int count, final int window, final int rounds)
+			throws Exception {
+
+		LoopbackTransport transport = new LoopbackTransport("loopback");
+		transport.setLatency(latency);
+		ToyPadImpl toyPad = new ToyPadImpl(transport);
+		toyPad.setIdentificationWindow(window);
+		final long[] firstTime = new long[1];
+		final CountDownLatch[] latch = new CountDownLatch[1];
+		toyPad.addTagListener(new TagListener() {
+			@Override
+			public void newTagEvent(final TagEvent event) {
+				if (event.getAction() == ActionEnum.ADDED) {
+					if (latch[0].getCount() == count) {
+						firstTime[0] = System.nanoTime();
+					}
+					latch[0].countDown();
+				}
+			}
+		});
+		byte[][] uids = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			uids[i] = new byte[] { 0x04, 0x10, 0x20, 0x30, 0x40, 0x50, (byte) i };
+			byte[] pages = new byte[16];
+			if (i % 2 == 0) {
+				// Decrypted from the READ response
+				TagDecoder.encryptCharacterId(TagUid.fromBytes(uids[i], 0), 1 + i, pages, 0);
+			}
+			transport.setPages(i, pages);
+		}
+
+		long first = 0;
+		long all = 0;
+		try {
+			for (int round = 0; round < rounds; round++) {
+				// Not known by the cache
+				toyPad.getTagCache().invalidateAll();
+				latch[0] = new CountDownLatch(count);
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					transport.placeTag(PadEnum.CENTER, i, uids[i]);
+				}
+				if (!latch[0].await(10, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("Tags not identified");
+				}
+				all += System.nanoTime() - start;
+				first += firstTime[0] - start;
+				for (int i = 0; i < count; i++) {
+					transport.removeTag(PadEnum.CENTER, i, uids[i]);
+				}
+			}
+		} finally {
+			toyPad.close();
+		}
+		return new long[] { first / rounds / 1_000_000, all / rounds / 1_000_000 };
+	}
+
+}
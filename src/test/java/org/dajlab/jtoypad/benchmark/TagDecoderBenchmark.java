@@ -0,0 +1,289 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.dajlab.jtoypad.core.TagDecoder;
+
+/**
+ * Measure the time and the memory allocated by the decryption of character
+ * ids and the encryption of LST_MODEL payloads: with the previous
+ * implementation of TagDecoder (reproduced here, key words read from the
+ * key bytes with a ByteBuffer at each call, int[] results), and with the
+ * current one (constant key words, packed long results, caller buffers).
+ * <br>
+ * The results of both implementations are compared first.<br>
+ * Needs a HotSpot JVM to read the allocated bytes of the thread.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagDecoderBenchmark {
+
+	/**
+	 * Number of blocks decoded by a run.
+	 */
+	private final static int ITERATIONS = 2_000_000;
+
+	/**
+	 * Number of warmup runs.
+	 */
+	private final static int WARMUP = 5;
+
+	/**
+	 * Number of distinct blocks.
+	 */
+	private final static int BLOCKS = 1024;
+
+	/**
+	 * Key of the previous implementation.
+	 */
+	private static byte[] teakey = { 0x55, (byte) 0xFE, (byte) 0xF6, (byte) 0xB0, 0x62, (byte) 0xBF, 0x0B, 0x41,
+			(byte) 0xC9, (byte) 0xB3, 0x7C, (byte) 0xB4, (byte) 0x97, 0x3E, 0x29, 0x7B };
+
+	/**
+	 * Prevents the JIT from removing the decoding.
+	 */
+	private static int sink;
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            args
+	 */
+	public static void main(final String[] args) {
+
+		byte[][] blocks = new byte[BLOCKS][8];
+		Random random = new Random(42);
+		for (byte[] block : blocks) {
+			random.nextBytes(block);
+		}
+		byte[] target = new byte[8];
+		for (byte[] block : blocks) {
+			TagDecoder.encode(block, 0, target, 0);
+			if (legacyDecodeId(block) != TagDecoder.decodeCharacterId(block, 0)
+					|| !Arrays.equals(legacyEncode(block), target)) {
+				System.out.println("Results differ for " + TagDecoder.byteToHex(block));
+				return;
+			}
+		}
+		for (int i = 0; i < WARMUP; i++) {
+			runLegacy(blocks, ITERATIONS);
+			runCurrent(blocks, target, ITERATIONS);
+		}
+		measure("previous", false, blocks, target);
+		measure("current", true, blocks, target);
+	}
+
+	/**
+	 * Run and print the results.
+	 * 
+	 * @param name
+	 *            name of the run
+	 * @param current
+	 *            true for the current implementation
+	 * @param blocks
+	 *            encrypted blocks
+	 * @param target
+	 *            buffer of the encoded blocks
+	 */
+	private static void measure(final String name, final boolean current, final byte[][] blocks,
+			final byte[] target) {
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = bean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		if (current) {
+			runCurrent(blocks, target, ITERATIONS);
+		} else {
+			runLegacy(blocks, ITERATIONS);
+		}
+		long time = System.nanoTime() - start;
+		long bytes = bean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		System.out.println(String.format("%-10s : %6.1f ns/block, %6.2f bytes/block", name,
+				(double) time / ITERATIONS, (double) bytes / ITERATIONS));
+	}
+
+	/**
+	 * Decode and encode blocks with the current implementation.
+	 * 
+	 * @param blocks
+	 *            blocks
+	 * @param target
+	 *            buffer of the encoded blocks
+	 * @param iterations
+	 *            number of blocks
+	 */
+	private static void runCurrent(final byte[][] blocks, final byte[] target, final int iterations) {
+
+		for (int i = 0; i < iterations; i++) {
+			byte[] block = blocks[i & (BLOCKS - 1)];
+			sink += TagDecoder.decodeCharacterId(block, 0);
+			TagDecoder.encode(block, 0, target, 0);
+			sink += target[7];
+		}
+	}
+
+	/**
+	 * Decode and encode blocks with the previous implementation.
+	 * 
+	 * @param blocks
+	 *            blocks
+	 * @param iterations
+	 *            number of blocks
+	 */
+	private static void runLegacy(final byte[][] blocks, final int iterations) {
+
+		for (int i = 0; i < iterations; i++) {
+			byte[] block = blocks[i & (BLOCKS - 1)];
+			sink += legacyDecodeId(block);
+			sink += legacyEncode(block)[7];
+		}
+	}
+
+	/**
+	 * Previous decoding of a character id.
+	 * 
+	 * @param data
+	 *            8 bytes
+	 * @return the id
+	 */
+	private static int legacyDecodeId(final byte[] data) {
+
+		int[] tmp = legacyDecipher(readUInt32LE(data, 0), readUInt32LE(data, 4));
+		ByteBuffer bff = ByteBuffer.allocate(8);
+		writeUInt32LE(tmp[0], bff);
+		writeUInt32LE(tmp[1], bff);
+		return readUInt32LE(bff.array(), 0);
+	}
+
+	/**
+	 * Previous encoding.
+	 * 
+	 * @param data
+	 *            8 bytes
+	 * @return the encoded bytes
+	 */
+	private static byte[] legacyEncode(final byte[] data) {
+
+		byte[] bp = ByteBuffer.allocate(8).putInt(readUInt32LE(data, 0)).putInt(readUInt32LE(data, 4)).array();
+		int r0 = bp[0] << 24 | (bp[1] & 0xff) << 16 | (bp[2] & 0xff) << 8 | bp[3] & 0xff;
+		int r1 = bp[4] << 24 | (bp[5] & 0xff) << 16 | (bp[6] & 0xff) << 8 | bp[7] & 0xff;
+		int[] r = legacyEncipher(r0, r1);
+		ByteBuffer bff = ByteBuffer.allocate(8);
+		writeUInt32LE(r[0], bff);
+		writeUInt32LE(r[1], bff);
+		return bff.array();
+	}
+
+	/**
+	 * Previous encipher.
+	 * 
+	 * @param v0
+	 *            v0
+	 * @param v1
+	 *            v1
+	 * @return encrypted data
+	 */
+	private static int[] legacyEncipher(final int v0, final int v1) {
+
+		int y = v0;
+		int z = v1;
+		int sum = 0;
+		final int delta = 0x9E3779B9;
+		final int a = readUInt32LE(teakey, 0);
+		final int b = readUInt32LE(teakey, 4);
+		final int c = readUInt32LE(teakey, 8);
+		final int d = readUInt32LE(teakey, 12);
+		int n = 32;
+		while (n-- > 0) {
+			sum += delta;
+			y += (z << 4) + a ^ z + sum ^ (z >>> 5) + b;
+			z += (y << 4) + c ^ y + sum ^ (y >>> 5) + d;
+		}
+		return new int[] { y, z };
+	}
+
+	/**
+	 * Previous decipher.
+	 * 
+	 * @param v0
+	 *            v0
+	 * @param v1
+	 *            v1
+	 * @return decrypted data
+	 */
+	private static int[] legacyDecipher(final int v0, final int v1) {
+
+		int y = v0;
+		int z = v1;
+		int sum = 0xC6EF3720;
+		final int delta = 0x9E3779B9;
+		final int a = readUInt32LE(teakey, 0);
+		final int b = readUInt32LE(teakey, 4);
+		final int c = readUInt32LE(teakey, 8);
+		final int d = readUInt32LE(teakey, 12);
+		int n = 32;
+		while (n-- > 0) {
+			z -= (y << 4) + c ^ y + sum ^ (y >>> 5) + d;
+			y -= (z << 4) + a ^ z + sum ^ (z >>> 5) + b;
+			sum -= delta;
+		}
+		return new int[] { y, z };
+	}
+
+	/**
+	 * Previous read of an int 32 bits Little Endian.
+	 * 
+	 * @param bytes
+	 *            bytes
+	 * @param pointer
+	 *            pointer
+	 * @return int
+	 */
+	private static int readUInt32LE(final byte[] bytes, final int pointer) {
+
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.put(bytes, pointer, 4);
+		buffer.put(new byte[4]);
+		buffer.flip();
+		return buffer.order(ByteOrder.LITTLE_ENDIAN).getInt();
+	}
+
+	/**
+	 * Previous write of an int 32 bits Little Endian.
+	 * 
+	 * @param v
+	 *            value
+	 * @param buf
+	 *            buffer
+	 */
+	private static void writeUInt32LE(final int v, final ByteBuffer buf) {
+
+		buf.put((byte) (v & 0x000000ff));
+		buf.put((byte) ((v & 0x0000ff00) >> 8));
+		buf.put((byte) ((v & 0x00ff0000) >> 16));
+		buf.put((byte) ((v & 0xff000000) >> 24));
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.dajlab.jtoypad.core.CommandEnum;
+import org.dajlab.jtoypad.core.PadEnum;
+import org.dajlab.jtoypad.core.ToyPadImpl;
+import org.dajlab.jtoypad.core.ToyPadManager;
+import org.dajlab.jtoypad.core.transport.HidrawTransportProvider;
+import org.dajlab.jtoypad.core.transport.LibUsbTransportProvider;
+import org.dajlab.jtoypad.core.transport.LoopbackTransport;
+import org.dajlab.jtoypad.core.transport.ToyPadTransport;
+import org.dajlab.jtoypad.core.transport.TransportProvider;
+import org.dajlab.jtoypad.core.transport.UsbTransportProvider;
+
+/**
+ * Compare the transports on the first toypad found: round trip latency of a
+ * request (GET_COL), then max frames/s with requests pipelined.<br>
+ * Usage: TransportBenchmark [usb|libusb|hidraw|loopback]... (all the device
+ * transports by default).
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TransportBenchmark {
+
+	/**
+	 * Number of round trips measured.
+	 */
+	private final static int ROUND_TRIPS = 2000;
+
+	/**
+	 * Number of round trips before measuring.
+	 */
+	private final static int WARMUP = 200;
+
+	/**
+	 * Number of requests sent for the throughput.
+	 */
+	private final static int FRAMES = 20000;
+
+	/**
+	 * Max number of requests waiting for their response.
+	 */
+	private final static int IN_FLIGHT = 32;
+
+	/**
+	 * Main.
+	 * 
+	 * @param args
+	 *            names of the transports
+	 */
+	public static void main(final String[] args) {
+
+		String[] names = args.length > 0 ? args : new String[] { "usb", "libusb" };
+		for (String name : names) {
+			TransportProvider provider = provider(name);
+			ToyPadManager manager = new ToyPadManager(provider);
+			try {
+				manager.connect();
+				if (manager.getToyPads().isEmpty()) {
+					System.out.println(name + " : no toypad");
+				} else {
+					run(name, (ToyPadImpl) manager.getToyPads().get(0));
+				}
+			} catch (Exception e) {
+				System.out.println(name + " : " + e.getMessage());
+			} finally {
+				manager.disconnect();
+				if (provider instanceof LibUsbTransportProvider) {
+					((LibUsbTransportProvider) provider).close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the provider of a transport.
+	 * 
+	 * @param name
+	 *            name of the transport
+	 * @return the provider
+	 */
+	private static TransportProvider provider(final String name) {
+
+		switch (name) {
+		case "libusb":
+			return new LibUsbTransportProvider();
+		case "hidraw":
+			return new HidrawTransportProvider();
+		case "loopback":
+			return new TransportProvider() {
+				@Override
+				public List<ToyPadTransport> findTransports() {
+					return Collections.<ToyPadTransport> singletonList(new LoopbackTransport("loopback"));
+				}
+			};
+		default:
+			return new UsbTransportProvider();
+		}
+	}
+
+	/**
+	 * Measure a toypad and print the results.
+	 * 
+	 * @param name
+	 *            name of the transport
+	 * @param toyPad
+	 *            toypad
+	 * @throws Exception
+	 *             in case of error
+	 */
+	private static void run(final String name, final ToyPadImpl toyPad) throws Exception {
+
+		byte[] payload = new byte[] { PadEnum.CENTER.getValue() };
+		for (int i = 0; i < WARMUP; i++) {
+			toyPad.sendRequest(CommandEnum.GET_COL, payload).get();
+		}
+
+		long[] latencies = new long[ROUND_TRIPS];
+		for (int i = 0; i < ROUND_TRIPS; i++) {
+			long start = System.nanoTime();
+			toyPad.sendRequest(CommandEnum.GET_COL, payload).get();
+			latencies[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+
+		final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+		BiConsumer<byte[], Throwable> release = new BiConsumer<byte[], Throwable>() {
+			@Override
+			public void accept(final byte[] response, final Throwable error) {
+				inFlight.release();
+			}
+		};
+		long start = System.nanoTime();
+		for (int i = 0; i < FRAMES; i++) {
+			inFlight.acquire();
+			toyPad.sendRequest(CommandEnum.GET_COL, payload).whenComplete(release);
+		}
+		inFlight.acquire(IN_FLIGHT);
+		long time = System.nanoTime() - start;
+
+		System.out.println(String.format("%-8s : round trip p50=%6d us, p99=%6d us, max=%6d us; %8.0f frames/s",
+				name, latencies[ROUND_TRIPS / 2] / 1000, latencies[ROUND_TRIPS * 99 / 100] / 1000,
+				latencies[ROUND_TRIPS - 1] / 1000, FRAMES / (time / 1e9)));
+		System.out.println(String.format("%-8s : %d frames in %d batches, %d requests expired", name,
+				toyPad.getSentCount(), toyPad.getBatchCount(), toyPad.getExpiredRequestCount()));
+	}
+
+}
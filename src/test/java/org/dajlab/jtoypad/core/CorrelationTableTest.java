@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dajlab.jtoypad.core.transport.LoopbackTransport;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of the recovery of the lost responses by the correlation table, with a
+ * toypad simulated by a LoopbackTransport, and of the matching of the
+ * responses with their message counter.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class CorrelationTableTest extends TestCase {
+
+	/**
+	 * Timeout of the requests (ms), short to keep the test fast.
+	 */
+	private final static long TIMEOUT = 50;
+
+	/**
+	 * Number of retries of the requests.
+	 */
+	private final static int RETRIES = 2;
+
+	/**
+	 * UID of the tag.
+	 */
+	private final static byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+	/**
+	 * Simulated toypad.
+	 */
+	private LoopbackTransport transport;
+
+	/**
+	 * Toypad.
+	 */
+	private ToyPadImpl toyPad;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+
+		transport = new LoopbackTransport("loopback");
+		toyPad = new ToyPadImpl(transport);
+		// Not known from a previous test
+		toyPad.setTagCache(new TagCache());
+		toyPad.setRequestTimeout(TIMEOUT);
+		toyPad.setRequestRetries(RETRIES);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		toyPad.close();
+	}
+
+	/**
+	 * The first READ response is lost: the READ is sent again, and the tag is
+	 * identified.
+	 * 
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public void testLostResponseIsRetried() throws Exception {
+
+		final LinkedBlockingQueue<TagEvent> events = new LinkedBlockingQueue<>();
+		toyPad.addTagListener(new TagListener() {
+			@Override
+			public void newTagEvent(final TagEvent event) {
+				events.add(event);
+			}
+		});
+		byte[] pages = new byte[16];
+		TagDecoder.encryptCharacterId(TagUid.fromBytes(UID, 0), 1, pages, 0);
+		transport.setPages(0, pages);
+		transport.dropResponses(CommandEnum.READ, 1);
+
+		transport.placeTag(PadEnum.CENTER, 0, UID);
+		TagEvent event = events.poll(10 * TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull("tag event", event);
+		assertEquals(TagUid.fromBytes(UID, 0), event.getTag().getUid());
+		assertEquals("character id", 1, event.getTag().getId());
+		assertNotNull("character name", event.getTag().getName());
+		assertEquals("READ frames", 2, transport.getWrittenCount(CommandEnum.READ));
+		assertEquals("retried", 1, toyPad.getRetriedRequestCount());
+		assertEquals("expired", 0, toyPad.getExpiredRequestCount());
+	}
+
+	/**
+	 * All the responses are lost: the request expires after retries + 1
+	 * attempts.
+	 * 
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public void testRequestExpires() throws Exception {
+
+		transport.setAnswering(false);
+		try {
+			toyPad.sendRequest(CommandEnum.GET_COL, new byte[] { PadEnum.CENTER.getValue() }).get(
+					10 * (RETRIES + 1) * TIMEOUT, TimeUnit.MILLISECONDS);
+			fail("response without answer");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ToyPadException);
+		}
+		assertEquals("GET_COL frames", RETRIES + 1, transport.getWrittenCount(CommandEnum.GET_COL));
+		assertEquals("retried", RETRIES, toyPad.getRetriedRequestCount());
+		assertEquals("expired", 1, toyPad.getExpiredRequestCount());
+	}
+
+	/**
+	 * The frames waiting for their acknowledgement only take the counters of
+	 * the lower half.
+	 * 
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public void testFrameCounters() throws Exception {
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			CorrelationTable table = new CorrelationTable(null, scheduler);
+			for (int i = 0; i < 300; i++) {
+				int counter = table.nextCounter();
+				assertTrue("counter " + counter, counter >= 2 && counter < 128);
+			}
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * A response which hasn't the size expected for the command doesn't
+	 * complete the request.
+	 * 
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public void testResponseSizeChecked() throws Exception {
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			CorrelationTable table = new CorrelationTable(null, scheduler);
+			int counter = table.nextCounter();
+			CompletableFuture<byte[]> acknowledgement = table.expect(FrameCodec.encode(CommandEnum.SWITCH_PAD,
+					counter, new byte[] { PadEnum.CENTER.getValue(), 1, 2, 3 }));
+
+			assertFalse("READ response", table.complete(response(counter, 0x12)));
+			assertFalse(acknowledgement.isDone());
+			assertTrue("acknowledgement", table.complete(response(counter, 0x01)));
+			assertTrue(acknowledgement.isDone());
+			assertEquals(0, table.getPendingCount());
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * The counter of an expired request stays reserved for one more timeout:
+	 * the late response is ignored.
+	 * 
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public void testExpiredCounterReserved() throws Exception {
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			CorrelationTable table = new CorrelationTable(null, scheduler);
+			table.setTimeout(TIMEOUT);
+			int counter = table.nextCounter();
+			CompletableFuture<byte[]> acknowledgement = table.expect(FrameCodec.encode(CommandEnum.SWITCH_PAD,
+					counter, new byte[] { PadEnum.CENTER.getValue(), 1, 2, 3 }));
+			try {
+				acknowledgement.get(10 * TIMEOUT, TimeUnit.MILLISECONDS);
+				fail("acknowledgement without response");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof ToyPadException);
+			}
+			assertEquals(0, table.getPendingCount());
+			assertEquals(1, table.getExpiredCount());
+
+			assertFalse("late response", table.complete(response(counter, 0x01)));
+			for (int i = 0; i < 128; i++) {
+				assertTrue("counter reused", table.nextCounter() != counter);
+			}
+
+			Thread.sleep(2 * TIMEOUT);
+			boolean reused = false;
+			for (int i = 0; i < 128; i++) {
+				reused |= table.nextCounter() == counter;
+			}
+			assertTrue("counter released", reused);
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Build a response frame.
+	 * 
+	 * @param counter
+	 *            message counter
+	 * @param size
+	 *            payload size of the response
+	 * @return the frame
+	 */
+	private static byte[] response(final int counter, final int size) {
+
+		byte[] response = new byte[FrameCodec.FRAME_LENGTH];
+		response[0] = FrameCodec.PREFIX_GENERIC;
+		response[1] = (byte) size;
+		response[2] = (byte) counter;
+		return FrameCodec.seal(response);
+	}
+
+}
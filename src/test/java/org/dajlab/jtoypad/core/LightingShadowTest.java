@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of the ordering of the lighting messages by the shadow: the messages
+ * are built without its lock, and may reach the event loop in another order
+ * than their changes.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LightingShadowTest extends TestCase {
+
+	/**
+	 * Messages queued in the order of their changes: the shadow is kept.
+	 */
+	public void testInOrder() {
+
+		LightingShadow shadow = new LightingShadow();
+		shadow.setState(PadEnum.CENTER, new PadState(Color.RED));
+		long first = shadow.nextSequence();
+		shadow.setState(PadEnum.CENTER, new PadState(Color.BLUE));
+		long second = shadow.nextSequence();
+
+		assertEquals(0, shadow.queued(PadEnum.CENTER.getMask(), first));
+		assertEquals(0, shadow.queued(PadEnum.CENTER.getMask(), second));
+		assertTrue(shadow.isSolid(PadEnum.CENTER, Color.BLUE));
+	}
+
+	/**
+	 * An older message queued after a newer one: the pads they share become
+	 * unknown, the others are kept.
+	 */
+	public void testOvertaken() {
+
+		LightingShadow shadow = new LightingShadow();
+		shadow.setState(PadEnum.ALL, new PadState(Color.RED));
+		long first = shadow.nextSequence();
+		shadow.setState(PadEnum.CENTER, new PadState(Color.BLUE));
+		long second = shadow.nextSequence();
+
+		assertEquals(0, shadow.queued(PadEnum.CENTER.getMask(), second));
+		assertEquals(PadEnum.CENTER.getMask(), shadow.queued(PadEnum.ALL.getMask(), first));
+		assertEquals(PadState.UNKNOWN, shadow.getState(PadEnum.CENTER));
+		assertTrue(shadow.isSolid(PadEnum.LEFT, Color.RED));
+		assertTrue(shadow.isSolid(PadEnum.RIGHT, Color.RED));
+	}
+}
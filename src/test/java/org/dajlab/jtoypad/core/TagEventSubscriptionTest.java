@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of the overflow policies of the tag events subscriptions. The
+ * subscriber is called by the thread offering the events, and requests them
+ * only once the buffer has overflowed.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagEventSubscriptionTest extends TestCase {
+
+	/**
+	 * Max number of buffered events.
+	 */
+	private final static int CAPACITY = 3;
+
+	/**
+	 * Events received by the subscriber.
+	 */
+	private final List<TagEvent> received = new ArrayList<>();
+
+	/**
+	 * Error received by the subscriber.
+	 */
+	private Throwable error;
+
+	/**
+	 * Publisher.
+	 */
+	private TagEventPublisher publisher;
+
+	/**
+	 * Subscription.
+	 */
+	private TagEventSubscription subscription;
+
+	/**
+	 * Subscribe with a policy.
+	 * 
+	 * @param policy
+	 *            overflow policy
+	 */
+	private void subscribe(final OverflowPolicyEnum policy) {
+
+		publisher = new TagEventPublisher(new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		}, CAPACITY, policy);
+		subscription = publisher.subscribe(new Flow.Subscriber<TagEvent>() {
+			@Override
+			public void onSubscribe(final Flow.Subscription s) {
+				// Nothing requested yet
+			}
+
+			@Override
+			public void onNext(final TagEvent item) {
+				received.add(item);
+			}
+
+			@Override
+			public void onError(final Throwable throwable) {
+				error = throwable;
+			}
+
+			@Override
+			public void onComplete() {
+				// Not tested
+			}
+		}, CAPACITY, policy);
+	}
+
+	/**
+	 * BUFFER: the subscription fails when its buffer overflows.
+	 */
+	public void testBuffer() {
+
+		subscribe(OverflowPolicyEnum.BUFFER);
+		for (int uid = 1; uid <= CAPACITY + 1; uid++) {
+			publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.ADDED, uid));
+		}
+		subscription.request(Long.MAX_VALUE);
+		assertTrue(error instanceof ToyPadException);
+		assertEquals(1, subscription.getDroppedCount());
+		assertTrue(subscription.isCancelled());
+	}
+
+	/**
+	 * DROP_OLDEST: the oldest event is lost.
+	 */
+	public void testDropOldest() {
+
+		subscribe(OverflowPolicyEnum.DROP_OLDEST);
+		for (int uid = 1; uid <= CAPACITY + 1; uid++) {
+			publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.ADDED, uid));
+		}
+		subscription.request(Long.MAX_VALUE);
+		assertNull(error);
+		assertUids(2, 3, 4);
+		assertEquals(1, subscription.getDroppedCount());
+	}
+
+	/**
+	 * COALESCE_PER_PAD: an event followed by a later event of the same tag on
+	 * the same pad is lost first.
+	 */
+	public void testCoalesceSameTag() {
+
+		subscribe(OverflowPolicyEnum.COALESCE_PER_PAD);
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.ADDED, 1));
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.ADDED, 2));
+		publisher.newTagEvent(event(PadEnum.RIGHT, ActionEnum.ADDED, 3));
+		// Tag 2 leaves: its ADDED event is useless
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.REMOVED, 2));
+		subscription.request(Long.MAX_VALUE);
+		assertUids(1, 3, 2);
+		assertEquals(ActionEnum.REMOVED, received.get(2).getAction());
+	}
+
+	/**
+	 * COALESCE_PER_PAD: a REMOVED event is kept when a later ADDED event of
+	 * another tag overflows the buffer.
+	 */
+	public void testCoalesceKeepsRemoved() {
+
+		subscribe(OverflowPolicyEnum.COALESCE_PER_PAD);
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.REMOVED, 1));
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.ADDED, 2));
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.REMOVED, 3));
+		publisher.newTagEvent(event(PadEnum.LEFT, ActionEnum.ADDED, 4));
+		subscription.request(Long.MAX_VALUE);
+		assertUids(1, 3, 4);
+		assertEquals(ActionEnum.REMOVED, received.get(0).getAction());
+		assertEquals(ActionEnum.REMOVED, received.get(1).getAction());
+		assertEquals(1, subscription.getDroppedCount());
+	}
+
+	/**
+	 * Check the UIDs of the events received, in order.
+	 * 
+	 * @param uids
+	 *            expected UIDs
+	 */
+	private void assertUids(final long... uids) {
+
+		assertEquals(uids.length, received.size());
+		for (int i = 0; i < uids.length; i++) {
+			assertEquals(TagUid.valueOf(uids[i]), received.get(i).getTag().getUid());
+		}
+	}
+
+	/**
+	 * Build an event.
+	 * 
+	 * @param pad
+	 *            pad
+	 * @param action
+	 *            action
+	 * @param uid
+	 *            UID of the tag
+	 * @return the event
+	 */
+	private static TagEvent event(final PadEnum pad, final ActionEnum action, final long uid) {
+
+		TagEvent event = new TagEvent(null);
+		event.setPad(pad);
+		event.setAction(action);
+		event.getTag().setUid(TagUid.valueOf(uid));
+		return event;
+	}
+
+}
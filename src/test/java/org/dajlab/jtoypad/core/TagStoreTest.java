@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of the persistent tag store : reopening, corrupted slots and full
+ * table.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class TagStoreTest extends TestCase {
+
+	/**
+	 * Length of the header of the file.
+	 */
+	private final static int HEADER_LENGTH = 64;
+
+	/**
+	 * Length of a slot.
+	 */
+	private final static int SLOT_LENGTH = 128;
+
+	/**
+	 * Offset of the name in a slot.
+	 */
+	private final static int OFFSET_NAME = 14;
+
+	/**
+	 * Smallest number of slots of a store.
+	 */
+	private final static int SLOT_COUNT = 64;
+
+	/**
+	 * File of the store.
+	 */
+	private File file;
+
+	/**
+	 * Store.
+	 */
+	private TagStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+
+		file = File.createTempFile("tagstore", ".bin");
+		// The store creates the file only if it is empty
+		file.delete();
+		store = new TagStore(file, SLOT_COUNT);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+
+		store.close();
+		file.delete();
+	}
+
+	/**
+	 * Create a tag.
+	 * 
+	 * @param uid
+	 *            value of the UID
+	 * @return the tag
+	 */
+	private static Tag tag(final long uid) {
+
+		Tag tag = new Tag();
+		tag.setUid(TagUid.valueOf(uid));
+		tag.setType(TagTypeEnum.CHARACTER);
+		tag.setId((int) uid);
+		tag.setName("Tag " + uid);
+		return tag;
+	}
+
+	/**
+	 * A stored tag is found again once the store is reopened.
+	 * 
+	 * @throws Exception
+	 *             if the store can't be opened
+	 */
+	public void testReopen() throws Exception {
+
+		Tag tag = tag(0x04112233445566L);
+		store.put(tag);
+		store.close();
+		store = new TagStore(file);
+		assertEquals(SLOT_COUNT, store.getSlotCount());
+		Tag found = store.get(tag.getUid());
+		assertNotNull(found);
+		assertEquals(tag.getUid(), found.getUid());
+		assertEquals(tag.getType(), found.getType());
+		assertEquals(tag.getId(), found.getId());
+		assertEquals(tag.getName(), found.getName());
+		assertNull(store.get(TagUid.valueOf(0x04665544332211L)));
+		assertEquals(1, store.getHitCount());
+		assertEquals(1, store.getMissCount());
+	}
+
+	/**
+	 * A slot whose body doesn't match its CRC is a miss.
+	 * 
+	 * @throws Exception
+	 *             if the file can't be written
+	 */
+	public void testCorruptedSlot() throws Exception {
+
+		Tag tag = tag(0x04112233445566L);
+		store.put(tag);
+		store.close();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			long offset = usedSlot(raf) + OFFSET_NAME;
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xff);
+		}
+		store = new TagStore(file);
+		assertNull(store.get(tag.getUid()));
+		assertEquals(0, store.getHitCount());
+		assertEquals(1, store.getMissCount());
+
+		// The corrupted slot is rewritten
+		store.put(tag);
+		assertEquals(tag.getName(), store.get(tag.getUid()).getName());
+	}
+
+	/**
+	 * Return the offset of the only used slot of the file.
+	 * 
+	 * @param raf
+	 *            file
+	 * @return the offset
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	private static long usedSlot(final RandomAccessFile raf) throws IOException {
+
+		long used = -1;
+		for (int slot = 0; slot < SLOT_COUNT; slot++) {
+			long offset = HEADER_LENGTH + (long) slot * SLOT_LENGTH;
+			raf.seek(offset);
+			if (raf.readLong() != 0) {
+				assertEquals(-1, used);
+				used = offset;
+			}
+		}
+		assertTrue(used >= 0);
+		return used;
+	}
+
+	/**
+	 * Once every slot is used, new tags are rejected but the stored ones are
+	 * still found and updated.
+	 */
+	public void testFull() {
+
+		for (int i = 1; i <= SLOT_COUNT; i++) {
+			store.put(tag(i));
+		}
+		assertEquals(0, store.getRejectedCount());
+		store.put(tag(SLOT_COUNT + 1));
+		assertEquals(1, store.getRejectedCount());
+		assertNull(store.get(TagUid.valueOf(SLOT_COUNT + 1)));
+
+		for (int i = 1; i <= SLOT_COUNT; i++) {
+			assertNotNull(store.get(TagUid.valueOf(i)));
+		}
+		Tag renamed = tag(1);
+		renamed.setName("Renamed");
+		store.put(renamed);
+		assertEquals(1, store.getRejectedCount());
+		assertEquals("Renamed", store.get(renamed.getUid()).getName());
+	}
+}
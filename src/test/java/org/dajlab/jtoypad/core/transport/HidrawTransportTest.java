@@ -0,0 +1,217 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.core.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.dajlab.jtoypad.core.CommandEnum;
+import org.dajlab.jtoypad.core.FrameCodec;
+import org.dajlab.jtoypad.core.ToyPadException;
+
+import junit.framework.TestCase;
+
+/**
+ * Test of the hidraw transport, with two FIFOs standing in for the device.
+ * <br>
+ * Skipped where mkfifo is not available.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class HidrawTransportTest extends TestCase {
+
+	/**
+	 * Directory of the FIFOs.
+	 */
+	private Path directory;
+
+	/**
+	 * FIFO read by the transport.
+	 */
+	private Path input;
+
+	/**
+	 * FIFO written by the transport.
+	 */
+	private Path output;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void setUp() throws Exception {
+
+		directory = Files.createTempDirectory("jtoypad");
+		input = directory.resolve("input");
+		output = directory.resolve("output");
+		if (!mkfifo(input) || !mkfifo(output)) {
+			input = null;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+
+		for (File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		directory.toFile().delete();
+	}
+
+	/**
+	 * A frame written is preceded by the report id, a frame received is given
+	 * to the listener, and closing stops the reader.
+	 * 
+	 * @throws Exception
+	 *             in case of error
+	 */
+	public void testFrames() throws Exception {
+
+		if (input == null) {
+			// No FIFO on this platform
+			return;
+		}
+		final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+		HidrawTransport transport = new HidrawTransport(input, output);
+		// The transport opens its input then its output, each opening blocks
+		// until the other side is opened: the far end is opened in the same
+		// order by another thread.
+		final OutputStream[] toTransport = new OutputStream[1];
+		final InputStream[] fromTransport = new InputStream[1];
+		Thread farEnd = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					toTransport[0] = new FileOutputStream(input.toFile());
+					fromTransport[0] = new FileInputStream(output.toFile());
+				} catch (IOException e) {
+					// Checked below
+				}
+			}
+		});
+		farEnd.start();
+		transport.open(new FrameListener() {
+			@Override
+			public void frameReceived(final byte[] frame) {
+				received.add(frame.clone());
+			}
+		});
+		farEnd.join(5000);
+		assertNotNull(toTransport[0]);
+		assertNotNull(fromTransport[0]);
+		try {
+			byte[] frame = FrameCodec.encode(CommandEnum.GET_COL, 7, new byte[] { 1 });
+			transport.write(Collections.singletonList(frame));
+			byte[] report = new byte[FrameCodec.FRAME_LENGTH + 1];
+			readFully(fromTransport[0], report);
+			assertEquals("report id", 0, report[0]);
+			assertTrue(Arrays.equals(frame, Arrays.copyOfRange(report, 1, report.length)));
+
+			byte[] event = new byte[FrameCodec.FRAME_LENGTH];
+			event[0] = FrameCodec.PREFIX_EVENT;
+			event[1] = 0x0b;
+			event[2] = 1;
+			FrameCodec.seal(event);
+			toTransport[0].write(event);
+			toTransport[0].flush();
+			byte[] frameReceived = received.poll(5, TimeUnit.SECONDS);
+			assertNotNull("frame received", frameReceived);
+			assertTrue(Arrays.equals(event, frameReceived));
+		} finally {
+			transport.close();
+			toTransport[0].close();
+			fromTransport[0].close();
+		}
+		assertFalse("reader stopped", isReaderAlive());
+		try {
+			transport.write(Collections.singletonList(new byte[FrameCodec.FRAME_LENGTH]));
+			fail("write after close");
+		} catch (ToyPadException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Check if the reader thread of the transport is alive.
+	 * 
+	 * @return true if alive
+	 */
+	private boolean isReaderAlive() {
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("jtoypad-hidraw-" + input.getFileName()) && thread.isAlive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read bytes until the buffer is full.
+	 * 
+	 * @param in
+	 *            stream
+	 * @param buffer
+	 *            buffer
+	 * @throws IOException
+	 *             if the end of the stream is reached
+	 */
+	private static void readFully(final InputStream in, final byte[] buffer) throws IOException {
+
+		int length = 0;
+		while (length < buffer.length) {
+			int read = in.read(buffer, length, buffer.length - length);
+			if (read < 0) {
+				throw new IOException("End of stream after " + length + " bytes");
+			}
+			length += read;
+		}
+	}
+
+	/**
+	 * Create a FIFO.
+	 * 
+	 * @param path
+	 *            path of the FIFO
+	 * @return false if the FIFO could not be created
+	 */
+	private static boolean mkfifo(final Path path) {
+
+		try {
+			return new ProcessBuilder("mkfifo", path.toString()).start().waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 Erik Amzallag
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.dajlab.jtoypad.example;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.dajlab.jtoypad.core.ActionEnum;
+import org.dajlab.jtoypad.core.Color;
+import org.dajlab.jtoypad.core.Flow;
+import org.dajlab.jtoypad.core.OverflowPolicyEnum;
+import org.dajlab.jtoypad.core.PadEnum;
+import org.dajlab.jtoypad.core.TagEvent;
+import org.dajlab.jtoypad.core.TagListener;
+import org.dajlab.jtoypad.core.ToyPad;
+import org.dajlab.jtoypad.core.ToyPadManager;
+import org.dajlab.jtoypad.core.transport.LoopbackTransport;
+import org.dajlab.jtoypad.core.transport.ToyPadTransport;
+import org.dajlab.jtoypad.core.transport.TransportProvider;
+
+/**
+ * This example runs the API without toypad, on an in-memory transport: a
+ * vehicle is put on the simulated toypad, identified, then removed. The tag
+ * events are also received through the publisher of the manager.
+ * 
+ * @author Erik Amzallag
+ *
+ */
+public class LoopbackExample implements TagListener {
+
+	/**
+	 * UID of the simulated tag.
+	 */
+	private final static byte[] UID = new byte[] { 0x04, 0x12, 0x34, 0x56, 0x78, (byte) 0x9a, (byte) 0xbc };
+
+	/**
+	 * Toypad.
+	 */
+	private ToyPad toypad;
+
+	/**
+	 * Main
+	 * 
+	 * @param args
+	 *            args
+	 */
+	public static void main(final String[] args) {
+
+		new LoopbackExample();
+
+	}
+
+	/**
+	 * Constructor.
+	 */
+	public LoopbackExample() {
+
+		final LoopbackTransport transport = new LoopbackTransport("loopback");
+		// Pages of a vehicle: id 1000 (little endian), vehicle flag
+		byte[] pages = new byte[16];
+		pages[0] = (byte) 0xe8;
+		pages[1] = 0x03;
+		pages[9] = 0x01;
+		transport.setPages(0, pages);
+
+		ToyPadManager toypadManager = new ToyPadManager(new TransportProvider() {
+			@Override
+			public List<ToyPadTransport> findTransports() {
+				return Collections.<ToyPadTransport> singletonList(transport);
+			}
+		});
+		try {
+			toypadManager.getTagEventPublisher().subscribe(new Flow.Subscriber<TagEvent>() {
+				@Override
+				public void onSubscribe(final Flow.Subscription subscription) {
+					subscription.request(Long.MAX_VALUE);
+				}
+
+				@Override
+				public void onNext(final TagEvent event) {
+					System.out.println("Published: " + event.getAction() + " on " + event.getPad());
+				}
+
+				@Override
+				public void onError(final Throwable throwable) {
+					throwable.printStackTrace();
+				}
+
+				@Override
+				public void onComplete() {
+					System.out.println("No more tag events");
+				}
+			}, 16, OverflowPolicyEnum.COALESCE_PER_PAD);
+			toypadManager.connect();
+			toypad = toypadManager.getToyPads().get(0);
+			toypad.addTagListener(this);
+
+			transport.placeTag(PadEnum.LEFT, 0, UID);
+			Thread.sleep(500);
+			transport.removeTag(PadEnum.LEFT, 0, UID);
+			Thread.sleep(500);
+
+			toypad.turnOffPads();
+			toypadManager.disconnect();
+			System.out.println("Frames written to the simulated toypad: " + transport.getWrittenCount());
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void newTagEvent(final TagEvent event) {
+
+		System.out.println(event.getAction() + " " + event.getTag().getName() + " on " + event.getPad());
+		try {
+			if (ActionEnum.ADDED == event.getAction()) {
+				toypad.switchPad(event.getPad(), Color.BLUE);
+			} else {
+				toypad.switchPad(event.getPad(), Color.BLACK);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}